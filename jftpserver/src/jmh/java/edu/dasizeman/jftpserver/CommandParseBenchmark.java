@@ -0,0 +1,67 @@
+package edu.dasizeman.jftpserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turning a line from the control connection into a command and its arguments, which
+ * happens for every command a client sends.  Run with -prof gc to see what each parse
+ * allocates
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParseBenchmark {
+
+	@Param({"NOOP", "retr some/file.bin", "PORT 127,0,0,1,156,64", "EPRT |2|::1|40000|", "XYZZY plugh"})
+	public String line;
+
+	private byte[] bytes;
+	private String name;
+	private final FTPCommandLine commandLine = new FTPCommandLine();
+
+	@Setup
+	public void setup() {
+		bytes = (line + "\r\n").getBytes(StandardCharsets.UTF_8);
+		name = line.split(" ")[0];
+	}
+
+	@Benchmark
+	public FTPCommand parse() {
+		return commandLine.parse(bytes, 0, bytes.length - 2);
+	}
+
+	@Benchmark
+	public String parseAndGetPath() {
+		commandLine.parse(bytes, 0, bytes.length - 2);
+		return commandLine.rest();
+	}
+
+	@Benchmark
+	public FTPCommand getByName() {
+		return FTPCommand.getByName(name);
+	}
+
+	@Benchmark
+	public FTPCommand getByNameFromBytes() {
+		return FTPCommand.getByName(bytes, 0, name.length());
+	}
+
+}
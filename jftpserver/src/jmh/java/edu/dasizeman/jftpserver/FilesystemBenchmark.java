@@ -0,0 +1,139 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * cd, pwd and directory listings on a synthetic tree: a chain of nested directories
+ * as deep as the depth parameter, each holding as many files as the width parameter.
+ * Listings go to a channel that throws them away, and the listing cache is left off so
+ * every listing is generated.  The tree is served from disk or loaded into memory storage
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilesystemBenchmark {
+
+	@Param({"2", "8"})
+	public int depth;
+
+	@Param({"10", "1000"})
+	public int width;
+
+	@Param({"local", "memory"})
+	public String storage;
+
+	private File root;
+	private String deepest;
+	private String backUp;
+	private FilesystemManager filesystem;
+	private final WritableByteChannel sink = new WritableByteChannel() {
+		@Override
+		public int write(ByteBuffer buffer) {
+			int count = buffer.remaining();
+			buffer.position(buffer.limit());
+			return count;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	};
+
+	@Setup
+	public void setup() throws IOException {
+		// cd logs every change, which would otherwise be timed going to the console
+		Logger.getGlobal().setLevel(Level.OFF);
+
+		root = Files.createTempDirectory("jftpd-bench").toFile();
+		StringBuilder path = new StringBuilder();
+		StringBuilder up = new StringBuilder();
+		File dir = root;
+		for (int level = 0; level <= depth; level++) {
+			for (int i = 0; i < width; i++) {
+				FileUtils.writeStringToFile(new File(dir, String.format("file%05d.txt", i)), "some data", "UTF-8");
+			}
+			if (level == depth)
+				break;
+			dir = new File(dir, "dir" + level);
+			dir.mkdir();
+			path.append(dir.getName()).append('/');
+			up.append("../");
+		}
+		deepest = path.toString();
+		backUp = up.toString();
+
+		if (storage.equals("memory")) {
+			MemoryStorage memory = new MemoryStorage(Long.MAX_VALUE);
+			memory.load(root.toPath());
+			filesystem = new FilesystemManager(memory);
+		} else {
+			filesystem = new FilesystemManager(new LocalStorage(LocalStorage.resolveRoot(root.getAbsolutePath())));
+		}
+		filesystem.cd(deepest);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(root);
+	}
+
+	@Benchmark
+	public String cdAndBack() throws FileNotFoundException {
+		filesystem.cd(backUp);
+		filesystem.cd(deepest);
+		return deepest;
+	}
+
+	@Benchmark
+	public String pwd() {
+		return filesystem.pwd();
+	}
+
+	@Benchmark
+	public long listLong() throws IOException {
+		return filesystem.list(DirectoryLister.Format.LIST).writeTo(sink);
+	}
+
+	@Benchmark
+	public long listNames() throws IOException {
+		return filesystem.list(DirectoryLister.Format.NLST).writeTo(sink);
+	}
+
+	@Benchmark
+	public long listMachine() throws IOException {
+		return filesystem.list(DirectoryLister.Format.MLSD).writeTo(sink);
+	}
+
+}
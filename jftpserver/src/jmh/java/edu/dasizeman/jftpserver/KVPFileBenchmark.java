@@ -0,0 +1,66 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading a key value file like the configuration and credential files, with a comment
+ * before every few entries the way jftpd.conf has them
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KVPFileBenchmark {
+
+	@Param({"32", "1024"})
+	public int entries;
+
+	private File file;
+
+	@Setup
+	public void setup() throws IOException {
+		file = File.createTempFile("jftpd-bench", ".conf");
+		PrintWriter out = new PrintWriter(file, "UTF-8");
+		try {
+			for (int i = 0; i < entries; i++) {
+				if (i % 4 == 0)
+					out.println("# A comment about the next few settings");
+				out.println(String.format("key_%d = value_%d", i, i));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public Map<String, String> parse() throws IOException, LineFormatException {
+		return new KVPFile(file.getPath()).parse();
+	}
+
+}
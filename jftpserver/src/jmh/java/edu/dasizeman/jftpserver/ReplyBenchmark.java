@@ -0,0 +1,59 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Formatting and writing a reply on the control connection, with the stream thrown
+ * away so only our side of the cost is measured
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplyBenchmark {
+
+	private ControlConnectionHandler handler;
+
+	@Setup
+	public void setup(final Blackhole blackhole) {
+		handler = new ControlConnectionHandler(new OutputStream() {
+			@Override
+			public void write(byte[] buffer, int offset, int length) {
+				blackhole.consume(buffer);
+			}
+
+			@Override
+			public void write(int b) {
+				blackhole.consume(b);
+			}
+		});
+	}
+
+	@Benchmark
+	public void defaultMessage() {
+		handler.sendFTPResponse(FTPResponse.COMMAND_OK, null);
+	}
+
+	@Benchmark
+	public void customMessage() {
+		handler.sendFTPResponse(FTPResponse.ABOUT_TO_OPEN_DATA, "some/file.bin incoming.");
+	}
+
+}
@@ -0,0 +1,115 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sending a file the two ways RETR does: from disk through DataConnectionHandler.fileCopy,
+ * which hands it to the kernel with transferTo, and from a direct buffer like the file
+ * cache holds through DataConnectionHandler.bufferCopy.  Both send over a loopback socket
+ * to a thread that throws the data away, so the socket path is the real one
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransferBenchmark {
+
+	@Param({"65536", "8388608"})
+	public int transferSize;
+
+	private Path file;
+	private FileChannel fileChannel;
+	private ByteBuffer cached;
+	private SocketChannel client;
+	private SocketChannel accepted;
+	private Thread drain;
+	private DataConnectionHandler handler;
+
+	@Setup
+	public void setup() throws IOException {
+		byte[] data = new byte[transferSize];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte)i;
+		}
+		file = Files.createTempFile("jftpd-bench", ".bin");
+		Files.write(file, data);
+		fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+		cached = ByteBuffer.allocateDirect(transferSize);
+		cached.put(data).flip();
+
+		ServerSocketChannel server = ServerSocketChannel.open();
+		try {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			client = SocketChannel.open(server.getLocalAddress());
+			accepted = server.accept();
+		} finally {
+			server.close();
+		}
+
+		// Read and discard everything until the socket closes
+		drain = new Thread("jftpd-bench-drain") {
+			@Override
+			public void run() {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+				try {
+					while (accepted.read(buffer) >= 0) {
+						buffer.clear();
+					}
+				} catch (IOException e) {
+					// Closed by the teardown
+				}
+			}
+		};
+		drain.setDaemon(true);
+		drain.start();
+
+		handler = new DataConnectionHandler();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException, InterruptedException {
+		client.close();
+		drain.join();
+		accepted.close();
+		fileChannel.close();
+		Files.delete(file);
+	}
+
+	@Benchmark
+	public void sendFile() throws IOException {
+		handler.fileCopy(fileChannel, client, 0, -1);
+	}
+
+	@Benchmark
+	public void sendCachedBuffer() throws IOException {
+		handler.bufferCopy(cached.duplicate(), client);
+	}
+
+}
@@ -0,0 +1,88 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Concurrent uploads committing at once, each thread replacing its own file, under each
+ * upload_fsync policy.  This is what decides whether forcing files from the uploading
+ * threads scales.  The files go in a temp directory, so run it with java.io.tmpdir on the
+ * filesystem uploads will really go to, since a tmpfs makes every fsync free
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Threads(8)
+@Fork(1)
+public class UploadCommitBenchmark {
+
+	@Param({"file", "none"})
+	public String durability;
+
+	@Param({"65536"})
+	public int uploadSize;
+
+	private File directory;
+	private byte[] data;
+
+	/**
+	 * The file each thread keeps replacing
+	 */
+	@State(Scope.Thread)
+	public static class Target {
+		private static final AtomicInteger counter = new AtomicInteger();
+
+		File file;
+
+		@Setup
+		public void setup(UploadCommitBenchmark benchmark) {
+			file = new File(benchmark.directory, String.format("upload-%d.bin", counter.getAndIncrement()));
+		}
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("jftpd-bench").toFile();
+		data = new byte[uploadSize];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte)i;
+		}
+		StagedUpload.setDurability(StagedUpload.Durability.valueOf(durability.toUpperCase()));
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(directory);
+	}
+
+	@Benchmark
+	public void replace(Target target) throws IOException {
+		StagedUpload upload = new StagedUpload(target.file);
+		upload.write(ByteBuffer.wrap(data));
+		upload.commit();
+	}
+
+}
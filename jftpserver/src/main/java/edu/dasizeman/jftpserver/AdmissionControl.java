@@ -0,0 +1,209 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Caps the number of sessions overall, from any one address and logged in as any one user.
+ * Connections are admitted as soon as they are accepted, before anything is set up for them,
+ * and the ones over a limit are sent a 421 and closed right there on the accepting thread.
+ * That way a burst of connections costs us a socket each instead of a session each, and the
+ * sessions we already have keep working.  A limit of 0 means no limit
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class AdmissionControl {
+	private static final Logger logger = Logger.getGlobal();
+
+	private static final String MAX_SESSIONS_CONF_KEY = "max_sessions";
+	private static final String MAX_SESSIONS_PER_IP_CONF_KEY = "max_sessions_per_ip";
+	private static final String MAX_SESSIONS_PER_USER_CONF_KEY = "max_sessions_per_user";
+
+	// Encoded once, since it is sent when we can least afford to do any work
+	private static final byte[] TOO_MANY_SESSIONS_REPLY = String.format("%d %s\r\n",
+			FTPResponse.NOT_AVAIL_CLOSING.code, "Too many sessions, try again later.").getBytes(StandardCharsets.US_ASCII);
+
+	private static final AdmissionControl instance = new AdmissionControl(0, 0, 0);
+
+	// Changed in place on reload, so the sessions we already have stay counted.  Lowering a
+	// limit never closes anything, it only turns new sessions away until enough have gone
+	private volatile int maxSessions;
+	private volatile int maxSessionsPerAddress;
+	private volatile int maxSessionsPerUser;
+
+	private final AtomicInteger sessions = new AtomicInteger();
+
+	// Counts are removed once they drop to 0, and a count at 0 is never used again
+	private final ConcurrentHashMap<InetAddress, AtomicInteger> sessionsByAddress = new ConcurrentHashMap<InetAddress, AtomicInteger>();
+	private final ConcurrentHashMap<String, AtomicInteger> sessionsByUser = new ConcurrentHashMap<String, AtomicInteger>();
+
+	/**
+	 * A session that was let in.  Whatever it holds is given back by release, which is safe
+	 * to call more than once
+	 */
+	public class Admission {
+		private final InetAddress address;
+		private String user = null;
+		private boolean released = false;
+
+		private Admission(InetAddress address) {
+			this.address = address;
+		}
+
+		/**
+		 * Count the session against a user once they have logged in, giving up whoever it
+		 * was counted against before
+		 * @param username The user
+		 * @return False if the user already has as many sessions as they are allowed
+		 */
+		public synchronized boolean admitUser(String username) {
+			releaseUser();
+			if (!acquireCount(sessionsByUser, username, maxSessionsPerUser)) {
+				ServerMetrics.getInstance().sessionRejected();
+				EventLogger.logEvent(logger, "Admission", String.format("Too many sessions for user %s", username));
+				return false;
+			}
+			user = username;
+			return true;
+		}
+
+		public synchronized void release() {
+			if (released)
+				return;
+			released = true;
+			releaseUser();
+			releaseCount(sessionsByAddress, address);
+			sessions.decrementAndGet();
+		}
+
+		private void releaseUser() {
+			if (user != null) {
+				releaseCount(sessionsByUser, user);
+				user = null;
+			}
+		}
+	}
+
+	public static AdmissionControl getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Set the limits from the configuration file
+	 * @param configFile The loaded configuration
+	 * @throws NumberFormatException If a limit isn't a number
+	 * @throws IllegalArgumentException If a limit is negative
+	 */
+	public static void configure(ConfigurationFile configFile) throws NumberFormatException {
+		instance.setLimits(configFile.getIntValue(MAX_SESSIONS_CONF_KEY),
+				configFile.getIntValue(MAX_SESSIONS_PER_IP_CONF_KEY),
+				configFile.getIntValue(MAX_SESSIONS_PER_USER_CONF_KEY));
+	}
+
+	/**
+	 * @param maxSessions The most sessions overall, or 0 for no limit
+	 * @param maxSessionsPerAddress The most sessions from one address, or 0 for no limit
+	 * @param maxSessionsPerUser The most sessions logged in as one user, or 0 for no limit
+	 */
+	public AdmissionControl(int maxSessions, int maxSessionsPerAddress, int maxSessionsPerUser) {
+		setLimits(maxSessions, maxSessionsPerAddress, maxSessionsPerUser);
+	}
+
+	/**
+	 * Change the limits.  Each one takes effect for the next session it is checked against
+	 * @param maxSessions The most sessions overall, or 0 for no limit
+	 * @param maxSessionsPerAddress The most sessions from one address, or 0 for no limit
+	 * @param maxSessionsPerUser The most sessions logged in as one user, or 0 for no limit
+	 * @throws IllegalArgumentException If a limit is negative
+	 */
+	public void setLimits(int maxSessions, int maxSessionsPerAddress, int maxSessionsPerUser) {
+		if (maxSessions < 0 || maxSessionsPerAddress < 0 || maxSessionsPerUser < 0)
+			throw new IllegalArgumentException("Session limits can't be negative.");
+		this.maxSessions = maxSessions;
+		this.maxSessionsPerAddress = maxSessionsPerAddress;
+		this.maxSessionsPerUser = maxSessionsPerUser;
+	}
+
+	/**
+	 * Let a newly accepted connection in if it fits under the limits
+	 * @param address Where the connection is from
+	 * @return The admission to release when the session is over, or null if it didn't fit
+	 */
+	public Admission admit(InetAddress address) {
+		if (!acquireCount(sessions, maxSessions)) {
+			ServerMetrics.getInstance().sessionRejected();
+			return null;
+		}
+		if (!acquireCount(sessionsByAddress, address, maxSessionsPerAddress)) {
+			sessions.decrementAndGet();
+			ServerMetrics.getInstance().sessionRejected();
+			return null;
+		}
+		return new Admission(address);
+	}
+
+	/**
+	 * Turn away a connection that wasn't admitted.  The reply fits in an empty send buffer,
+	 * so this never blocks the accepting thread
+	 * @param socket The connection
+	 */
+	public static void reject(Socket socket) {
+		EventLogger.logEvent(logger, EventLogger.getConnectionID(socket), "Turned away, too many sessions");
+		try {
+			socket.getOutputStream().write(TOO_MANY_SESSIONS_REPLY);
+		} catch (IOException e) {
+			// They'll find out either way
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				EventLogger.logConnectionException(logger, socket, e);
+			}
+		}
+	}
+
+	private static boolean acquireCount(AtomicInteger count, int limit) {
+		while (true) {
+			int current = count.get();
+			if (limit > 0 && current >= limit)
+				return false;
+			if (count.compareAndSet(current, current + 1))
+				return true;
+		}
+	}
+
+	private static <K> boolean acquireCount(ConcurrentHashMap<K, AtomicInteger> counts, K key, int limit) {
+		while (true) {
+			AtomicInteger count = counts.get(key);
+			if (count == null) {
+				if (counts.putIfAbsent(key, new AtomicInteger(1)) == null)
+					return true;
+				continue;
+			}
+
+			int current = count.get();
+
+			// Being removed, so help and start again with a new count
+			if (current == 0) {
+				counts.remove(key, count);
+				continue;
+			}
+			if (limit > 0 && current >= limit)
+				return false;
+			if (count.compareAndSet(current, current + 1))
+				return true;
+		}
+	}
+
+	private static <K> void releaseCount(ConcurrentHashMap<K, AtomicInteger> counts, K key) {
+		AtomicInteger count = counts.get(key);
+		if (count != null && count.decrementAndGet() == 0)
+			counts.remove(key, count);
+	}
+
+}
@@ -0,0 +1,231 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * A log handler that hands records to a single writer thread through a bounded queue,
+ * so sessions never wait on the log file or on each other to log.  The writer formats
+ * and writes records in batches, flushing once per batch, and rotates the log when it
+ * gets too big or too old, leaving the old log to the archiver
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class AsyncLogHandler extends Handler implements Runnable {
+
+	/**
+	 * What publishing does when the queue is full
+	 */
+	public enum FullPolicy {
+		// Wait for the writer to make room, so nothing is lost
+		BLOCK,
+		// Throw the record away and count it, so logging never slows a session down
+		DROP
+	}
+
+	// The most records written between flushes
+	private static final int MAX_BATCH = 1024;
+
+	// How often an idle writer wakes up to check whether the log is due to rotate
+	private static final long IDLE_CHECK_MILLIS = 1000;
+
+	private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+	private final File logFile;
+	private final LogArchiver archiver;
+	private final BlockingQueue<LogRecord> queue;
+	private final FullPolicy policy;
+	private final long rotateBytes;
+	private final long rotateMillis;
+
+	private final LongAdder dropped = new LongAdder();
+	// How many of the dropped records have been noted in the log.  Only touched by the writer
+	private long droppedNoted = 0;
+	private volatile boolean closed = false;
+	private final Thread writer;
+
+	// Only touched by the writer thread once it has started
+	private OutputStream out;
+	private long written;
+	private long openedAt;
+
+	/**
+	 * Open the log, archiving any log already there, and start the writer thread
+	 * @param logFile The log file
+	 * @param archiver Where rotated logs go
+	 * @param queueSize How many records can be waiting for the writer
+	 * @param policy What to do when the queue is full
+	 * @param rotateBytes Rotate the log once it is this big, or 0 to never rotate on size
+	 * @param rotateMillis Rotate the log once it is this old, or 0 to never rotate on age
+	 * @throws IOException If the log couldn't be opened
+	 */
+	public AsyncLogHandler(File logFile, LogArchiver archiver, int queueSize, FullPolicy policy,
+			long rotateBytes, long rotateMillis) throws IOException {
+		this.logFile = logFile;
+		this.archiver = archiver;
+		this.queue = new ArrayBlockingQueue<LogRecord>(queueSize);
+		this.policy = policy;
+		this.rotateBytes = rotateBytes;
+		this.rotateMillis = rotateMillis;
+
+		if (logFile.exists())
+			archiver.archive(logFile);
+		open();
+
+		writer = new Thread(this, "jftpd-log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	@Override
+	public void publish(LogRecord record) {
+		if (closed || !isLoggable(record))
+			return;
+
+		if (policy == FullPolicy.DROP) {
+			if (!queue.offer(record))
+				dropped.increment();
+			return;
+		}
+		try {
+			queue.put(record);
+		} catch (InterruptedException e) {
+			dropped.increment();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Records are flushed by the writer after every batch, so there is nothing to do here
+	 */
+	@Override
+	public void flush() {
+	}
+
+	/**
+	 * Stop taking records, and wait for the writer to write out the ones it has
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		archiver.shutdown(TimeUnit.SECONDS.toMillis(5));
+	}
+
+	/**
+	 * @return How many records have been dropped because the queue was full
+	 */
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	@Override
+	public void run() {
+		List<LogRecord> batch = new ArrayList<LogRecord>(MAX_BATCH);
+		while (true) {
+			LogRecord first;
+			try {
+				first = queue.poll(IDLE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				continue;
+			}
+			if (first == null && closed)
+				break;
+
+			if (first != null) {
+				batch.add(first);
+				queue.drainTo(batch, MAX_BATCH - 1);
+			}
+			write(batch);
+			batch.clear();
+			rotateIfDue();
+		}
+		closeQuietly();
+	}
+
+	/**
+	 * Write a batch of records, and a note about any that were dropped, then flush
+	 */
+	private void write(List<LogRecord> batch) {
+		long droppedSinceLast = dropped.sum() - droppedNoted;
+		if (droppedSinceLast > 0) {
+			droppedNoted += droppedSinceLast;
+			batch.add(new LogRecord(Level.WARNING,
+					String.format("[-] Logging: %d records dropped because the log queue was full", droppedSinceLast)));
+		}
+		if (batch.isEmpty() || out == null)
+			return;
+
+		try {
+			for (LogRecord record : batch) {
+				byte[] line = getFormatter().format(record).getBytes(StandardCharsets.UTF_8);
+				out.write(line);
+				written += line.length;
+			}
+			out.flush();
+		} catch (IOException e) {
+			reportError("Failed to write log", e, ErrorManager.WRITE_FAILURE);
+		}
+	}
+
+	/**
+	 * Rotate the log if it is too big or too old.  An empty log is left alone
+	 */
+	private void rotateIfDue() {
+		boolean tooBig = rotateBytes > 0 && written >= rotateBytes;
+		boolean tooOld = rotateMillis > 0 && System.currentTimeMillis() - openedAt >= rotateMillis;
+		if (written == 0 || !(tooBig || tooOld))
+			return;
+
+		closeQuietly();
+		try {
+			archiver.archive(logFile);
+		} catch (IOException e) {
+			reportError("Failed to rotate log", e, ErrorManager.GENERIC_FAILURE);
+		}
+		try {
+			open();
+		} catch (IOException e) {
+			reportError("Failed to reopen log", e, ErrorManager.OPEN_FAILURE);
+		}
+	}
+
+	/**
+	 * Open the log for appending, so nothing is lost if it couldn't be archived
+	 */
+	private void open() throws IOException {
+		out = new BufferedOutputStream(new FileOutputStream(logFile, true), OUTPUT_BUFFER_SIZE);
+		written = logFile.length();
+		openedAt = System.currentTimeMillis();
+	}
+
+	private void closeQuietly() {
+		if (out == null)
+			return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			reportError("Failed to close log", e, ErrorManager.CLOSE_FAILURE);
+		}
+		out = null;
+	}
+
+}
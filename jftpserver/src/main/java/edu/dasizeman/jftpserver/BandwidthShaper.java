@@ -0,0 +1,233 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Limits how fast we send data at three levels: the whole server, each user and each
+ * session.  Every level is a TokenBucket, and a transfer charges each chunk it sends to all
+ * of the buckets above it and waits for the slowest.  Charging queues transfers up behind each
+ * other, so transfers that share a limit take turns sending a chunk each and end up with an
+ * even share of it.  Nothing is charged or chunked at a level with no limit, and the limits
+ * can be changed over JMX while transfers are running.
+ *
+ * Data transfers block, and each one has its own thread, or virtual thread, for as long as it
+ * runs, so waiting is done by that thread, parked for exactly as long as the buckets say.  A
+ * thread is only parked once a bucket is in debt, and then once a chunk, about 50 times a
+ * second.  A parked virtual thread gives up its carrier, and a parked platform thread is
+ * one the transfer would hold blocked in a socket write anyway
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class BandwidthShaper implements BandwidthShaperMBean {
+	private static final String GLOBAL_LIMIT_CONF_KEY = "rate_limit_global";
+	private static final String USER_LIMIT_CONF_KEY = "rate_limit_user";
+	private static final String SESSION_LIMIT_CONF_KEY = "rate_limit_session";
+
+	// Limited transfers send in chunks of about this long at the tightest limit, so they are
+	// paced smoothly but don't make too many system calls
+	private static final long CHUNK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+	private static final int MIN_CHUNK_SIZE = 1024;
+	private static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+	private static final BandwidthShaper instance = new BandwidthShaper();
+
+	private volatile long globalLimit = 0;
+	private volatile long userLimit = 0;
+	private volatile long sessionLimit = 0;
+
+	private final TokenBucket global = new TokenBucket();
+
+	// There is only ever a bucket for each user in the credential file and anonymous, so these are kept
+	private final ConcurrentHashMap<String, TokenBucket> users = new ConcurrentHashMap<String, TokenBucket>();
+
+	private final LongAdder pacedNanos = new LongAdder();
+
+	/**
+	 * Paces the transfers of one session
+	 */
+	public class Pacer {
+		private final TokenBucket user;
+		private final TokenBucket session;
+
+		private Pacer(TokenBucket user, TokenBucket session) {
+			this.user = user;
+			this.session = session;
+		}
+
+		/**
+		 * @param wanted How much the transfer would like to send next
+		 * @return How much it should send before pacing again
+		 */
+		public long chunk(long wanted) {
+			long tightest = tightestLimit();
+			if (tightest == 0)
+				return wanted;
+			long size = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, tightest * CHUNK_NANOS / TimeUnit.SECONDS.toNanos(1)));
+			return Math.min(wanted, size);
+		}
+
+		/**
+		 * Charge bytes that were just sent to every limit, and wait until the transfer is back
+		 * under all of them.  The burst each bucket allows lets the first chunk go straight away
+		 * @param bytes How many bytes were sent
+		 * @throws InterruptedIOException If the thread is interrupted while it waits
+		 */
+		public void pace(long bytes) throws InterruptedIOException {
+			if (bytes <= 0)
+				return;
+			long now = System.nanoTime();
+			long wait = global.reserve(bytes, globalLimit, now);
+			wait = Math.max(wait, user.reserve(bytes, userLimit, now));
+			wait = Math.max(wait, session.reserve(bytes, sessionLimit, now));
+			if (wait == 0)
+				return;
+
+			pacedNanos.add(wait);
+			long deadline = now + wait;
+			long remaining;
+			while ((remaining = deadline - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(remaining);
+				if (Thread.interrupted()) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while pacing a transfer");
+				}
+			}
+		}
+
+		/**
+		 * Pace everything written to a channel
+		 * @param out The channel to write to
+		 * @return A channel that writes to out, at most a chunk at a time
+		 */
+		public WritableByteChannel wrap(final WritableByteChannel out) {
+			return new WritableByteChannel() {
+				@Override
+				public int write(ByteBuffer src) throws IOException {
+					int length = (int)chunk(src.remaining());
+					int limit = src.limit();
+					src.limit(src.position() + length);
+					try {
+						int written = out.write(src);
+						pace(written);
+						return written;
+					} finally {
+						src.limit(limit);
+					}
+				}
+
+				@Override
+				public boolean isOpen() {
+					return out.isOpen();
+				}
+
+				@Override
+				public void close() throws IOException {
+					out.close();
+				}
+			};
+		}
+	}
+
+	private BandwidthShaper() {
+	}
+
+	public static BandwidthShaper getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Set the limits from the configuration file
+	 * @param configFile The loaded configuration
+	 * @throws NumberFormatException If a limit isn't a valid size
+	 */
+	public static void configure(ConfigurationFile configFile) throws NumberFormatException {
+		instance.setGlobalLimit(configFile.getSizeValue(GLOBAL_LIMIT_CONF_KEY));
+		instance.setUserLimit(configFile.getSizeValue(USER_LIMIT_CONF_KEY));
+		instance.setSessionLimit(configFile.getSizeValue(SESSION_LIMIT_CONF_KEY));
+	}
+
+	/**
+	 * Get a pacer for a session's transfers
+	 * @param username Who the session is logged in as
+	 * @param session The session's own bucket, which it keeps for all of its transfers
+	 * @return The pacer
+	 */
+	public Pacer pacer(String username, TokenBucket session) {
+		TokenBucket user = users.get(username);
+		if (user == null) {
+			TokenBucket created = new TokenBucket();
+			user = users.putIfAbsent(username, created);
+			if (user == null)
+				user = created;
+		}
+		return new Pacer(user, session);
+	}
+
+	/**
+	 * @return The lowest limit that is set, or 0 if none are
+	 */
+	private long tightestLimit() {
+		return tighter(tighter(globalLimit, userLimit), sessionLimit);
+	}
+
+	private static long tighter(long a, long b) {
+		if (a == 0)
+			return b;
+		if (b == 0)
+			return a;
+		return Math.min(a, b);
+	}
+
+	private static long checkLimit(long bytesPerSecond) {
+		if (bytesPerSecond < 0)
+			throw new IllegalArgumentException("Rate limits can't be negative.");
+		return bytesPerSecond;
+	}
+
+	/*
+	 * MBean attributes
+	 */
+
+	@Override
+	public long getGlobalLimit() {
+		return globalLimit;
+	}
+
+	@Override
+	public void setGlobalLimit(long bytesPerSecond) {
+		globalLimit = checkLimit(bytesPerSecond);
+	}
+
+	@Override
+	public long getUserLimit() {
+		return userLimit;
+	}
+
+	@Override
+	public void setUserLimit(long bytesPerSecond) {
+		userLimit = checkLimit(bytesPerSecond);
+	}
+
+	@Override
+	public long getSessionLimit() {
+		return sessionLimit;
+	}
+
+	@Override
+	public void setSessionLimit(long bytesPerSecond) {
+		sessionLimit = checkLimit(bytesPerSecond);
+	}
+
+	@Override
+	public long getPacedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(pacedNanos.sum());
+	}
+
+}
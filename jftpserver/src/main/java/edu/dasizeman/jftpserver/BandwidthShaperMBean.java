@@ -0,0 +1,19 @@
+package edu.dasizeman.jftpserver;
+
+/**
+ * What JMX shows about bandwidth shaping.  The limits are in bytes per second, 0 for no
+ * limit, and take effect on running transfers as soon as they are set
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public interface BandwidthShaperMBean {
+	long getGlobalLimit();
+	void setGlobalLimit(long bytesPerSecond);
+	long getUserLimit();
+	void setUserLimit(long bytesPerSecond);
+	long getSessionLimit();
+	void setSessionLimit(long bytesPerSecond);
+
+	// Total time transfers have spent waiting on the limits
+	long getPacedMillis();
+}
@@ -0,0 +1,81 @@
+package edu.dasizeman.jftpserver;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of equally sized direct buffers for transfers.  Direct buffers are expensive
+ * to allocate and are only freed by the garbage collector, so we keep a bounded number
+ * around for reuse instead of allocating one per transfer
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class BufferPool {
+	private static final String BUFFER_SIZE_CONF_KEY = "transfer_buffer_size";
+	private static final String POOLED_BUFFERS_CONF_KEY = "transfer_buffers_pooled";
+
+	private static volatile BufferPool instance = new BufferPool(64 * 1024, 256);
+
+	private final int bufferSize;
+	private final int maxPooled;
+	private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	// Tracked separately since ConcurrentLinkedQueue.size() walks the queue
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	/**
+	 * Get the server wide buffer pool
+	 * @return The pool set by configure, or a pool with default sizes if it hasn't been called
+	 */
+	public static BufferPool getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Set up the server wide buffer pool from the configuration file
+	 * @param configFile The loaded configuration
+	 * @throws NumberFormatException If a size isn't valid
+	 */
+	public static void configure(ConfigurationFile configFile) throws NumberFormatException {
+		instance = new BufferPool((int)configFile.getSizeValue(BUFFER_SIZE_CONF_KEY),
+				Integer.parseInt(configFile.getConfigValue(POOLED_BUFFERS_CONF_KEY)));
+	}
+
+	/**
+	 * @param bufferSize The size of each buffer
+	 * @param maxPooled The most idle buffers to keep around
+	 */
+	public BufferPool(int bufferSize, int maxPooled) {
+		if (bufferSize <= 0)
+			throw new IllegalArgumentException(String.format("%s must be at least 1.", BUFFER_SIZE_CONF_KEY));
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * Take a cleared buffer from the pool, allocating one if the pool is empty
+	 * @return The buffer.  Give it back with release when done
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = pool.poll();
+		if (buffer == null)
+			return ByteBuffer.allocateDirect(bufferSize);
+		pooled.decrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * Return a buffer to the pool.  The caller must not touch it afterwards
+	 * @param buffer A buffer that came from acquire
+	 */
+	public void release(ByteBuffer buffer) {
+		if (pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			return;
+		}
+		buffer.clear();
+		pool.offer(buffer);
+	}
+
+}
@@ -0,0 +1,51 @@
+package edu.dasizeman.jftpserver;
+
+/**
+ * How often one FTP command is handled and how long handling it takes, from the
+ * command being read to the handler being done with it.  For transfers that is the
+ * time to get the transfer going, the transfer itself is counted by ServerMetrics
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class CommandStats implements CommandStatsMBean {
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	/**
+	 * Record one handled command
+	 * @param nanos How long it took to handle
+	 */
+	public void record(long nanos) {
+		latency.record(nanos);
+	}
+
+	@Override
+	public long getCount() {
+		return latency.getCount();
+	}
+
+	@Override
+	public double getMeanMicros() {
+		return latency.getMeanMicros();
+	}
+
+	@Override
+	public long getP50Micros() {
+		return latency.getPercentileMicros(0.50);
+	}
+
+	@Override
+	public long getP90Micros() {
+		return latency.getPercentileMicros(0.90);
+	}
+
+	@Override
+	public long getP99Micros() {
+		return latency.getPercentileMicros(0.99);
+	}
+
+	@Override
+	public long getMaxMicros() {
+		return latency.getMaxMicros();
+	}
+
+}
@@ -0,0 +1,15 @@
+package edu.dasizeman.jftpserver;
+
+/**
+ * What JMX shows about one FTP command
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public interface CommandStatsMBean {
+	long getCount();
+	double getMeanMicros();
+	long getP50Micros();
+	long getP90Micros();
+	long getP99Micros();
+	long getMaxMicros();
+}
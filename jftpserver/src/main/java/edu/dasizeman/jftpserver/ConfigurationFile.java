@@ -1,68 +1,209 @@
 package edu.dasizeman.jftpserver;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Map;
 
-public class ConfigurationFile extends KVPFile {
-	private static ConfigurationFile instance = null;
+/**
+ * One immutable snapshot of jftpd.conf, with every key we know about filled in from the
+ * defaults when the file doesn't set it.  A snapshot is parsed once and published through a
+ * single volatile reference, so whoever reads the configuration sees the whole of one file,
+ * never half of an old one and half of a new one.  Reloading parses the file into a new
+ * snapshot and swaps it in, and the snapshot that was there before is never changed
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class ConfigurationFile {
 	private static final String CONF_FILE_NAME = "jftpd.conf";
 	
 	private static final String LOG_DIR_DEFAULT = "/var/log/jftpd";
 	private static final String ACCT_FILE_DEFAULT = "./creds.conf";
+	private static final int CREDENTIAL_RELOAD_SECONDS_DEFAULT = 5;
+	private static final int CREDENTIAL_CACHE_SIZE_DEFAULT = 1024;
 	private static final String ALLOW_ACTIVE_DEFAULT = "yes";
 	private static final String ALLOW_PASSIVE_DEFAULT = "yes";
 	private static final String FILE_ROOT_DEFAULT = "/home/";
+	private static final String STORAGE_DEFAULT = "local";
+	private static final String MEMORY_STORAGE_SIZE_DEFAULT = "256m";
 	private static final int LOG_NUM_DEFAULT=5;
+	private static final String LOG_LEVEL_DEFAULT = "all";
+	private static final String LOG_ROTATE_SIZE_DEFAULT = "64m";
+	private static final int LOG_ROTATE_HOURS_DEFAULT = 24;
+	private static final String LOG_COMPRESS_DEFAULT = "yes";
+	private static final int LOG_QUEUE_SIZE_DEFAULT = 8192;
+	private static final String LOG_QUEUE_FULL_DEFAULT = "block";
+	private static final String CONTROL_ENGINE_DEFAULT = "thread";
+	private static final int REACTOR_THREADS_DEFAULT = 0;
+	private static final int REACTOR_WORKER_THREADS_DEFAULT = 0;
+	private static final int LISTEN_BACKLOG_DEFAULT = 50;
+	private static final int MAX_SESSIONS_DEFAULT = 0;
+	private static final int MAX_SESSIONS_PER_IP_DEFAULT = 0;
+	private static final int MAX_SESSIONS_PER_USER_DEFAULT = 0;
+	private static final String MAX_LINE_LENGTH_DEFAULT = "2k";
+	private static final String THREAD_MODE_DEFAULT = "thread";
+	private static final int THREAD_POOL_SIZE_DEFAULT = 256;
+	private static final String FILE_CACHE_MEMORY_DEFAULT = "64m";
+	private static final String FILE_CACHE_MAPPED_DEFAULT = "1g";
+	private static final String FILE_CACHE_SMALL_FILE_MAX_DEFAULT = "1m";
+	private static final String ALLOW_UPLOADS_DEFAULT = "yes";
+	private static final String ANONYMOUS_UPLOADS_DEFAULT = "no";
+	private static final String UPLOAD_FSYNC_DEFAULT = "file";
+	private static final String TRANSFER_BUFFER_SIZE_DEFAULT = "64k";
+	private static final int TRANSFER_BUFFERS_POOLED_DEFAULT = 256;
+	private static final String PASV_PORT_RANGE_DEFAULT = "0";
+	private static final String PASV_ADDRESS_DEFAULT = "auto";
+	private static final int DATA_CONNECTION_TIMEOUT_DEFAULT = 30;
+	private static final int ACTIVE_CONNECT_TIMEOUT_DEFAULT = 10;
+	private static final String LISTING_CACHE_MEMORY_DEFAULT = "16m";
+	private static final int PATH_CACHE_SIZE_DEFAULT = 4096;
+	private static final int PATH_CACHE_SECONDS_DEFAULT = 2;
+	private static final String RATE_LIMIT_DEFAULT = "0";
 	
-	private static HashMap<String,String> configDefaults;
-	private static ConcurrentHashMap<String,String> config;
+	private static final Map<String,String> configDefaults;
 	
 	static {
-		configDefaults = new HashMap<String,String>();
-		configDefaults.put("logdirectory", LOG_DIR_DEFAULT);
-		configDefaults.put("numlogfiles", Integer.toString(LOG_NUM_DEFAULT));
-		configDefaults.put("usernamefile", ACCT_FILE_DEFAULT);
-		configDefaults.put("port_mode", ALLOW_ACTIVE_DEFAULT);
-		configDefaults.put("pasv_mode", ALLOW_PASSIVE_DEFAULT);
-		configDefaults.put("file_root", FILE_ROOT_DEFAULT);
+		HashMap<String,String> defaults = new HashMap<String,String>();
+		defaults.put("logdirectory", LOG_DIR_DEFAULT);
+		defaults.put("numlogfiles", Integer.toString(LOG_NUM_DEFAULT));
+		defaults.put("loglevel", LOG_LEVEL_DEFAULT);
+		defaults.put("log_rotate_size", LOG_ROTATE_SIZE_DEFAULT);
+		defaults.put("log_rotate_hours", Integer.toString(LOG_ROTATE_HOURS_DEFAULT));
+		defaults.put("log_compress", LOG_COMPRESS_DEFAULT);
+		defaults.put("log_queue_size", Integer.toString(LOG_QUEUE_SIZE_DEFAULT));
+		defaults.put("log_queue_full", LOG_QUEUE_FULL_DEFAULT);
+		defaults.put("usernamefile", ACCT_FILE_DEFAULT);
+		defaults.put("credential_reload_seconds", Integer.toString(CREDENTIAL_RELOAD_SECONDS_DEFAULT));
+		defaults.put("credential_cache_size", Integer.toString(CREDENTIAL_CACHE_SIZE_DEFAULT));
+		defaults.put("port_mode", ALLOW_ACTIVE_DEFAULT);
+		defaults.put("pasv_mode", ALLOW_PASSIVE_DEFAULT);
+		defaults.put("file_root", FILE_ROOT_DEFAULT);
+		defaults.put("storage", STORAGE_DEFAULT);
+		defaults.put("memory_storage_size", MEMORY_STORAGE_SIZE_DEFAULT);
+		defaults.put("control_engine", CONTROL_ENGINE_DEFAULT);
+		defaults.put("reactor_threads", Integer.toString(REACTOR_THREADS_DEFAULT));
+		defaults.put("reactor_worker_threads", Integer.toString(REACTOR_WORKER_THREADS_DEFAULT));
+		defaults.put("max_line_length", MAX_LINE_LENGTH_DEFAULT);
+		defaults.put("listen_backlog", Integer.toString(LISTEN_BACKLOG_DEFAULT));
+		defaults.put("max_sessions", Integer.toString(MAX_SESSIONS_DEFAULT));
+		defaults.put("max_sessions_per_ip", Integer.toString(MAX_SESSIONS_PER_IP_DEFAULT));
+		defaults.put("max_sessions_per_user", Integer.toString(MAX_SESSIONS_PER_USER_DEFAULT));
+		defaults.put("thread_mode", THREAD_MODE_DEFAULT);
+		defaults.put("thread_pool_size", Integer.toString(THREAD_POOL_SIZE_DEFAULT));
+		defaults.put("file_cache_memory", FILE_CACHE_MEMORY_DEFAULT);
+		defaults.put("file_cache_mapped", FILE_CACHE_MAPPED_DEFAULT);
+		defaults.put("file_cache_small_file_max", FILE_CACHE_SMALL_FILE_MAX_DEFAULT);
+		defaults.put("allow_uploads", ALLOW_UPLOADS_DEFAULT);
+		defaults.put("anonymous_uploads", ANONYMOUS_UPLOADS_DEFAULT);
+		defaults.put("upload_fsync", UPLOAD_FSYNC_DEFAULT);
+		defaults.put("transfer_buffer_size", TRANSFER_BUFFER_SIZE_DEFAULT);
+		defaults.put("transfer_buffers_pooled", Integer.toString(TRANSFER_BUFFERS_POOLED_DEFAULT));
+		defaults.put("pasv_port_range", PASV_PORT_RANGE_DEFAULT);
+		defaults.put("pasv_address", PASV_ADDRESS_DEFAULT);
+		defaults.put("data_connection_timeout", Integer.toString(DATA_CONNECTION_TIMEOUT_DEFAULT));
+		defaults.put("active_connect_timeout", Integer.toString(ACTIVE_CONNECT_TIMEOUT_DEFAULT));
+		defaults.put("listing_cache_memory", LISTING_CACHE_MEMORY_DEFAULT);
+		defaults.put("path_cache_size", Integer.toString(PATH_CACHE_SIZE_DEFAULT));
+		defaults.put("path_cache_seconds", Integer.toString(PATH_CACHE_SECONDS_DEFAULT));
+		defaults.put("rate_limit_global", RATE_LIMIT_DEFAULT);
+		defaults.put("rate_limit_user", RATE_LIMIT_DEFAULT);
+		defaults.put("rate_limit_session", RATE_LIMIT_DEFAULT);
+		configDefaults = Collections.unmodifiableMap(defaults);
 	}
 	
+	private static volatile ConfigurationFile current = null;
+	
+	// Never changed once the snapshot is made
+	private final Map<String,String> config;
+	
+	/**
+	 * Get the current snapshot, loading jftpd.conf the first time
+	 * @return The snapshot
+	 * @throws LineFormatException If the file can't be parsed
+	 * @throws IOException If the file can't be read
+	 */
 	public static ConfigurationFile getInstance() throws LineFormatException, IOException {
-		if (instance == null) {
-			instance = new ConfigurationFile(CONF_FILE_NAME);
-			config = instance.parse();
+		ConfigurationFile snapshot = current;
+		if (snapshot == null) {
+			synchronized (ConfigurationFile.class) {
+				if (current == null)
+					current = load();
+				snapshot = current;
+			}
 		}
-		return instance;
-		
+		return snapshot;
 	}
-
-	public ConfigurationFile(String filepath) throws FileNotFoundException {
-		super(filepath);
+	
+	/**
+	 * Parse jftpd.conf into a new snapshot, without publishing it
+	 * @return The snapshot
+	 * @throws LineFormatException If the file can't be parsed
+	 * @throws IOException If the file can't be read
+	 */
+	public static ConfigurationFile load() throws LineFormatException, IOException {
+		return new ConfigurationFile(new KVPFile(CONF_FILE_NAME).parse());
 	}
 	
+	/**
+	 * Make a snapshot the current one
+	 * @param snapshot The snapshot
+	 */
+	public static void publish(ConfigurationFile snapshot) {
+		current = snapshot;
+	}
 	
-	public ConcurrentHashMap<String,String> parse() throws IOException, LineFormatException {
-		ConcurrentHashMap<String,String> entries = super.parse();
-		
-		// Determine what set of configuration values is not set and needs the default
-		Set<String> defaultConfigurations = configDefaults.keySet();
-		Set<String> specifiedConfigurations = entries.keySet();
-		
-		defaultConfigurations.removeAll(specifiedConfigurations);
-		
-		for (String config : defaultConfigurations) {
-			entries.put(config, configDefaults.get(config));
-		}
-		
-		return entries;
-		
+	/**
+	 * Make a snapshot from parsed entries.  Only load uses this outside of the tests
+	 * @param entries The settings, with anything missing taking its default
+	 */
+	ConfigurationFile(Map<String,String> entries) {
+		// Whatever the file doesn't set gets the default
+		HashMap<String,String> merged = new HashMap<String,String>(configDefaults);
+		merged.putAll(entries);
+		config = Collections.unmodifiableMap(merged);
 	}
 	
 	public String getConfigValue(String key) {
 		return config.get(key);
 	}
+	
+	/**
+	 * @param key The configuration key
+	 * @return Whether the value is yes
+	 */
+	public boolean getBooleanValue(String key) {
+		return config.get(key).toLowerCase().equals("yes");
+	}
+	
+	/**
+	 * @param key The configuration key
+	 * @return The value as a number
+	 * @throws NumberFormatException If the value isn't a number
+	 */
+	public int getIntValue(String key) throws NumberFormatException {
+		return Integer.parseInt(config.get(key));
+	}
+	
+	/**
+	 * Get a configuration value that is a size in bytes, optionally suffixed
+	 * with k, m or g
+	 * @param key The configuration key
+	 * @return The size in bytes
+	 * @throws NumberFormatException If the value isn't a valid size
+	 */
+	public long getSizeValue(String key) throws NumberFormatException {
+		String value = config.get(key).toLowerCase();
+		long multiplier = 1;
+		if (value.endsWith("k"))
+			multiplier = 1024L;
+		else if (value.endsWith("m"))
+			multiplier = 1024L * 1024;
+		else if (value.endsWith("g"))
+			multiplier = 1024L * 1024 * 1024;
+		
+		if (multiplier != 1)
+			value = value.substring(0, value.length() - 1);
+		return Long.parseLong(value) * multiplier;
+	}
 
 }
@@ -0,0 +1,216 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Reloads jftpd.conf while the server is running, on a SIGHUP or when asked over JMX.  The
+ * new file is parsed into a snapshot and handed to everything that can change without a
+ * restart, and only once all of them have taken it is it published as the current
+ * configuration.  If any of them refuses it, they are all handed the old snapshot again and
+ * the server keeps running as it was.  Reloads run one at a time on their own thread, so a
+ * slow one doesn't hold up the shared timer.
+ *
+ * Session limits, rate limits, the credential file settings, the shared caches and the upload
+ * durability policy apply straight away.  A cache is only replaced, and starts out empty, if
+ * its size changes.  The longest command line and the data transfer settings apply to sessions
+ * that start after the reload, and sessions that are already running keep the ones they
+ * started with.  Anything else, like the engine, the thread pools, the storage and the logs,
+ * is only read at startup
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class ConfigurationReloader implements ConfigurationReloaderMBean {
+	private static final Logger logger = Logger.getGlobal();
+
+	private static final String DOMAIN = "edu.dasizeman.jftpserver";
+	private static final String RELOAD_SIGNAL = "HUP";
+
+	private static final ConfigurationReloader instance = new ConfigurationReloader();
+
+	private final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "jftpd-reload");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	// Only changed on the reload thread
+	private volatile long reloads = 0;
+	private volatile long failedReloads = 0;
+	private volatile String lastReloadError = "";
+
+	private ConfigurationReloader() {
+	}
+
+	public static ConfigurationReloader getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Hand a configuration to everything that can change while we are running.  Called with
+	 * the configuration we start with, and again on every reload
+	 * @param configFile The configuration
+	 * @throws IOException If something the configuration names can't be read
+	 * @throws IllegalArgumentException If a setting isn't valid
+	 */
+	public static void apply(ConfigurationFile configFile) throws IOException, IllegalArgumentException {
+		ControlConnectionHandler.configure(configFile);
+		FTPLineDecoder.configure(configFile);
+		AdmissionControl.configure(configFile);
+		BandwidthShaper.configure(configFile);
+		CredentialManager.configure(configFile);
+		FileCache.configure(configFile);
+		ListingCache.configure(configFile);
+		PathResolver.configure(configFile);
+		StagedUpload.configure(configFile);
+	}
+
+	/**
+	 * Start reloading on SIGHUP and over JMX
+	 */
+	public static void install() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(DOMAIN + ":type=Configuration"));
+		} catch (JMException e) {
+			EventLogger.logGeneralException(logger, "JMX registration", e);
+		}
+
+		try {
+			handleSignal(RELOAD_SIGNAL, new Runnable() {
+				@Override
+				public void run() {
+					instance.worker.execute(new Runnable() {
+						@Override
+						public void run() {
+							instance.reloadNow();
+						}
+					});
+				}
+			});
+		} catch (ReflectiveOperationException e) {
+			// There is no SIGHUP on this platform, no sun.misc.Signal on this JVM, or the
+			// JVM was told to leave signals alone
+			EventLogger.logEvent(logger, "Configuration", "SIGHUP is not available, reload over JMX instead");
+		}
+	}
+
+	/**
+	 * Reload on the reload thread, and wait for it
+	 */
+	@Override
+	public String reload() {
+		try {
+			return worker.submit(new Callable<String>() {
+				@Override
+				public String call() {
+					return reloadNow();
+				}
+			}).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return "Interrupted waiting for the reload";
+		} catch (ExecutionException e) {
+			EventLogger.logGeneralException(logger, "Configuration reload", e);
+			return String.format("Reload failed: %s", e.getCause());
+		}
+	}
+
+	/**
+	 * Run a task when the process gets a signal.  sun.misc.Signal is the only way to catch
+	 * one, and it isn't part of the platform, so it is only reached through reflection, the same
+	 * way ExecutionManager reaches virtual threads
+	 * @param name The signal's name, without SIG
+	 * @param task What to run, on the JVM's signal thread, so it should hand any real work off
+	 * @throws ReflectiveOperationException If the signal can't be caught here
+	 */
+	private static void handleSignal(String name, final Runnable task) throws ReflectiveOperationException {
+		Class<?> signalClass = Class.forName("sun.misc.Signal");
+		Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+		Object signal = signalClass.getConstructor(String.class).newInstance(name);
+		Object handler = Proxy.newProxyInstance(ConfigurationReloader.class.getClassLoader(), new Class<?>[]{handlerClass},
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getDeclaringClass() == Object.class)
+							return method.invoke(this, args);
+						task.run();
+						return null;
+					}
+				});
+		signalClass.getMethod("handle", signalClass, handlerClass).invoke(null, signal, handler);
+	}
+
+	/**
+	 * Reload on the calling thread, which is always the reload thread
+	 * @return What happened
+	 */
+	private String reloadNow() {
+		ConfigurationFile previous;
+		ConfigurationFile next;
+		try {
+			previous = ConfigurationFile.getInstance();
+			next = ConfigurationFile.load();
+		} catch (IOException | IllegalArgumentException e) {
+			return failed(e);
+		}
+
+		try {
+			apply(next);
+		} catch (IOException | IllegalArgumentException e) {
+			try {
+				apply(previous);
+			} catch (IOException | IllegalArgumentException again) {
+				// It was taken once already, so this would only be the credential file going away
+				EventLogger.logGeneralException(logger, "Configuration rollback", again);
+			}
+			return failed(e);
+		}
+
+		ConfigurationFile.publish(next);
+		reloads++;
+		EventLogger.logEvent(logger, "Configuration", "Reloaded jftpd.conf");
+		return "Reloaded";
+	}
+
+	private String failed(Exception e) {
+		failedReloads++;
+		lastReloadError = e.toString();
+		EventLogger.logGeneralException(logger, "Configuration reload", e);
+		return String.format("Kept the old configuration: %s", e.toString());
+	}
+
+	/*
+	 * MBean attributes
+	 */
+
+	@Override
+	public long getReloads() {
+		return reloads;
+	}
+
+	@Override
+	public long getFailedReloads() {
+		return failedReloads;
+	}
+
+	@Override
+	public String getLastReloadError() {
+		return lastReloadError;
+	}
+
+}
@@ -0,0 +1,15 @@
+package edu.dasizeman.jftpserver;
+
+/**
+ * What JMX shows about configuration reloads, and a way to ask for one
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public interface ConfigurationReloaderMBean {
+	// Reload jftpd.conf now, the same as sending the server a SIGHUP.  Returns what happened
+	String reload();
+
+	long getReloads();
+	long getFailedReloads();
+	String getLastReloadError();
+}
@@ -1,6 +1,7 @@
 package edu.dasizeman.jftpserver;
 
 import java.net.Socket;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Abstract handler for a TCP connection.  Needs to be redesigned since the 
@@ -15,10 +16,11 @@ public abstract class ConnectionHandler implements Runnable {
 	/**
 	 * Start the handler thread with the given connection socket
 	 * @param socket The socket with an established TCP connection to handle
+	 * @throws RejectedExecutionException If there is no thread for it, see ExecutionManager
 	 */
-	public void start(Socket socket) {
+	public void start(Socket socket) throws RejectedExecutionException {
 		this.socket = socket;
-		new Thread(this).start();
+		ExecutionManager.getInstance().execute(ExecutionManager.TaskType.CONTROL, this);
 	}
 	
 	@Override
@@ -1,24 +1,28 @@
 package edu.dasizeman.jftpserver;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.net.NetworkInterface;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.Enumeration;
+import java.util.EnumSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -31,66 +35,216 @@ public class ControlConnectionHandler extends ConnectionHandler {
 	
 	// Telnet end-of-line for delimiting responses
 	private static final String TELNET_EOL = "\r\n";
+	private static final byte[] TELNET_EOL_BYTES = TELNET_EOL.getBytes(StandardCharsets.US_ASCII);
+	
+	// Initial size of the buffer replies are collected in before they are written.  It is
+	// shrunk back down after an unusually big reply
+	private static final int INITIAL_REPLY_BUFFER_SIZE = 512;
+	private static final int MAX_RETAINED_REPLY_BUFFER_SIZE = 16 * 1024;
+	
+	// Replies are written once this much is waiting, even in the middle of pipelined commands, so
+	// a client that sends commands without reading the replies can't make the buffer grow
+	private static final int MAX_PENDING_REPLY_SIZE = 4 * 1024;
 	
 	// Welcome message
 	private static final String WELCOME_MSG = "Welcome to JFTP, homie.";
 	
-	// The configuration option for the accounts file
-	private static final String ACCT_FILE_CONFIG_KEY = "usernamefile";
+	// The configuration options we read
 	private static final String ALLOW_ACTIVE_CONFIG_KEY = "port_mode";
 	private static final String ALLOW_PASSIVE_CONFIG_KEY = "pasv_mode";
 	private static final String FILE_ROOT_CONFIG_KEY = "file_root";
+	private static final String STORAGE_CONFIG_KEY = "storage";
+	private static final String ALLOW_UPLOADS_CONFIG_KEY = "allow_uploads";
+	private static final String ANONYMOUS_UPLOADS_CONFIG_KEY = "anonymous_uploads";
+	private static final String DATA_CONNECTION_TIMEOUT_CONFIG_KEY = "data_connection_timeout";
+	private static final String ACTIVE_CONNECT_TIMEOUT_CONFIG_KEY = "active_connect_timeout";
+	
+	// What new sessions get from the configuration, replaced as a whole on reload
+	private static volatile Settings currentSettings = null;
 	
 	// This is just for sending the help message
 	private static final String[] SUPPORTED_CMDS = new String[]{"USER", "PASS", "CWD", "CDUP", "QUIT", "PASV", "EPSV",
-			"PORT", "EPRT", "RETR", "PWD", "LIST", "HELP", "TYPE", "NOOP"};
+			"PORT", "EPRT", "RETR", "STOR", "APPE", "ALLO", "REST", "RANG", "SIZE", "FEAT", "PWD", "LIST", "NLST", "MLSD",
+			"MLST", "HELP", "TYPE", "NOOP"};
+	
+	// Commands that may block, checking a password hash or touching the filesystem.  The NIO
+	// engine hands these to a worker so they don't hold up the other sessions on the reactor
+	private static final EnumSet<FTPCommand> BLOCKING_CMDS = EnumSet.of(FTPCommand.PASS, FTPCommand.CWD,
+			FTPCommand.CDUP, FTPCommand.RETR, FTPCommand.STOR, FTPCommand.APPE, FTPCommand.SIZE, FTPCommand.LIST,
+			FTPCommand.NLST, FTPCommand.MLSD, FTPCommand.MLST);
+	
+	// Extensions we advertise in response to FEAT
+	private static final String[] FEATURES = new String[]{"REST STREAM", "RANG STREAM", "SIZE",
+			"MLST type*;size*;modify*;unix.mode*;"};
 	
 	// Logger to log events
 	private static final Logger logger = Logger.getGlobal();
 	
+	// Runs what happens once a data connection is made or given up on.  Connections are
+	// completed on the connector's selector thread or the timer, which every session shares,
+	// and the reply to a failure can block on a client that isn't reading its control connection
+	private static final Executor dataConnectionCallbacks = new Executor() {
+		@Override
+		public void execute(Runnable task) {
+			try {
+				ExecutionManager.getInstance().execute(ExecutionManager.TaskType.DATA, task);
+			} catch (RejectedExecutionException e) {
+				// We are shutting down, so there is nobody left to hold up
+				task.run();
+			}
+		}
+	};
+	
 	// Reference to socket we are handling, for convenience.  This should not be changed during the lifetime
 	// of this thread
 	private Socket socket;
 	
-	// Connection input and output streams.  I use readline so its possible you could crash the server with an absurdly long 
-	// command pdu
-	private BufferedReader socketIn;
-	private BufferedWriter socketOut;
+	// What this connection is logged as, worked out once up front
+	private String connectionID;
+	
+	// Connection input and output streams.  Commands are read as bytes into a buffer that holds
+	// one line of the longest length we allow, and parsed where they were read
+	private InputStream socketIn;
+	private OutputStream socketOut;
+	private FTPLineDecoder lineDecoder;
+	
+	// Reused for every command on this connection
+	private final FTPCommandLine commandLine = new FTPCommandLine();
+	
+	// Serializes replies from this thread and data connection threads.  This is a lock rather
+	// than a synchronized method so that a blocked write doesn't pin a virtual thread's carrier
+	private final ReentrantLock writeLock = new ReentrantLock();
 	
-	// For breaking out of the handle loop
-	private boolean alive = true;
+	// Replies waiting to be written, guarded by writeLock.  Replies to pipelined commands are
+	// collected here until every command that has been read is handled, then written at once.
+	// Writes block, or queue in the NIO session which stops reading until they are done, so a
+	// client that doesn't read its replies stops getting its commands handled
+	private byte[] replyBuffer = new byte[INITIAL_REPLY_BUFFER_SIZE];
+	private int replyLength = 0;
+	
+	// The thread that reads and handles our commands.  Its replies wait in the reply buffer until
+	// it runs out of commands to handle, while replies from any other thread are written straight away
+	private volatile Thread commandThread;
+	
+	// For breaking out of the handle loop.  Data connection threads clear it when a reply fails
+	private volatile boolean alive = true;
+	
+	// Whether this session has been counted as active in the metrics
+	private boolean counted = false;
+	
+	// Our place under the session limits, given back when the connection closes
+	private final AdmissionControl.Admission admission;
+	
+	// Our share of the bandwidth, kept across all of our transfers
+	private final TokenBucket sendBucket = new TokenBucket();
 	
 	// Authentication for this connection
 	private String username = null;
 	private String password = null;
 	
-	// The type of data connection
-	private enum DataConnectionType {
-		ACTIVE,
-		PASSIVE
-	}
-	// We use the is to make sure that the user has issued a port or pasv command
-	// before doing operations with the data connection
-	private DataConnectionType dataConnectionType = null;
+	// The data connection for the next transfer, set up by PORT or PASV.  We use this to make
+	// sure that the user has issued one of them before doing operations with the data connection.
+	// In passive mode it is the connection we expect on our leased listener, which the client may
+	// make any time after our PASV reply.  In active mode it is our connect to the client, started
+	// as soon as PORT is accepted so that it overlaps the client sending its transfer command
+	private CompletableFuture<SocketChannel> pendingDataConnection;
 	
-	// Current data listener, used for the time when the user has called pasv but not connected
-	//yet
-	private ServerSocket dataListener;
+	// Current data listener leased from the pool, in passive mode
+	private PassivePortPool.Lease passiveLease;
 	
-	// The actual socket used for data transfers
-	private Socket dataConnection;
 	
+	// Filesystem manager 
+	private FilesystemManager filesystem;
 	
-	// Port and host for making an active data connection
-	private int activePort;
-	private String activeHostString;
+	// Set when this connection is driven by a reactor in the NIO engine instead of
+	// its own thread.  Replies are queued on the session rather than written to socketOut
+	private NIOControlSession session;
 	
+	// The settings this session started with.  A reload only changes them for new sessions
+	private Settings settings;
 	
-	// Filesystem manager 
-	private FilesystemManager filesystem;
+	// Size the client announced with ALLO for its next upload, or 0
+	private long allocateHint = 0;
+	
+	// Byte range for the next transfer, set by REST and RANG.  restartEnd is exclusive,
+	// or -1 for the end of the file
+	private long restartOffset = 0;
+	private long restartEnd = -1;
 	
-	// For restricting data transfer modes
-	boolean allowPassive = false, allowActive = false;
+	/**
+	 * The per-session settings from one configuration snapshot, parsed once for every session
+	 * that starts while it is current
+	 */
+	static final class Settings {
+		// For restricting data transfer modes
+		final boolean allowActive;
+		final boolean allowPassive;
+		
+		// For restricting uploads
+		final boolean allowUploads;
+		final boolean allowAnonymousUploads;
+		
+		// How long a transfer waits for its data connection, and how long we give an active
+		// connect to the client, in seconds
+		final long dataConnectionTimeout;
+		final long activeConnectTimeout;
+		
+		// Where sessions are served from
+		final Storage storage;
+		
+		Settings(ConfigurationFile configFile) throws IOException, NumberFormatException, IllegalArgumentException {
+			allowActive = configFile.getBooleanValue(ALLOW_ACTIVE_CONFIG_KEY);
+			allowPassive = configFile.getBooleanValue(ALLOW_PASSIVE_CONFIG_KEY);
+			allowUploads = configFile.getBooleanValue(ALLOW_UPLOADS_CONFIG_KEY);
+			allowAnonymousUploads = configFile.getBooleanValue(ANONYMOUS_UPLOADS_CONFIG_KEY);
+			dataConnectionTimeout = Long.parseLong(configFile.getConfigValue(DATA_CONNECTION_TIMEOUT_CONFIG_KEY));
+			activeConnectTimeout = Long.parseLong(configFile.getConfigValue(ACTIVE_CONNECT_TIMEOUT_CONFIG_KEY));
+			
+			// The memory storage is loaded once at startup, so it can't be switched to on reload
+			String storageType = configFile.getConfigValue(STORAGE_CONFIG_KEY);
+			if (storageType.equalsIgnoreCase("memory")) {
+				storage = MemoryStorage.getInstance();
+				if (storage == null)
+					throw new IllegalArgumentException("storage=memory needs a restart to take effect");
+			} else if (storageType.equalsIgnoreCase("local")) {
+				storage = new LocalStorage(LocalStorage.resolveRoot(configFile.getConfigValue(FILE_ROOT_CONFIG_KEY)));
+			} else {
+				throw new IllegalArgumentException(String.format("Unknown storage in the config: %s", storageType));
+			}
+			
+			if (!allowActive && !allowPassive)
+				throw new IllegalArgumentException("At least one of port_mode and pasv_mode must be enabled in the config");
+		}
+	}
+	
+	/**
+	 * Set the settings new sessions start with from the configuration file
+	 * @param configFile The loaded configuration
+	 * @throws IOException If the root directory can't be used
+	 * @throws NumberFormatException If a timeout isn't a number
+	 * @throws IllegalArgumentException If both data transfer modes are turned off, or the storage can't be used
+	 */
+	public static void configure(ConfigurationFile configFile) throws IOException, NumberFormatException, IllegalArgumentException {
+		currentSettings = new Settings(configFile);
+	}
+	
+	/**
+	 * @param admission The session's place under the session limits, released once the
+	 * connection is closed
+	 */
+	public ControlConnectionHandler(AdmissionControl.Admission admission) {
+		this.admission = admission;
+	}
+	
+	/**
+	 * A handler that isn't connected to anything and writes its replies to the given
+	 * stream, so the reply path can be benchmarked on its own
+	 * @param out Where to write replies
+	 */
+	ControlConnectionHandler(OutputStream out) {
+		this.admission = null;
+		this.socketOut = out;
+	}
 	
 	/**
 	 * Connection initialization stuff
@@ -98,32 +252,28 @@ public class ControlConnectionHandler extends ConnectionHandler {
 	 */
 	private boolean init() {
 		try {
-			// Get the config file
-			ConfigurationFile configFile = ConfigurationFile.getInstance();
-			
-			// Load the credential file
-			CredentialManager.getInstance().loadCredentialFile(configFile.getConfigValue(ACCT_FILE_CONFIG_KEY));
-			
-			// Check if data transfer modes have been restricted in the config
-			if (configFile.getConfigValue(ALLOW_ACTIVE_CONFIG_KEY).toLowerCase().equals("yes")) 
-				allowActive = true;
-			
-			if(configFile.getConfigValue(ALLOW_PASSIVE_CONFIG_KEY).toLowerCase().equals("yes"))
-				allowPassive = true;
-			
-			if (!allowActive && !allowPassive) {
-				EventLogger.logGeneralException(logger, "Server init", new Exception("At least one of port_mode and pasv_mode must be enabled in the config"));
-				System.exit(1);
+			// Take the current settings, parsed once when the configuration was loaded
+			settings = currentSettings;
+			if (settings == null) {
+				configure(ConfigurationFile.getInstance());
+				settings = currentSettings;
 			}
 
-			// This is where we would set a different serving root directory if we wanted, for now it just serves from the same
-			// directory as the JAR if we don't specify anything
-			filesystem = new FilesystemManager(configFile.getConfigValue(FILE_ROOT_CONFIG_KEY));
+			// Serve from the storage in the settings
+			filesystem = new FilesystemManager(settings.storage);
 			
-			this.socketIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-			this.socketOut = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-		} catch (IOException e) {
-			EventLogger.logConnectionException(logger, socket, e);
+			// Reactor driven sessions do their own reading and writing
+			if (session == null) {
+				this.socketIn = socket.getInputStream();
+				this.socketOut = socket.getOutputStream();
+				this.lineDecoder = new FTPLineDecoder();
+				
+				// Replies are already coalesced in the reply buffer, so Nagle would only hold a reply
+				// back until the one before it is acknowledged
+				socket.setTcpNoDelay(true);
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			EventLogger.logConnectionException(logger, connectionID, e);
 			
 			// Terminate this connection thread
 			return false;
@@ -133,92 +283,181 @@ public class ControlConnectionHandler extends ConnectionHandler {
 		return true;
 	}
 	
-	// This closes the control connection.  Only ever called directly from the end of the main handle loop.
+	// This closes the control connection.  Only ever called directly from the end of handle.
 	// To kill the connection we can set alive = false from somewhere in this class
 	private void close() {
+		flushReplies();
+		connectionClosed();
 		try {
 			socket.getInputStream().close();
 			socket.getOutputStream().close();
 			socket.close();
 		} catch (IOException e) {
-			EventLogger.logConnectionException(logger, socket, e);
+			EventLogger.logConnectionException(logger, connectionID, e);
 		}
 	}
 
 	@Override
 	public void handle(Socket socket) {
 		this.socket = socket;
-		if (!init())
+		this.connectionID = EventLogger.getConnectionID(socket);
+		if (!init()) {
+			close();
 			return;
-
-		// Send welcome message
-		sendFTPResponse(FTPResponse.NEW_USER_SERVICE_RDY, WELCOME_MSG);
-		
-		// Handle requests until the user leaves or something goes wrong
-		while(alive) {
-			String message = getFTPPDU();
+		}
+		try {
+			sessionOpened();
+			commandThread = Thread.currentThread();
+	
+			// Send welcome message
+			sendFTPResponse(FTPResponse.NEW_USER_SERVICE_RDY, WELCOME_MSG);
 			
-			// Die if a badly delimited or too large message is received
-			if (message == null) {
-				EventLogger.logConnectionException(logger, socket, new Exception("Bad FTP PDU received."));
-				sendFTPResponse(FTPResponse.UNRECOGNIZED_CMD, null);
-				continue;
+			// Handle requests until the user leaves or something goes wrong
+			while(alive) {
+				readFTPPDU();
 			}
-			
-			handleFTPCommand(message);
+		} catch (RuntimeException e) {
+			EventLogger.logConnectionException(logger, connectionID, e);
+		} finally {
+			// Clean up the connection and die, giving back our place under the session limits
+			close();
 		}
-		
-		// Clean up the connection and die
-		close();
 	}
 	
-	
 	/**
-	 * A lil' wrapper for FTP commands we receive.  Parses
-	 * into the actual command enum and a string array of 
-	 * space delimited arguments.  command == null if parsing
-	 * fails
-	 * @author Dave Sizer <dave@sizetron.net>
-	 *
+	 * Attach this handler to a session owned by a reactor in the NIO engine.  Instead of
+	 * looping in its own thread, the reactor feeds us PDUs through handleFTPPDU as they arrive
+	 * @param session The session that owns the channel we are handling
+	 * @return If the initialization was successful
 	 */
-	private class FTPCommandData {
-		public FTPCommand command;
-		public String[] args;
+	boolean attach(NIOControlSession session) {
+		this.session = session;
+		this.socket = session.getSocket();
+		this.connectionID = EventLogger.getConnectionID(socket);
+		if (!init())
+			return false;
+		sessionOpened();
 		
-		public FTPCommandData(String commandStr) {
-			String[] tokens = commandStr.split(" ");
-			if (tokens.length < 1) {
-				command = null;
-				return;
-			}
-			
-			command = FTPCommand.getByName(tokens[0]);
-			args = Arrays.copyOfRange(tokens, 1, tokens.length);
+		// The reactor handles all of our input, and the session flushes our replies once it is done
+		commandThread = Thread.currentThread();
+		sendFTPResponse(FTPResponse.NEW_USER_SERVICE_RDY, WELCOME_MSG);
+		return true;
+	}
+	
+	/**
+	 * Release anything the session is holding on to once the control connection is closed
+	 */
+	void connectionClosed() {
+		abandonDataConnection();
+		if (admission != null)
+			admission.release();
+		if (counted) {
+			ServerMetrics.getInstance().sessionClosed();
+			counted = false;
 		}
 	}
 	
 	/**
-	 * Parses an incoming FTP command and sends the appropriate response
-	 * @param command The command to process
+	 * Count this session as active once it is up and running
 	 */
-	private void handleFTPCommand(String command) {
-		
-		// Do some preliminary parsing of the input
-		FTPCommandData commandData = new FTPCommandData(command);
+	private void sessionOpened() {
+		ServerMetrics.getInstance().sessionOpened();
+		counted = true;
+	}
+	
+	/**
+	 * @return A pacer that holds transfers to our bandwidth limits
+	 */
+	BandwidthShaper.Pacer getSendPacer() {
+		return BandwidthShaper.getInstance().pacer(username, sendBucket);
+	}
+	
+	/**
+	 * @return What this connection is logged as
+	 */
+	String getConnectionID() {
+		return connectionID;
+	}
+	
+	/**
+	 * Whether this control connection should be kept open
+	 * @return False once the connection has been asked to close
+	 */
+	boolean isAlive() {
+		return alive;
+	}
+	
+	/**
+	 * Parse a single PDU read from the control connection and send the appropriate response
+	 * @param buffer The buffer the PDU was read into, which must not change until this returns
+	 * @param offset Where the PDU starts
+	 * @param length The length of the PDU, without the telnet EOL
+	 */
+	void handleFTPPDU(byte[] buffer, int offset, int length) {
+		final long start = System.nanoTime();
+		EventLogger.logNetworkDataReceived(logger, connectionID, buffer, offset, length);
 		
 		// Is this command valid?
-		if (commandData.command == null) {
+		final FTPCommand command = commandLine.parse(buffer, offset, length);
+		if (command == null) {
 			sendFTPResponse(FTPResponse.UNIMPLEMENTED_CMD, null);
+			ServerMetrics.getInstance().commandHandled(null, System.nanoTime() - start);
 			return;
 		}
 		
+		// A reactor can't wait on anything, so commands that might are handled by a worker.  The
+		// session doesn't read again until it is done, so the line stays where it is in the buffer
+		if (session != null && BLOCKING_CMDS.contains(command)) {
+			session.offload(new Runnable() {
+				@Override
+				public void run() {
+					handleFTPCommand(command, start);
+				}
+			});
+			return;
+		}
+		handleFTPCommand(command, start);
+	}
+	
+	/**
+	 * Handle a parsed command and count it
+	 * @param command The command in commandLine
+	 * @param start When the PDU was received, in nanoTime
+	 */
+	private void handleFTPCommand(FTPCommand command, long start) {
+		// A bug in one command shouldn't take the whole session down with it
+		try {
+			dispatchFTPCommand(commandLine);
+		} catch (RuntimeException e) {
+			EventLogger.logConnectionException(logger, connectionID, e);
+			sendFTPResponse(FTPResponse.SERVER_ERROR, null);
+		}
+		ServerMetrics.getInstance().commandHandled(command, System.nanoTime() - start);
+	}
+	
+	/**
+	 * Reply to a PDU that was longer than we allow.  None of it was kept, so all we can do
+	 * is tell the client
+	 * @param maxLength The longest PDU we allow
+	 */
+	void handleOversizeFTPPDU(int maxLength) {
+		EventLogger.logEvent(logger, connectionID, String.format("Skipped a command longer than %d bytes", maxLength));
+		sendFTPResponse(FTPResponse.UNRECOGNIZED_CMD, String.format("Command line too long, the limit is %d bytes.", maxLength));
+		ServerMetrics.getInstance().commandHandled(null, 0);
+	}
+	
+	/**
+	 * Send a parsed command to the method that handles it
+	 * @param commandData The command to handle
+	 */
+	private void dispatchFTPCommand(FTPCommandLine commandData) {
 		// Make sure we are authenticated.  If the authentication helper
 		// has returned false, authentication is not complete and it has
 		// sent some response related to authenticating, so we bail here
 		if (!checkAuthentication(commandData))
 			return;
 		
-		switch (commandData.command) {
+		switch (commandData.getCommand()) {
 		case EPRT:
 			doEPRT(commandData);
 			break;
@@ -228,6 +467,25 @@ public class ControlConnectionHandler extends ConnectionHandler {
 		case RETR:
 			sendFile(commandData);
 			break;
+		case STOR:
+		case APPE:
+			receiveFile(commandData);
+			break;
+		case ALLO:
+			doALLO(commandData);
+			break;
+		case REST:
+			doREST(commandData);
+			break;
+		case RANG:
+			doRANG(commandData);
+			break;
+		case SIZE:
+			doSIZE(commandData);
+			break;
+		case FEAT:
+			sendFTPMultilineResponse(FTPResponse.STATUS_REPLY, "Features:", FEATURES, "End");
+			break;
 		case TYPE:
 				// I am convinced that type doesn't matter on the server side, since
 				// I just dump the whole file to the socket.  It does seem to matter
@@ -242,27 +500,22 @@ public class ControlConnectionHandler extends ConnectionHandler {
 			doPASV(commandData);
 			break;
 		case CDUP:
-			// Add the .. arg and call the CWD handler
-			commandData.args = new String[]{".."};
-			doCWD(commandData);
+			changeDirectory("..");
 			break;
 		case CWD:
 			doCWD(commandData);
 			break;
 		case LIST:
-			Socket dataSocket = getDataSocket();
-			if (dataSocket != null) {
-				// Create a String stream for the directory listing
-				InputStream stringStream = new ByteArrayInputStream(filesystem.ls().getBytes());
-				
-				// Send the listing over the socket
-				sendFTPResponse(FTPResponse.ABOUT_TO_OPEN_DATA, "Here comes the directory listing.");
-				new DataConnectionHandler().startSend(dataSocket, stringStream, this);
-				dataConnectionType = null;
-				break;
-			} 
-			sendFTPResponse(FTPResponse.CANT_OPEN_DATA_CONN, "Use PORT or PASV first.");
-			dataConnectionType = null;
+			sendListing(DirectoryLister.Format.LIST);
+			break;
+		case NLST:
+			sendListing(DirectoryLister.Format.NLST);
+			break;
+		case MLSD:
+			sendListing(DirectoryLister.Format.MLSD);
+			break;
+		case MLST:
+			doMLST(commandData);
 			break;
 		case PWD:
 			sendFTPResponse(FTPResponse.PATH_CREATED, String.format("%s", filesystem.pwd()));
@@ -288,201 +541,517 @@ public class ControlConnectionHandler extends ConnectionHandler {
 	 * mine doesn't
 	 * @param commandData The command info including the file name
 	 */
-	private void sendFile(FTPCommandData commandData) {
-		if (commandData.args.length < 1) {
+	private void sendFile(FTPCommandLine commandData) {
+		if (commandData.argCount() < 1) {
 			sendFTPResponse(FTPResponse.BAD_CMD_PARAMETERS, "Please specify a file");
 			return;
 		}
 		// Join into a single file name argument
-		String fileName = String.join(" ", commandData.args);
+		String fileName = commandData.rest();
 		
-		// Try to get a stream from the file manager
-		FileInputStream fileStream = filesystem.getFileStream(fileName);
-		if (fileStream == null) {
+		// A REST or RANG only applies to the transfer that follows it
+		long start = restartOffset;
+		long end = restartEnd;
+		restartOffset = 0;
+		restartEnd = -1;
+		
+		// Serve popular files from the cache, otherwise try to get a channel from the file manager
+		ByteBuffer cachedFile = filesystem.getCachedFile(fileName);
+		FileChannel fileChannel = null;
+		long fileSize;
+		if (cachedFile == null) {
+			fileChannel = filesystem.getFileChannel(fileName);
+			if (fileChannel == null) {
+				sendFTPResponse(FTPResponse.FILE_UNAVAIL, "File not available");
+				return;
+			}
+			try {
+				fileSize = fileChannel.size();
+			} catch (IOException e) {
+				EventLogger.logGeneralException(logger, "Opening file", e);
+				sendFTPResponse(FTPResponse.FILE_UNAVAIL, "File not available");
+				closeQuietly(fileChannel);
+				return;
+			}
+		} else {
+			fileSize = cachedFile.remaining();
+		}
+		
+		if (start > fileSize) {
+			sendFTPResponse(FTPResponse.INVALID_REST, String.format("Restart offset is past the end of the file (%d bytes).", fileSize));
+			if (fileChannel != null)
+				closeQuietly(fileChannel);
+			return;
+		}
+		
+		// Cached files are sent from a slice of the shared buffer
+		if (cachedFile != null) {
+			cachedFile.position((int)start);
+			if (end >= 0 && end < fileSize)
+				cachedFile.limit((int)end);
+		}
+		
+		// Let the client know we are about to send the file, and send it once the data connection is up
+		final ByteBuffer sendBuffer = cachedFile;
+		final FileChannel sendChannel = fileChannel;
+		final long sendStart = start, sendEnd = end;
+		startDataTransfer(String.format("%s incoming.", fileName), new DataTransfer() {
+			@Override
+			void start(Socket dataSocket) {
+				if (sendBuffer != null)
+					new DataConnectionHandler().startSend(dataSocket, sendBuffer, ControlConnectionHandler.this);
+				else
+					new DataConnectionHandler().startSend(dataSocket, sendChannel, sendStart, sendEnd, ControlConnectionHandler.this);
+			}
+			
+			@Override
+			void abort() {
+				if (sendChannel != null)
+					closeQuietly(sendChannel);
+			}
+		});
+	}
+	
+	/**
+	 * Send the listing of the working directory over the data connection.  Any arguments, like
+	 * the ls flags some clients send with LIST, are ignored
+	 * @param format The listing format
+	 */
+	private void sendListing(DirectoryLister.Format format) {
+		final DirectoryLister lister = filesystem.list(format);
+		startDataTransfer("Here comes the directory listing.", new DataTransfer() {
+			@Override
+			void start(Socket dataSocket) {
+				new DataConnectionHandler().startSend(dataSocket, lister, ControlConnectionHandler.this);
+			}
+		});
+	}
+	
+	/**
+	 * Send the facts for a single file over the control connection
+	 * @param commandData The command info including the optional file name
+	 */
+	private void doMLST(FTPCommandLine commandData) {
+		String fileName = commandData.rest();
+		String facts = filesystem.describe(fileName);
+		if (facts == null) {
 			sendFTPResponse(FTPResponse.FILE_UNAVAIL, "File not available");
 			return;
 		}
-		// Try to get a valid data connection
-		// TODO We should probably wrap this so we don't have to repeat it for every
-		// data command
-		Socket dataSocket = getDataSocket();
-		if (dataSocket == null) {
+		sendFTPMultilineResponse(FTPResponse.FILE_ACTION_COMPLETED, String.format("Listing %s", fileName.isEmpty() ? "." : fileName),
+				new String[]{facts}, "End");
+	}
+	
+	
+	/**
+	 * Handles STOR and APPE.  The upload is collected by the storage, in a temp file or in memory, and
+	 * only replaces the target once the whole transfer has made it
+	 * @param commandData The command info including the file name
+	 */
+	private void receiveFile(FTPCommandLine commandData) {
+		if (!settings.allowUploads) {
+			sendFTPResponse(FTPResponse.FILE_UNAVAIL, "Uploads are disabled on this server.");
+			return;
+		}
+		if (username.equals(CredentialManager.ANON_USERNAME) && !settings.allowAnonymousUploads) {
+			sendFTPResponse(FTPResponse.ACCT_NEEDED_TO_STORE, null);
+			return;
+		}
+		if (commandData.argCount() < 1) {
+			sendFTPResponse(FTPResponse.BAD_CMD_PARAMETERS, "Please specify a file");
+			return;
+		}
+		// Join into a single file name argument
+		String fileName = commandData.rest();
+		
+		long allocate = allocateHint;
+		allocateHint = 0;
+		
+		// STOR after REST resumes an upload, keeping the file up to the restart offset
+		long keep = restartOffset;
+		restartOffset = 0;
+		restartEnd = -1;
+		if (commandData.getCommand() == FTPCommand.APPE) {
+			keep = Long.MAX_VALUE;
+		} else if (keep > Math.max(filesystem.getFileSize(fileName), 0)) {
+			sendFTPResponse(FTPResponse.INVALID_REST, "Restart offset is past the end of the file.");
+			return;
+		}
+		
+		final Upload upload = filesystem.openUpload(fileName, keep, allocate);
+		if (upload == null) {
+			sendFTPResponse(FTPResponse.BAD_FILE_NAME, null);
+			return;
+		}
+		
+		startDataTransfer(String.format("Ok to send %s.", fileName), new DataTransfer() {
+			@Override
+			void start(Socket dataSocket) {
+				new DataConnectionHandler().startReceive(dataSocket, upload, ControlConnectionHandler.this);
+			}
+			
+			@Override
+			void abort() {
+				upload.abort();
+			}
+		});
+	}
+	
+	/**
+	 * A transfer waiting for its data connection
+	 */
+	private abstract class DataTransfer {
+		/**
+		 * Start the transfer, handing it off to a data connection handler
+		 * @param dataSocket The connected data socket
+		 */
+		abstract void start(Socket dataSocket);
+		
+		/**
+		 * Clean up after a transfer that will never start
+		 */
+		void abort() {
+		}
+	}
+	
+	/**
+	 * Send the preliminary reply for a transfer and start it once its data connection is
+	 * made.  This doesn't wait for the connection, the control connection keeps being served
+	 * in the meantime.  Either way the client has to send PORT or PASV again for the next one
+	 * @param message The message for the 150 reply
+	 * @param transfer The transfer to start
+	 */
+	private void startDataTransfer(String message, final DataTransfer transfer) {
+		final CompletableFuture<SocketChannel> connection = takeDataConnection();
+		if (connection == null) {
 			sendFTPResponse(FTPResponse.CANT_OPEN_DATA_CONN, "Use PORT or PASV first.");
-			dataConnectionType = null;
+			transfer.abort();
 			return;
 		}
 		
-		// Let the client know we are about to send the file over the data connection, and kick off a thread
-		// to do so
-		sendFTPResponse(FTPResponse.ABOUT_TO_OPEN_DATA, String.format("%s incoming.", fileName));
-		new DataConnectionHandler().startSend(dataSocket, fileStream, this);
+		sendFTPResponse(FTPResponse.ABOUT_TO_OPEN_DATA, message);
+		
+		// Give up if the client never connects, or we can't connect to it
+		final ScheduledFuture<?> timeout = ExecutionManager.getTimer().schedule(new Runnable() {
+			@Override
+			public void run() {
+				connection.completeExceptionally(new TimeoutException("Timed out waiting for the data connection"));
+			}
+		}, settings.dataConnectionTimeout, TimeUnit.SECONDS);
+		
+		// This runs on a thread of our own, never on the thread that completed the connection.
+		// That is the connector's for a passive accept or an active connect, including an
+		// active connect that fails or times out, or the timer for the timeout above
+		connection.whenCompleteAsync(new BiConsumer<SocketChannel, Throwable>() {
+			@Override
+			public void accept(SocketChannel channel, Throwable failure) {
+				timeout.cancel(false);
+				if (failure != null) {
+					EventLogger.logConnectionException(logger, connectionID, new Exception("Data connection failed", failure));
+					sendFTPResponse(FTPResponse.CANT_OPEN_DATA_CONN, null);
+					transfer.abort();
+					return;
+				}
+				transfer.start(channel.socket());
+			}
+		}, dataConnectionCallbacks);
+	}
+	
+	/**
+	 * Remember the size the client announced for its next upload, so the file
+	 * storage can size it up front
+	 * @param commandData The command info including the size
+	 */
+	private void doALLO(FTPCommandLine commandData) {
+		try {
+			allocateHint = commandData.argAsLong(0);
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			sendFTPResponse(FTPResponse.BAD_CMD_PARAMETERS, null);
+			return;
+		}
+		sendFTPResponse(FTPResponse.COMMAND_OK, "ALLO accepted.");
+	}
+	
+	/**
+	 * Set the offset the next transfer starts from
+	 * @param commandData The command info including the offset
+	 */
+	private void doREST(FTPCommandLine commandData) {
+		long offset;
+		try {
+			offset = commandData.argAsLong(0);
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			sendFTPResponse(FTPResponse.BAD_CMD_PARAMETERS, null);
+			return;
+		}
+		if (offset < 0) {
+			sendFTPResponse(FTPResponse.INVALID_REST, null);
+			return;
+		}
 		
-		// Reset the type so they have to enter the connection method again (port or pasv)
-		// TODO this is probably another thing that should be wrapped so I don't forget to do it
-		// somewhere, as new commands are added
-		dataConnectionType = null;
+		restartOffset = offset;
+		restartEnd = -1;
+		sendFTPResponse(FTPResponse.FILE_ACTION_PENDING, String.format("Restarting at %d. Send STORE or RETRIEVE to initiate transfer.", offset));
 	}
 	
+	/**
+	 * Set an inclusive byte range for the next RETR, as in the FTP RANG draft.  This lets
+	 * a client pull disjoint segments of a file over several connections at once.
+	 * RANG 1 0 clears the range
+	 * @param commandData The command info including the start and end offsets
+	 */
+	private void doRANG(FTPCommandLine commandData) {
+		long start, end;
+		try {
+			start = commandData.argAsLong(0);
+			end = commandData.argAsLong(1);
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			sendFTPResponse(FTPResponse.BAD_CMD_PARAMETERS, null);
+			return;
+		}
+		
+		if (start == 1 && end == 0) {
+			restartOffset = 0;
+			restartEnd = -1;
+			sendFTPResponse(FTPResponse.FILE_ACTION_PENDING, "Byte range cleared.");
+			return;
+		}
+		if (start < 0 || end < start) {
+			sendFTPResponse(FTPResponse.INVALID_REST, "Invalid byte range.");
+			return;
+		}
+		
+		restartOffset = start;
+		restartEnd = end + 1;
+		sendFTPResponse(FTPResponse.FILE_ACTION_PENDING, String.format("Restarting at %d. End byte range at %d.", start, end));
+	}
+	
+	/**
+	 * Send the size of a file, so clients know what to resume from or how to split it up
+	 * @param commandData The command info including the file name
+	 */
+	private void doSIZE(FTPCommandLine commandData) {
+		if (commandData.argCount() < 1) {
+			sendFTPResponse(FTPResponse.BAD_CMD_PARAMETERS, "Please specify a file");
+			return;
+		}
+		long size = filesystem.getFileSize(commandData.rest());
+		if (size < 0) {
+			sendFTPResponse(FTPResponse.FILE_UNAVAIL, "File not available");
+			return;
+		}
+		sendFTPResponse(FTPResponse.FILE_STATUS, Long.toString(size));
+	}
 	
 	/**
 	 * Handles the pasv and epsv commands, immediately starts listening on the data port and
 	 * sends the appropriate response when this is done
-	 * @param commandData To check which one of the commands it is.  Since we are not supporting
-	 * IPv6 right now, the only thing that differs is the string we send back
+	 * @param commandData To check which one of the commands it is.  PASV needs an IPv4 address
+	 * to send back, while EPSV only sends the port
 	 */
-	private void doPASV(FTPCommandData commandData) {
-		if (!allowPassive) {
+	private void doPASV(FTPCommandLine commandData) {
+		if (!settings.allowPassive) {
 			sendFTPResponse(FTPResponse.UNIMPLEMENTED_CMD, "Passive transfers are disabled on this server.");
 			return;
 		}
-		// Try to bind the listen port.  There is definitely a cleaner way to do this error handling
-		boolean portBound = false;
+		
+		// Lease a listener on the address the client reached us on, giving back any we leased
+		// before that the client didn't use
+		InetAddress local = socket.getLocalAddress();
+		PassivePortPool pool;
+		Inet4Address advertise;
+		PassivePortPool.Lease lease;
 		try {
-			InetAddress bindAddress = getLocalInterface();
-			if (bindAddress == null)
-				portBound = false;
-			else {
-				EventLogger.logEvent(logger, "Data socket bind", String.format("Trying to bind address %s",bindAddress.getHostAddress()));
-				dataListener = new ServerSocket(0,0, bindAddress);
-				portBound = true;
+			pool = PassivePortPool.getInstance();
+			advertise = pool.getAdvertiseAddress(local);
+			if (advertise == null && commandData.getCommand() == FTPCommand.PASV) {
+				sendFTPResponse(FTPResponse.CANT_OPEN_DATA_CONN, "No IPv4 address to offer, use EPSV.");
+				return;
 			}
+			lease = pool.lease(local);
 		} catch (IOException e) {
-			EventLogger.logListenException(logger, dataListener, e);
-			portBound = false;
+			EventLogger.logGeneralException(logger, "Data socket bind", e);
+			sendFTPResponse(FTPResponse.NOT_AVAIL_CLOSING, "Failed to bind data port.  Closing connection.");
+			alive = false;
+			return;
+		}
+		if (lease == null) {
+			ServerMetrics.getInstance().pasvPortsExhausted();
+			sendFTPResponse(FTPResponse.CANT_OPEN_DATA_CONN, "No passive ports available, try again later.");
+			return;
 		}
 		
-		if (portBound) {
-			// Make sure we are bound to an IPV4 interface.  I am using janky casting here to do this,
-			// there is probably a better way
-			try {
-				@SuppressWarnings("unused")
-				Inet4Address ipv4 = (Inet4Address)(dataListener.getInetAddress());
-			} catch (ClassCastException e) {
-				sendFTPResponse(FTPResponse.NOT_AVAIL_CLOSING, "Only IPv4 is supported. Closing connection.");
-				alive = false;
-				return;
-			}
-			// TODO We actually probably need some synchronization here, we are currently just hoping that the  client waits
-			// until we send our response to try connecting (which it is supposed to do), and that this delay is long enough for
-			// the other thread to start listening.  NOTE: I have seen some cases where it looks like the client tries to issue its data command
-			// before we are ready, so this synchronization might actually be an issue sometimes
-			dataConnectionType = DataConnectionType.PASSIVE;
-			new DataConnectionListener(dataListener, this).listen();
-			if (commandData.command == FTPCommand.PASV) {
-				sendFTPResponse(FTPResponse.ENTERING_PASV, getPASVString((Inet4Address)dataListener.getInetAddress(), dataListener.getLocalPort()));
-			} else {
-				sendFTPResponse(FTPResponse.ENTERING_EPSV, getEPSVString((Inet4Address)dataListener.getInetAddress(), dataListener.getLocalPort()));
-			}
+		// Start expecting the client's connection before we tell it where to connect, so it
+		// can connect as soon as it likes.  Only the client on the control connection may connect
+		CompletableFuture<SocketChannel> connection;
+		try {
+			connection = lease.expect(socket.getInetAddress());
+		} catch (IOException e) {
+			lease.release();
+			EventLogger.logGeneralException(logger, "Data socket accept", e);
+			sendFTPResponse(FTPResponse.NOT_AVAIL_CLOSING, "Failed to listen on data port.  Closing connection.");
+			alive = false;
+			return;
+		}
+		abandonDataConnection();
+		passiveLease = lease;
+		pendingDataConnection = connection;
+		
+		if (commandData.getCommand() == FTPCommand.PASV) {
+			sendFTPResponse(FTPResponse.ENTERING_PASV, getPASVString(advertise, lease.getPort()));
 		} else {
-			sendFTPResponse(FTPResponse.NOT_AVAIL_CLOSING, "Failed to bind data port.  Closing connection.");
+			sendFTPResponse(FTPResponse.ENTERING_EPSV, getEPSVString(advertise, lease.getPort()));
+		}
+	}
+	
+	/**
+	 * Drop the data connection set up by the last PORT or PASV if no transfer has claimed it,
+	 * giving any passive listener back to the pool and closing the connection if it was made
+	 */
+	private void abandonDataConnection() {
+		if (passiveLease != null) {
+			passiveLease.release();
+			passiveLease = null;
+		}
+		if (pendingDataConnection == null)
+			return;
+		// A connection that already failed has nothing to close, and getNow would throw its failure
+		if (!pendingDataConnection.cancel(false) && !pendingDataConnection.isCompletedExceptionally()) {
+			SocketChannel abandoned = pendingDataConnection.getNow(null);
+			if (abandoned != null) {
+				try {
+					abandoned.close();
+				} catch (IOException e) {
+					EventLogger.logConnectionException(logger, abandoned.socket(), e);
+				}
+			}
+		}
+		pendingDataConnection = null;
+	}
+	
+	/**
+	 * Start connecting to the client's active port, replacing any data connection set up before
+	 * @param host The client's address
+	 * @param port The client's port
+	 * @return Whether the connect could be started.  If not, we have replied and are closing
+	 */
+	private boolean startActiveConnect(String host, int port) {
+		abandonDataConnection();
+		try {
+			pendingDataConnection = DataConnector.getInstance().connect(new InetSocketAddress(host, port), settings.activeConnectTimeout);
+		} catch (IOException e) {
+			EventLogger.logGeneralException(logger, "Data connection setup", e);
+			sendFTPResponse(FTPResponse.NOT_AVAIL_CLOSING, "Failed to set up data connections.  Closing connection.");
 			alive = false;
+			return false;
 		}
+		return true;
 	}
 	
 	/**
-	 * Set our active connection endpoint based on the port command we received
-	 * TODO try and make this logic cleaner
+	 * Set our active connection endpoint based on the port command we received, which is the
+	 * address and port as six comma separated numbers from 0 to 255
 	 * @param commandData
 	 */
-	private void doPORT(FTPCommandData commandData) {
-		if (!allowActive) {
+	private void doPORT(FTPCommandLine commandData) {
+		if (!settings.allowActive) {
 			sendFTPResponse(FTPResponse.UNIMPLEMENTED_CMD, "Active transfers are disabled on this server.");
 			return;
 		}
 		
-		String portString = null;
-		if (commandData.args.length >= 1) {
-			portString = commandData.args[0];
-			String[] portSegments = portString.split(",");
-			
+		if (commandData.argCount() >= 1) {
+			String[] portSegments = commandData.arg(0).split(",", -1);
 			if (portSegments.length == 6) {
-				activeHostString = String.join(".", Arrays.copyOfRange(portSegments, 0, 4));
-				int portUpper = Integer.parseInt(portSegments[4]);
-				int portLower = Integer.parseInt(portSegments[5]);
-				activePort = 256 * portUpper + portLower;
-				dataConnectionType = DataConnectionType.ACTIVE;
-				sendFTPResponse(FTPResponse.COMMAND_OK, "Port command accepted.");
-				return;
+				int[] numbers = new int[6];
+				for (int i = 0; i < numbers.length; i++) {
+					numbers[i] = parseBoundedNumber(portSegments[i], 255);
+				}
+				if (numbers[0] >= 0 && numbers[1] >= 0 && numbers[2] >= 0 && numbers[3] >= 0 && numbers[4] >= 0 && numbers[5] >= 0) {
+					String activeHostString = String.format("%d.%d.%d.%d", numbers[0], numbers[1], numbers[2], numbers[3]);
+					if (!startActiveConnect(activeHostString, 256 * numbers[4] + numbers[5]))
+						return;
+					sendFTPResponse(FTPResponse.COMMAND_OK, "Port command accepted.");
+					return;
+				}
 			}
 		}
 		sendFTPResponse(FTPResponse.BAD_CMD_PARAMETERS, "Invalid port command");
 	}
 	
 	/**
-	 * Set our active connection endpoint based on an eprt command.
-	 * TODO this is untested because I can't get any client to send me
-	 * EPRT
+	 * Set our active connection endpoint based on an eprt command, like |1|132.235.1.2|6275|.
+	 * The first character is the delimiter, and only IPv4 (protocol 1) is supported
 	 * @param commandData
 	 */
-	private void doEPRT(FTPCommandData commandData) {
-		if (!allowActive) {
+	private void doEPRT(FTPCommandLine commandData) {
+		if (!settings.allowActive) {
 			sendFTPResponse(FTPResponse.UNIMPLEMENTED_CMD, "Active transfers are disabled on this server.");
 			return;
 		}
 		
-		if(commandData.args.length >= 1) {
-			Pattern eprtPattern = Pattern.compile("|(\\d)|(\\d+\\.\\d+\\.\\d+\\.\\d+)|(\\d+)|");
-			Matcher eprtMatcher = eprtPattern.matcher(commandData.args[0]);
-			if(eprtMatcher.find() 
-					&& eprtMatcher.group(1) != null
-					&& eprtMatcher.group(1).equals("1")) {
-				activeHostString = eprtMatcher.group(2);
-				activePort = Integer.parseInt(eprtMatcher.group(3));
-				dataConnectionType = DataConnectionType.ACTIVE;
-				sendFTPResponse(FTPResponse.COMMAND_OK, "Extended Port command accepted.");
-				return;
+		String eprtString = (commandData.argCount() >= 1) ? commandData.arg(0) : "";
+		if (eprtString.length() > 1) {
+			String delimiter = eprtString.substring(0, 1);
+			String[] fields = eprtString.split(Pattern.quote(delimiter), -1);
+			
+			// The delimiter is at both ends, so the fields are between empty strings
+			if (fields.length == 5 && fields[0].isEmpty() && fields[4].isEmpty() && fields[1].equals("1")) {
+				String[] octets = fields[2].split("\\.", -1);
+				boolean valid = octets.length == 4;
+				for (int i = 0; valid && i < octets.length; i++) {
+					valid = parseBoundedNumber(octets[i], 255) >= 0;
+				}
+				int port = parseBoundedNumber(fields[3], 65535);
+				if (valid && port >= 0) {
+					if (!startActiveConnect(fields[2], port))
+						return;
+					sendFTPResponse(FTPResponse.COMMAND_OK, "Extended Port command accepted.");
+					return;
+				}
 			}
 		}
 		sendFTPResponse(FTPResponse.BAD_CMD_PARAMETERS, "Invalid extended port command");
 	}
 	
 	/**
-	 * This is called back from the thread that listens for a data connection 
-	 * for passive mode
-	 * @param connection The connected socket for the data connection
+	 * Read a number from a PORT or EPRT field
+	 * @param digits The field
+	 * @param max The largest number allowed
+	 * @return The number, or -1 if the field isn't a decimal number from 0 to max
 	 */
-	void dataConnectionCallback(Socket connection) {
-		if (connection == null) {
-			dataConnectionType = null;
-			sendFTPResponse(FTPResponse.NOT_AVAIL_CLOSING, "Data connection failed.  Closing connection.");
-			alive = false;
-			return;
+	private static int parseBoundedNumber(String digits, int max) {
+		if (digits.isEmpty() || digits.length() > 5)
+			return -1;
+		int value = 0;
+		for (int i = 0; i < digits.length(); i++) {
+			char c = digits.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			value = value * 10 + (c - '0');
 		}
-
-                // Some security, verify that the IP connecting to our data port
-                // is the same one operating the control connection
-                if (!socket.getInetAddress().equals(connection.getInetAddress())) {
-                    dataConnectionType = null;
-                    sendFTPResponse(FTPResponse.NOT_AVAIL_CLOSING, "Data connection must be the same IP as control.  Closing connection");
-                    alive = false;
-                    return;
-                }
-		dataConnection = connection;
-	}
-	
-	/**
-	 * Tries to return a valid data connection socket based
-	 * on the current data connection mode
-	 * @return The data socket to use or null if there
-	 * was a problem
-	 */
-	private Socket getDataSocket() {
-		if (dataConnectionType == null)
-			return null;
-		switch (dataConnectionType) {
-		case PASSIVE:
-			return dataConnection;
-		case ACTIVE:
-			// Try to connect to the client's active port
-			try {
-				return new Socket(activeHostString, activePort);
-			} catch (IOException e) {
-				EventLogger.logConnectionException(logger, socket, e);
-				return null;
-			}
-		default:
-			return null;
+		return (value > max) ? -1 : value;
+	}
+	
+	/**
+	 * Claim the data connection for a transfer.  The next transfer needs another PORT or PASV
+	 * @return The connection, which may not have been made yet, or null if there wasn't a PORT or PASV
+	 */
+	private CompletableFuture<SocketChannel> takeDataConnection() {
+		CompletableFuture<SocketChannel> connection = pendingDataConnection;
+		final PassivePortPool.Lease lease = passiveLease;
+		pendingDataConnection = null;
+		passiveLease = null;
+		
+		// A passive listener goes back to the pool once the client has connected or we give up on it
+		if (lease != null) {
+			connection.whenComplete(new BiConsumer<SocketChannel, Throwable>() {
+				@Override
+				public void accept(SocketChannel channel, Throwable failure) {
+					lease.release();
+				}
+			});
 		}
+		return connection;
 	}
 	
 	
@@ -510,51 +1079,24 @@ public class ControlConnectionHandler extends ConnectionHandler {
 		return String.format("Entering Extended Passive mode (|||%d|)", port);
 	}
 	
-	/**
-	 * Get the first IPV4 interface we can find on this host
-	 * @return This address object
-	 */
-	private Inet4Address getLocalInterface() {
-		Enumeration<NetworkInterface> ifaceenum;
-		try {
-			ifaceenum = NetworkInterface.getNetworkInterfaces();
-		} catch (SocketException e) {
-			return null;
-		}
-		while (ifaceenum.hasMoreElements())
-		{
-			NetworkInterface ni = ifaceenum.nextElement();
-			Enumeration<InetAddress> addrenum = ni.getInetAddresses();
-			while (addrenum.hasMoreElements())
-			{
-				InetAddress thisaddr = addrenum.nextElement();
-				
-				if (!thisaddr.isLoopbackAddress()) {
-					try {
-						Inet4Address ipv4 = (Inet4Address)thisaddr;
-						return ipv4;
-					} catch (ClassCastException e) {
-						continue;
-					}
-				}
-			}
-		}
-		
-		return null;
-	}
-	
 	/**
 	 * Try to change the working directory
 	 * @param data The cwd command data
 	 */
-	private void doCWD(FTPCommandData data) {
-		if (data.args.length < 1) {
+	private void doCWD(FTPCommandLine data) {
+		if (data.argCount() < 1) {
 			sendFTPResponse(FTPResponse.BAD_CMD_PARAMETERS, null);
 			return;
 		}
+		changeDirectory(data.rest());
+	}
+	
+	/**
+	 * Change directory and tell the client where it ended up
+	 * @param path The path to change to
+	 */
+	private void changeDirectory(String path) {
 		try {
-			// Join arguments
-			String path = String.join(" ", data.args);
 			filesystem.cd(path);
 			sendFTPResponse(FTPResponse.FILE_ACTION_COMPLETED, String.format("CWD is now: %s", filesystem.pwd()));
 		} catch (FileNotFoundException e) {
@@ -562,6 +1104,18 @@ public class ControlConnectionHandler extends ConnectionHandler {
 		}
 	}
 	
+	/**
+	 * Close a file we opened but won't be sending
+	 * @param fileChannel The file to close
+	 */
+	private void closeQuietly(FileChannel fileChannel) {
+		try {
+			fileChannel.close();
+		} catch (IOException e) {
+			EventLogger.logGeneralException(logger, "Closing file", e);
+		}
+	}
+	
 	/**
 	 * Send the help response
 	 */
@@ -580,18 +1134,18 @@ public class ControlConnectionHandler extends ConnectionHandler {
 	 * @param commandData The command we are checking authentication for
 	 * @return Whether we were authenticated or not
 	 */
-	private boolean checkAuthentication(FTPCommandData commandData) {
+	private boolean checkAuthentication(FTPCommandLine commandData) {
 		boolean alreadyAuthenticated = (username != null && password != null);
 		
-		if ((commandData.command == FTPCommand.USER || commandData.command == FTPCommand.PASS)
-				&& commandData.args.length < 1) {
+		if ((commandData.getCommand() == FTPCommand.USER || commandData.getCommand() == FTPCommand.PASS)
+				&& commandData.argCount() < 1) {
 			sendFTPResponse(FTPResponse.BAD_CMD_PARAMETERS, null);
 			return false;
 		}
 		
-		switch (commandData.command) {
+		switch (commandData.getCommand()) {
 		case USER:
-			username = commandData.args[0];
+			username = commandData.arg(0);
 			password = null;
 			sendFTPResponse(FTPResponse.NEED_PASS, null);
 			return false;
@@ -603,15 +1157,23 @@ public class ControlConnectionHandler extends ConnectionHandler {
 				return false;
 			}
 			
-			password = commandData.args[0];
+			password = commandData.arg(0);
 			
 			// Bad creds, close connection
 			if (!CredentialManager.getInstance().checkCredential(username, password)) {
+				ServerMetrics.getInstance().authFailed();
 				sendFTPResponse(FTPResponse.NOT_AVAIL_CLOSING, "Bad credentials, bye ;)");
 				alive = false;
 				return false;
 			}
 			
+			// Make sure they don't already have as many sessions as they're allowed
+			if (admission != null && !admission.admitUser(username)) {
+				sendFTPResponse(FTPResponse.NOT_AVAIL_CLOSING, "Too many sessions for this user, bye.");
+				alive = false;
+				return false;
+			}
+			
 			// If we're here, creds are good
 			sendFTPResponse(FTPResponse.LOGIN_OK, String.format("Sup, %s. Welcome back.", username));
 			return false;
@@ -638,46 +1200,149 @@ public class ControlConnectionHandler extends ConnectionHandler {
 	 * @param message The response message.  If null, a default message is sent
 	 */
 	void sendFTPResponse(FTPResponse response, String message) {
-		String sendMessage;
-		
-		// Send the default message if one wasn't specified
-		if (message == null)
-			sendMessage = response.message;
-		else
-			sendMessage = message;
-		
-		writeFTPPDU(String.format("%s %s", Integer.toString(response.code), sendMessage));
+		writeLock.lock();
+		try {
+			int start = replyLength;
+			
+			// Send the default message if one wasn't specified.  That reply is encoded already
+			if (message == null) {
+				appendReply(response.defaultReply, 0, response.defaultReply.length);
+			} else {
+				appendReply(response.codePrefix, 0, response.codePrefix.length);
+				appendReply(message);
+				appendReply(TELNET_EOL_BYTES, 0, TELNET_EOL_BYTES.length);
+			}
+			replyAdded(start);
+		} finally {
+			writeLock.unlock();
+		}
 	}
 	
 	/**
-	 * Read a TELNET style FTP PDU from the socket.  Only commands <= MAX_MSG_SIZE will be considered valid
-	 * @return The message that was read
+	 * Send a multiline response to the client
+	 * @param response The response to send
+	 * @param first The text of the first line
+	 * @param lines The lines in between, which are indented by a space
+	 * @param last The text of the last line
 	 */
-	private String getFTPPDU() {
-		String result;
+	void sendFTPMultilineResponse(FTPResponse response, String first, String[] lines, String last) {
+		writeLock.lock();
 		try {
-			result = socketIn.readLine();
-			EventLogger.logNetworkDataReceived(logger, socket, result);
-		} catch (IOException e) {
-			EventLogger.logConnectionException(logger, socket, e);
-			result = null;
+			int start = replyLength;
+			appendReply(response.codePrefix, 0, response.codePrefix.length - 1);
+			appendReply("-");
+			appendReply(first);
+			appendReply(TELNET_EOL_BYTES, 0, TELNET_EOL_BYTES.length);
+			for (String line : lines) {
+				appendReply(" ");
+				appendReply(line);
+				appendReply(TELNET_EOL_BYTES, 0, TELNET_EOL_BYTES.length);
+			}
+			appendReply(response.codePrefix, 0, response.codePrefix.length);
+			appendReply(last);
+			appendReply(TELNET_EOL_BYTES, 0, TELNET_EOL_BYTES.length);
+			replyAdded(start);
+		} finally {
+			writeLock.unlock();
 		}
-		return result;
 	}
 	
 	/**
-	 * Writes the message to the socket, appending the Telnet EOL delimiter
-	 * @param message The message to send
+	 * Read a TELNET style FTP PDU from the socket and handle it.  The PDU is handled right where
+	 * it was read in the line decoder, and the connection is closed if the client goes away
 	 */
-	private synchronized void writeFTPPDU(String message) {
+	private void readFTPPDU() {
+		while (!lineDecoder.nextLine(this)) {
+			// Everything we have read is handled, so send the replies before waiting for more
+			flushReplies();
+			
+			int count;
+			try {
+				count = lineDecoder.readFrom(socketIn);
+			} catch (IOException e) {
+				EventLogger.logConnectionException(logger, connectionID, e);
+				alive = false;
+				return;
+			}
+			if (count < 0) {
+				alive = false;
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Write out any replies that are waiting.  The NIO session calls this when the reactor is
+	 * done handling our input
+	 */
+	void flushReplies() {
+		writeLock.lock();
 		try {
-			socketOut.write((message + TELNET_EOL));
-			socketOut.flush();
-			EventLogger.logNetworkDataSent(logger, socket, message);
+			if (replyLength == 0)
+				return;
+			if (session != null) {
+				session.write(Arrays.copyOf(replyBuffer, replyLength));
+			} else {
+				socketOut.write(replyBuffer, 0, replyLength);
+				socketOut.flush();
+			}
 		} catch (IOException e) {
-			EventLogger.logConnectionException(logger, socket, e);
+			EventLogger.logConnectionException(logger, connectionID, e);
 			alive = false;
+		} finally {
+			replyLength = 0;
+			if (replyBuffer.length > MAX_RETAINED_REPLY_BUFFER_SIZE)
+				replyBuffer = new byte[INITIAL_REPLY_BUFFER_SIZE];
+			writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Log a reply that was just added to the reply buffer, and write it out unless the command
+	 * thread is in the middle of handling commands.  Called with writeLock held
+	 * @param start Where the reply starts in the reply buffer
+	 */
+	private void replyAdded(int start) {
+		EventLogger.logNetworkDataSent(logger, connectionID, replyBuffer, start,
+				replyLength - start - TELNET_EOL_BYTES.length);
+		if (Thread.currentThread() != commandThread || replyLength >= MAX_PENDING_REPLY_SIZE)
+			flushReplies();
+	}
+	
+	/**
+	 * Add text to the reply buffer as UTF-8.  Called with writeLock held
+	 * @param text The text
+	 */
+	private void appendReply(String text) {
+		int length = text.length();
+		ensureReplyCapacity(length);
+		int start = replyLength;
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			
+			// Anything but ASCII goes through the encoder
+			if (c >= 0x80) {
+				replyLength = start;
+				byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+				appendReply(encoded, 0, encoded.length);
+				return;
+			}
+			replyBuffer[replyLength++] = (byte)c;
 		}
 	}
+	
+	/**
+	 * Add bytes to the reply buffer.  Called with writeLock held
+	 */
+	private void appendReply(byte[] bytes, int offset, int length) {
+		ensureReplyCapacity(length);
+		System.arraycopy(bytes, offset, replyBuffer, replyLength, length);
+		replyLength += length;
+	}
+	
+	private void ensureReplyCapacity(int extra) {
+		if (replyLength + extra > replyBuffer.length)
+			replyBuffer = Arrays.copyOf(replyBuffer, Math.max(replyBuffer.length * 2, replyLength + extra));
+	}
 
 }
@@ -1,14 +1,36 @@
 package edu.dasizeman.jftpserver;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
 /**
- * A very stupid credential manager that loads credentials from
- * a plaintext JSON file, as basic String:String KVPs.  Currently
- * looks for 'creds.json' in default directory, and supports
- * anons
+ * Checks logins against the credential file, a KVPFile of username=password lines.
+ * Passwords are kept as salted PasswordHashes, either written in the file that way or
+ * hashed from plaintext when the file is loaded.  The file is loaded once at startup and
+ * its mtime and size are checked on the shared timer.  Hashing a file full of plaintext
+ * passwords takes a while, so when it has changed it is loaded again on a thread of its
+ * own, and a reload swaps in a whole new set of credentials at once, so a login sees either
+ * the old file or the new one.
+ *
+ * Checking a hash is slow on purpose, so a bounded cache remembers recent successful
+ * logins by a fast digest of the password.  A cached login only counts while the user's
+ * hash hasn't changed, and failures are never cached, so guessing is as slow as ever.
+ * Supports anons
  * @author Dave Sizer <dave@sizetron.net>
  * @since 10/28/16
  */
@@ -16,47 +38,250 @@ public class CredentialManager {
 	public static final String CRED_FILE_PATH = "creds.conf";
 	public static final String ANON_USERNAME = "anonymous";
 	public static final Logger logger = Logger.getGlobal();
-	private static CredentialManager instance = null;
-	
-	private ConcurrentHashMap<String, String> credentialMap;
+
+	private static final String ACCT_FILE_CONF_KEY = "usernamefile";
+	private static final String RELOAD_SECONDS_CONF_KEY = "credential_reload_seconds";
+	private static final String CACHE_SIZE_CONF_KEY = "credential_cache_size";
+
+	private static final CredentialManager instance = new CredentialManager();
+
+	// Checked against when the user doesn't exist, so that takes as long as a wrong password
+	private static final PasswordHash NO_SUCH_USER = PasswordHash.create("");
+
+	// Replaced as a whole on reload, never changed in place
+	private volatile Map<String, PasswordHash> credentialMap = Collections.emptyMap();
 	private boolean allowAnonymous = true;
-	
+
+	// The file and what it looked like when it was last loaded.  Only changed holding the
+	// instance lock, and read by the timer without it
+	private volatile File credentialFile;
+	private volatile long loadedModified;
+	private volatile long loadedLength;
+
+	// Loads the file again when the timer sees it change, so the hashing stays off the timer
+	private final ExecutorService loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "jftpd-credential-loader");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	// Set while a load is waiting on the loader, so a slow one doesn't pile up more behind it
+	private final AtomicBoolean loadPending = new AtomicBoolean();
+
+	// Checks the file for changes every reloadSeconds, if it is set.  Only touched by configure
+	private ScheduledFuture<?> watcher;
+	private int reloadSeconds;
+
+	// Recent successful logins, by username, guarded by itself
+	private final LinkedHashMap<String, CachedLogin> verified = new LinkedHashMap<String, CachedLogin>(16, 0.75f, true);
+	private volatile int maxVerified = 1024;
+
+	// Keys the cached digests, so they are no use to anyone outside this process
+	private final byte[] digestKey = new byte[16];
+
+	/**
+	 * A login that was checked against the slow hash and passed
+	 */
+	private static class CachedLogin {
+		final PasswordHash credential;
+		final byte[] digest;
+
+		CachedLogin(PasswordHash credential, byte[] digest) {
+			this.credential = credential;
+			this.digest = digest;
+		}
+	}
+
 	public static CredentialManager getInstance() {
-		if (instance == null)
-			instance = new CredentialManager();
-		
 		return instance;
 	}
-	
-	public CredentialManager() {
-		credentialMap = new ConcurrentHashMap<String,String>();
+
+	private CredentialManager() {
+		new SecureRandom().nextBytes(digestKey);
+	}
+
+	/**
+	 * Load the credential file named in the configuration and start watching it for changes.
+	 * Calling this again with a reloaded configuration only loads the file again if it is a
+	 * different file or it has changed, and keeps the logins we have cached
+	 * @param configFile The loaded configuration
+	 * @throws IOException If the credential file can't be read
+	 * @throws LineFormatException If the credential file can't be parsed
+	 * @throws NumberFormatException If a setting isn't a number
+	 */
+	public static void configure(ConfigurationFile configFile) throws IOException, LineFormatException, NumberFormatException {
+		int reloadSeconds = configFile.getIntValue(RELOAD_SECONDS_CONF_KEY);
+		int maxVerified = configFile.getIntValue(CACHE_SIZE_CONF_KEY);
+		String path = configFile.getConfigValue(ACCT_FILE_CONF_KEY);
+
+		synchronized (instance) {
+			if (instance.credentialFile == null || !instance.credentialFile.equals(new File(path)))
+				instance.loadCredentialFile(path);
+			else
+				instance.reloadIfChanged();
+
+			instance.maxVerified = maxVerified;
+			synchronized (instance.verified) {
+				instance.trimVerified();
+			}
+
+			if (instance.watcher != null && reloadSeconds == instance.reloadSeconds)
+				return;
+			if (instance.watcher != null)
+				instance.watcher.cancel(false);
+			instance.watcher = null;
+			instance.reloadSeconds = reloadSeconds;
+			if (reloadSeconds > 0) {
+				instance.watcher = ExecutionManager.getTimer().scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						instance.checkForChanges();
+					}
+				}, reloadSeconds, reloadSeconds, TimeUnit.SECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Load credentials from a file, replacing all of the ones we have
+	 * @param path The credential file
+	 * @throws IOException If the file can't be read
+	 * @throws LineFormatException If the file can't be parsed
+	 */
+	public synchronized void loadCredentialFile(String path) throws IOException, LineFormatException {
+		File file = new File(path);
+		long modified = file.lastModified();
+		long length = file.length();
+
+		Map<String, String> entries = new KVPFile(path).parse();
+		Map<String, PasswordHash> loaded = new HashMap<String, PasswordHash>();
+		for (Map.Entry<String, String> entry : entries.entrySet()) {
+			String value = entry.getValue();
+			loaded.put(entry.getKey(), PasswordHash.isEncoded(value) ? PasswordHash.parse(value) : PasswordHash.create(value));
+		}
+
+		credentialMap = Collections.unmodifiableMap(loaded);
+		credentialFile = file;
+		loadedModified = modified;
+		loadedLength = length;
+		EventLogger.logEvent(logger, "Credentials", String.format("Loaded %d users from %s", loaded.size(), path));
+	}
+
+	/**
+	 * See whether the credential file has changed since it was loaded, and if it has, have
+	 * the loader load it again.  This only stats the file, so it is cheap enough for the timer
+	 */
+	private void checkForChanges() {
+		if (!hasChanged() || !loadPending.compareAndSet(false, true))
+			return;
+		loader.execute(new Runnable() {
+			@Override
+			public void run() {
+				loadPending.set(false);
+				reloadIfChanged();
+			}
+		});
 	}
-	
-	
-	public void loadCredentialFile(String path) {
+
+	/**
+	 * @return Whether the credential file looks different from when it was last loaded
+	 */
+	private boolean hasChanged() {
+		File file = credentialFile;
+		return file != null && (file.lastModified() != loadedModified || file.length() != loadedLength);
+	}
+
+	/**
+	 * Reload the credential file if it has changed since it was loaded.  If the new file is
+	 * broken we keep the credentials we have
+	 */
+	private synchronized void reloadIfChanged() {
+		if (!hasChanged())
+			return;
 		try {
-			KVPFile credFile = new KVPFile(path);
-			credentialMap = credFile.parse();
-		} catch (LineFormatException | IOException e) {
-			EventLogger.logGeneralException(logger, "Credential file load", e);
-			System.exit(1);
+			loadCredentialFile(credentialFile.getPath());
+		} catch (IOException | LineFormatException e) {
+			EventLogger.logGeneralException(logger, "Credential file reload", e);
+
+			// Don't try the same broken file again until it changes
+			loadedModified = credentialFile.lastModified();
+			loadedLength = credentialFile.length();
 		}
-		
 	}
-	
-	
+
 	public boolean checkCredential(String username, String password) {
 		if (username.equals(ANON_USERNAME) && allowAnonymous) {
 			return true;
 		}
-		String correctPassValue = credentialMap.get(username);
-		return (password.equals(correctPassValue))?true:false;
+
+		PasswordHash credential = credentialMap.get(username);
+		if (credential == null) {
+			NO_SUCH_USER.verify(password);
+			return false;
+		}
+
+		byte[] digest = digest(username, password);
+		synchronized (verified) {
+			CachedLogin cached = verified.get(username);
+			if (cached != null && cached.credential == credential && MessageDigest.isEqual(cached.digest, digest))
+				return true;
+		}
+
+		if (!credential.verify(password))
+			return false;
+
+		synchronized (verified) {
+			verified.put(username, new CachedLogin(credential, digest));
+			trimVerified();
+		}
+		return true;
+	}
+
+	/**
+	 * Drop the least recently used logins until the cache fits.  Called holding verified
+	 */
+	private void trimVerified() {
+		while (verified.size() > maxVerified)
+			verified.remove(verified.keySet().iterator().next());
+	}
+
+	public synchronized void addCredential(String username, String password) {
+		Map<String, PasswordHash> updated = new HashMap<String, PasswordHash>(credentialMap);
+		updated.put(username, PasswordHash.create(password));
+		credentialMap = Collections.unmodifiableMap(updated);
 	}
-	
-	public void addCredential(String username, String password) {
-		credentialMap.put(username, password);
+
+	/**
+	 * A fast keyed digest of a login, for the cache
+	 */
+	private byte[] digest(String username, String password) {
+		try {
+			MessageDigest sha = MessageDigest.getInstance("SHA-256");
+			sha.update(digestKey);
+			sha.update(username.getBytes(StandardCharsets.UTF_8));
+			sha.update((byte)0);
+			sha.update(password.getBytes(StandardCharsets.UTF_8));
+			return sha.digest();
+		} catch (NoSuchAlgorithmException e) {
+			// Every runtime has to support this
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Print the hashed form of a password, to paste into the credential file in place of the
+	 * plaintext one
+	 * @param args The password
+	 */
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.out.println("Usage: java -cp jftpserver.jar edu.dasizeman.jftpserver.CredentialManager <password>");
+			return;
+		}
+		System.out.println(PasswordHash.create(args[0]).encode());
 	}
-	
-	
 
 }
@@ -1,9 +1,13 @@
 package edu.dasizeman.jftpserver;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.logging.Logger;
 
 /**
@@ -19,24 +23,50 @@ public class DataConnectionHandler extends ConnectionHandler {
 	// the data transfer is done or fails
 	private ControlConnectionHandler controlHandler;
 	
-	// The stream we are going to send over the socket
-	private InputStream sendStream;
+	// The file we are going to send over the socket, which is handed straight to the
+	// kernel, and the byte range of it to send
+	private FileChannel sendChannel;
+	private long sendStart = 0;
+	private long sendEnd = -1;
 	
-	// Note used yet, but used so this thread can handle both sending and receving 
-	// and its designed badly
+	// A cached file we are going to send over the socket
+	private ByteBuffer sendBuffer;
+	
+	// A directory listing we are going to generate as we send it
+	private DirectoryLister sendListing;
+	
+	// The upload we are going to receive into
+	private Upload receiveUpload;
+	
+	// Used so this thread can handle both sending and receiving, and its designed badly
 	private enum mode {
 		SND,
 		RCV
 	}
 	private mode connectionMode;
+	
+	// For the metrics: when the transfer started, and how many bytes have made it across so far
+	private long transferStart;
+	private long transferred = 0;
+	
+	// Holds what we send to the bandwidth limits, or null to send as fast as we can
+	private BandwidthShaper.Pacer pacer;
 
 	@Override
 	public void handle(Socket socket) {
+		transferStart = System.nanoTime();
 		switch (connectionMode) {
 		case SND:
-			trySendData(sendStream, socket);
+			pacer = controlHandler.getSendPacer();
+			if (sendBuffer != null)
+				trySendData(sendBuffer, socket);
+			else if (sendListing != null)
+				trySendData(sendListing, socket);
+			else
+				trySendData(sendChannel, socket);
 			break;
 		case RCV:
+			tryReceiveData(socket, receiveUpload);
 			break;
 		}
 		
@@ -49,59 +79,234 @@ public class DataConnectionHandler extends ConnectionHandler {
 	public void start(Socket socket){}
 	
 	/**
-	 * Start an outgoing data transfer
+	 * Start an outgoing file transfer.  The file is sent with FileChannel.transferTo, so
+	 * if the data socket has a channel the kernel can move it without copying it through
+	 * user space.  Reads are positional, so any range of the file can be sent
+	 * @param socket The socket to send on
+	 * @param fileChannel The file to send
+	 * @param start The offset to start sending from
+	 * @param end The offset to stop sending at, or -1 to send to the end of the file
+	 * @param controlHandler The control connection handler to 
+	 * call back to
+	 */
+	public void startSend(Socket socket, FileChannel fileChannel, long start, long end, ControlConnectionHandler controlHandler) {
+		connectionMode = mode.SND;
+		this.controlHandler = controlHandler;
+		this.socket = socket;
+		this.sendChannel = fileChannel;
+		this.sendStart = start;
+		this.sendEnd = end;
+		ExecutionManager.getInstance().execute(ExecutionManager.TaskType.DATA, this);
+	}
+	
+	/**
+	 * Start an outgoing transfer of a file from the file cache
 	 * @param socket The socket to send on
-	 * @param dataStream The stream to send
+	 * @param buffer The file contents to send.  This is consumed by the transfer
 	 * @param controlHandler The control connection handler to 
 	 * call back to
 	 */
-	public void startSend(Socket socket, InputStream dataStream, ControlConnectionHandler controlHandler) {
+	public void startSend(Socket socket, ByteBuffer buffer, ControlConnectionHandler controlHandler) {
 		connectionMode = mode.SND;
 		this.controlHandler = controlHandler;
 		this.socket = socket;
-		this.sendStream = dataStream;
-		new Thread(this).start();
+		this.sendBuffer = buffer;
+		ExecutionManager.getInstance().execute(ExecutionManager.TaskType.DATA, this);
 	}
 	
 	/**
-	 * Wrapper for attempting to send a stream of data over a socket, that handles
+	 * Start an outgoing transfer of a directory listing
+	 * @param socket The socket to send on
+	 * @param lister The listing to send
+	 * @param controlHandler The control connection handler to 
+	 * call back to
+	 */
+	public void startSend(Socket socket, DirectoryLister lister, ControlConnectionHandler controlHandler) {
+		connectionMode = mode.SND;
+		this.controlHandler = controlHandler;
+		this.socket = socket;
+		this.sendListing = lister;
+		ExecutionManager.getInstance().execute(ExecutionManager.TaskType.DATA, this);
+	}
+	
+	/**
+	 * Start an incoming data transfer
+	 * @param socket The socket to receive on
+	 * @param upload The upload to write what we receive to
+	 * @param controlHandler The control connection handler to 
+	 * call back to
+	 */
+	public void startReceive(Socket socket, Upload upload, ControlConnectionHandler controlHandler) {
+		connectionMode = mode.RCV;
+		this.controlHandler = controlHandler;
+		this.socket = socket;
+		this.receiveUpload = upload;
+		ExecutionManager.getInstance().execute(ExecutionManager.TaskType.DATA, this);
+	}
+	
+	/**
+	 * Wrapper for attempting to receive data over a socket into an upload, that handles
+	 * necessary control responses.  The upload is only published if the whole transfer
+	 * makes it
+	 * @param from The socket to receive from
+	 * @param to The upload to write to
+	 */
+	private void tryReceiveData(Socket from, Upload to) {
+		BufferPool pool = BufferPool.getInstance();
+		ByteBuffer buffer = pool.acquire();
+		boolean success = false;
+		try {
+			ReadableByteChannel in = from.getChannel();
+			if (in == null)
+				in = Channels.newChannel(from.getInputStream());
+			
+			// Fill the buffer before each write so the file sees large writes
+			boolean eof = false;
+			while (!eof) {
+				int count = in.read(buffer);
+				eof = count < 0;
+				if (!eof)
+					transferred += count;
+				if (eof || !buffer.hasRemaining()) {
+					buffer.flip();
+					to.write(buffer);
+					buffer.clear();
+				}
+			}
+			to.commit();
+			success = true;
+		} catch (IOException e) {
+			EventLogger.logConnectionException(logger, from, e);
+		} finally {
+			pool.release(buffer);
+		}
+		finishTransfer(to, from, success);
+	}
+	
+	/**
+	 * Wrapper for attempting to send a file over a socket, that handles
 	 * necessary control responses
-	 * @param from The stream to send
+	 * @param from The file to send
 	 * @param to The socket to send over
 	 */
-	private void trySendData(InputStream from, Socket to) {
+	private void trySendData(FileChannel from, Socket to) {
 		try {
-			streamCopy(from, to.getOutputStream());
-			controlHandler.sendFTPResponse(FTPResponse.CLOSING_DATA_CONN_SUCC, "Transfer complete, data connection closing");
+			WritableByteChannel out = to.getChannel();
+			if (out == null)
+				out = Channels.newChannel(to.getOutputStream());
+			fileCopy(from, out, sendStart, sendEnd);
+			finishTransfer(from, to, true);
 		} catch (IOException e) {
 			EventLogger.logConnectionException(logger, to, e);
-			controlHandler.sendFTPResponse(FTPResponse.CLOSING_DATA_CONN_ABRT, "Transfer failed, data connection closing");
+			finishTransfer(from, to, false);
 		}
-		// Clean up the connection
+	}
+	
+	/**
+	 * Wrapper for attempting to send a buffer over a socket, that handles
+	 * necessary control responses
+	 * @param from The buffer to send
+	 * @param to The socket to send over
+	 */
+	private void trySendData(ByteBuffer from, Socket to) {
 		try {
-			from.close();
-			to.getInputStream().close();
-			to.getOutputStream().close();
-			to.close();
+			WritableByteChannel out = to.getChannel();
+			if (out == null)
+				out = Channels.newChannel(to.getOutputStream());
+			if (pacer != null)
+				out = pacer.wrap(out);
+			bufferCopy(from, out);
+			finishTransfer(null, to, true);
 		} catch (IOException e) {
 			EventLogger.logConnectionException(logger, to, e);
+			finishTransfer(null, to, false);
 		}
 	}
 	
 	/**
-	 * Fully copy one stream to another
-	 * @param from The source stream
-	 * @param to The destination stream
+	 * Wrapper for attempting to send a directory listing over a socket, that handles
+	 * necessary control responses
+	 * @param from The listing to send
+	 * @param to The socket to send over
 	 */
-	private void streamCopy(InputStream from, OutputStream to) {
+	private void trySendData(DirectoryLister from, Socket to) {
 		try {
-			int count = 0;
-			byte[] buffer = new byte[16*1024];
-			while ((count = from.read(buffer)) > 0) {
-				to.write(buffer, 0, count);
-			}
+			WritableByteChannel out = to.getChannel();
+			if (out == null)
+				out = Channels.newChannel(to.getOutputStream());
+			if (pacer != null)
+				out = pacer.wrap(out);
+			transferred = from.writeTo(out);
+			finishTransfer(null, to, true);
+		} catch (IOException e) {
+			EventLogger.logConnectionException(logger, to, e);
+			finishTransfer(null, to, false);
+		}
+	}
+	
+	/**
+	 * Send the transfer result to the client and clean up the connection
+	 * @param from The source or destination of the transfer, or null if there is nothing to close
+	 * @param to The socket we were transferring over
+	 * @param success Whether the transfer completed
+	 */
+	private void finishTransfer(Closeable from, Socket to, boolean success) {
+		ServerMetrics.getInstance().transferFinished(connectionMode == mode.SND, transferred,
+				System.nanoTime() - transferStart, success);
+		
+		if (success)
+			controlHandler.sendFTPResponse(FTPResponse.CLOSING_DATA_CONN_SUCC, "Transfer complete, data connection closing");
+		else
+			controlHandler.sendFTPResponse(FTPResponse.CLOSING_DATA_CONN_ABRT, "Transfer failed, data connection closing");
+		
+		// Clean up the connection.  Closing the socket closes its streams and channel too
+		try {
+			if (from != null)
+				from.close();
+			to.close();
 		} catch (IOException e) {
-			EventLogger.logConnectionException(logger, socket, e);
+			EventLogger.logConnectionException(logger, to, e);
+		}
+	}
+	
+	/**
+	 * Write all of a buffer to a channel.  Bandwidth limits are applied by wrapping the
+	 * channel, since the whole buffer is already in memory
+	 * @param from The buffer to send.  This is consumed
+	 * @param to The destination channel
+	 * @throws IOException If the write fails
+	 */
+	void bufferCopy(ByteBuffer from, WritableByteChannel to) throws IOException {
+		while (from.hasRemaining()) {
+			transferred += to.write(from);
+		}
+	}
+	
+	/**
+	 * Send a range of a file to a channel with transferTo, which lets the kernel use
+	 * sendfile or similar instead of copying the file through our buffers
+	 * @param from The source file
+	 * @param to The destination channel
+	 * @param start The offset to start from
+	 * @param end The offset to stop at, or -1 for the end of the file
+	 * @throws IOException If the transfer fails
+	 */
+	void fileCopy(FileChannel from, WritableByteChannel to, long start, long end) throws IOException {
+		long position = start;
+		long size = (end < 0) ? from.size() : Math.min(end, from.size());
+		while (position < size) {
+			long chunk = (pacer == null) ? size - position : pacer.chunk(size - position);
+			long count = from.transferTo(position, chunk, to);
+			
+			// Nothing sent means we are at the end, in case the file shrank under us
+			if (count <= 0 && position >= from.size())
+				break;
+			position += count;
+			transferred += count;
+			
+			// transferTo can send less than the chunk, so only what it sent is charged
+			if (pacer != null)
+				pacer.pace(count);
 		}
 	}
 
@@ -0,0 +1,312 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+/**
+ * A single thread that sets up data connections for every session, in both modes.
+ * For passive mode, each leased listener is armed with a future for the session
+ * expecting a connection on it, and the first connection from that session's client
+ * address completes the future.  For active mode, connects to the client are started
+ * without blocking and complete a future when they are made.  Sessions wait on the
+ * futures, so neither an accept nor a slow connect ever ties up a thread.  The futures are
+ * completed on our thread, or on the shared timer when a connect times out, so anything
+ * that depends on them and might block, like replying to the client, has to be run async
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class DataConnector implements Runnable {
+	private static final Logger logger = Logger.getGlobal();
+
+	private static DataConnector instance = null;
+
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	// Active connections made during this pass of the loop, waiting for their keys to be
+	// deregistered so they can be switched back to blocking mode
+	private final List<Connect> connected = new ArrayList<Connect>();
+
+	/**
+	 * Get the shared connector, starting it if needed
+	 * @return The connector
+	 * @throws IOException If the selector couldn't be opened
+	 */
+	public static synchronized DataConnector getInstance() throws IOException {
+		if (instance == null) {
+			instance = new DataConnector(Selector.open());
+			Thread thread = new Thread(instance, "jftpd-data-connector");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return instance;
+	}
+
+	private DataConnector(Selector selector) {
+		this.selector = selector;
+	}
+
+	/**
+	 * Start waiting for a connection on a listener
+	 * @param listener A non-blocking listener
+	 * @param client The address the connection has to come from
+	 * @return A future completed with the connection, which will be in blocking mode
+	 */
+	public CompletableFuture<SocketChannel> expect(final ServerSocketChannel listener, InetAddress client) {
+		final Expectation expectation = new Expectation(client);
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					SelectionKey key = listener.keyFor(selector);
+					if (key == null)
+						listener.register(selector, SelectionKey.OP_ACCEPT, expectation);
+					else {
+						key.attach(expectation);
+						key.interestOps(SelectionKey.OP_ACCEPT);
+					}
+				} catch (ClosedChannelException | CancelledKeyException e) {
+					expectation.future.completeExceptionally(e);
+				}
+			}
+		});
+		return expectation.future;
+	}
+
+	/**
+	 * Stop waiting for a connection on a listener, failing the future if it is still pending
+	 * @param listener The listener
+	 */
+	public void cancel(final ServerSocketChannel listener) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				SelectionKey key = listener.keyFor(selector);
+				if (key == null || !key.isValid())
+					return;
+				Expectation expectation = (Expectation)key.attachment();
+				if (expectation != null)
+					expectation.future.cancel(false);
+				key.attach(null);
+				key.interestOps(0);
+			}
+		});
+	}
+
+	/**
+	 * Start connecting to a client.  If the future is cancelled or fails, the connection is closed
+	 * @param address Where to connect
+	 * @param timeoutSeconds How long to give the connect before failing it
+	 * @return A future completed with the connection, which will be in blocking mode.  It is
+	 * completed on our thread, or failed on the timer
+	 */
+	public CompletableFuture<SocketChannel> connect(InetSocketAddress address, long timeoutSeconds) {
+		final Connect connect;
+		try {
+			connect = new Connect(SocketChannel.open());
+		} catch (IOException e) {
+			CompletableFuture<SocketChannel> failed = new CompletableFuture<SocketChannel>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+
+		final ScheduledFuture<?> timeout = ExecutionManager.getTimer().schedule(new Runnable() {
+			@Override
+			public void run() {
+				connect.future.completeExceptionally(new TimeoutException("Timed out connecting to the client"));
+			}
+		}, timeoutSeconds, TimeUnit.SECONDS);
+		connect.future.whenComplete(new BiConsumer<SocketChannel, Throwable>() {
+			@Override
+			public void accept(SocketChannel channel, Throwable failure) {
+				timeout.cancel(false);
+				if (failure != null)
+					closeQuietly(connect.channel);
+			}
+		});
+
+		try {
+			connect.channel.configureBlocking(false);
+			if (connect.channel.connect(address)) {
+				connect.channel.configureBlocking(true);
+				connect.future.complete(connect.channel);
+				return connect.future;
+			}
+		} catch (IOException e) {
+			connect.future.completeExceptionally(e);
+			return connect.future;
+		}
+
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					connect.channel.register(selector, SelectionKey.OP_CONNECT, connect);
+				} catch (ClosedChannelException e) {
+					connect.future.completeExceptionally(e);
+				}
+			}
+		});
+		return connect.future;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				EventLogger.logGeneralException(logger, "Data connection setup", e);
+				continue;
+			}
+
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run();
+			}
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				try {
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept(key);
+					else if (key.isConnectable())
+						finishConnect(key);
+				} catch (CancelledKeyException e) {
+					continue;
+				}
+			}
+
+			handOffConnected();
+		}
+	}
+
+	/**
+	 * Accept a pending connection and hand it to whoever is expecting it
+	 */
+	private void accept(SelectionKey key) {
+		ServerSocketChannel listener = (ServerSocketChannel)key.channel();
+		Expectation expectation = (Expectation)key.attachment();
+		SocketChannel connection;
+		try {
+			connection = listener.accept();
+		} catch (IOException e) {
+			EventLogger.logListenException(logger, listener.socket(), e);
+			return;
+		}
+		if (connection == null)
+			return;
+
+		// Some security, only the client operating the control connection may connect.
+		// Anything else is turned away and we keep waiting
+		if (expectation == null || !expectation.client.equals(connection.socket().getInetAddress())) {
+			EventLogger.logConnectionException(logger, connection.socket(), new Exception("Unexpected passive data connection"));
+			closeQuietly(connection);
+			return;
+		}
+
+		key.attach(null);
+		key.interestOps(0);
+		if (!expectation.future.complete(connection))
+			closeQuietly(connection);
+	}
+
+	/**
+	 * Finish an active connect that the selector says is ready
+	 */
+	private void finishConnect(SelectionKey key) {
+		Connect connect = (Connect)key.attachment();
+		try {
+			if (!connect.channel.finishConnect())
+				return;
+		} catch (IOException e) {
+			key.cancel();
+			connect.future.completeExceptionally(e);
+			return;
+		}
+		key.cancel();
+		connected.add(connect);
+	}
+
+	/**
+	 * Switch this pass's new active connections to blocking mode, which a channel can only be
+	 * once its cancelled key has been flushed out of the selector, and complete their futures
+	 */
+	private void handOffConnected() {
+		if (connected.isEmpty())
+			return;
+		try {
+			selector.selectNow();
+		} catch (IOException e) {
+			EventLogger.logGeneralException(logger, "Data connection setup", e);
+		}
+		for (Connect connect : connected) {
+			try {
+				connect.channel.configureBlocking(true);
+				connect.future.complete(connect.channel);
+			} catch (IOException e) {
+				connect.future.completeExceptionally(e);
+			}
+		}
+		connected.clear();
+	}
+
+	private void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	private static void closeQuietly(SocketChannel connection) {
+		try {
+			connection.close();
+		} catch (IOException e) {
+			EventLogger.logConnectionException(logger, connection.socket(), e);
+		}
+	}
+
+	/**
+	 * A session waiting for a connection from its client
+	 */
+	private static class Expectation {
+		final InetAddress client;
+		final CompletableFuture<SocketChannel> future = new CompletableFuture<SocketChannel>();
+
+		Expectation(InetAddress client) {
+			this.client = client;
+		}
+	}
+
+	/**
+	 * A connect to a client in progress
+	 */
+	private static class Connect {
+		final SocketChannel channel;
+		final CompletableFuture<SocketChannel> future = new CompletableFuture<SocketChannel>();
+
+		Connect(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+}
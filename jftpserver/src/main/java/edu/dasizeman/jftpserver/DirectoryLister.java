@@ -0,0 +1,333 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a directory listing to a data connection as the directory is read.  Entries
+ * come from a DirectoryStream, their attributes from a single readAttributes call each,
+ * and they are encoded into a pooled buffer that is written out whenever it fills, so
+ * even a huge directory is never held in memory.  Listings small enough are kept in the
+ * listing cache on the way through, and later listings of the directory are served from there.
+ * Storage that isn't on disk hands over its entries up front instead
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class DirectoryLister {
+
+	/**
+	 * The listing formats we produce
+	 */
+	public enum Format {
+		// ls -l style lines, for LIST
+		LIST,
+		// Bare names, for NLST
+		NLST,
+		// RFC 3659 fact lines, for MLSD
+		MLSD
+	}
+
+	private static final String EOL = "\r\n";
+
+	// ls shows the time for files modified in the last six months, and the year for older ones
+	private static final long RECENT_MILLIS = TimeUnit.DAYS.toMillis(182);
+	private static final DateTimeFormatter RECENT_DATE = DateTimeFormatter.ofPattern("MMM dd HH:mm", Locale.US);
+	private static final DateTimeFormatter OLD_DATE = DateTimeFormatter.ofPattern("MMM dd  yyyy", Locale.US);
+	private static final DateTimeFormatter FACT_DATE = DateTimeFormatter.ofPattern("yyyyMMddHHmmss", Locale.US);
+
+	private static final char[] PERMISSION_CHARS = "rwxrwxrwx".toCharArray();
+
+	// The directory on disk to list, or null to list the entries we were given
+	private final Path directory;
+	private final SortedMap<String, FileInfo> entries;
+	private final Format format;
+
+	/**
+	 * @param directory The absolute path of the directory to list
+	 * @param format The listing format
+	 */
+	public DirectoryLister(Path directory, Format format) {
+		this.directory = directory;
+		this.entries = null;
+		this.format = format;
+	}
+
+	/**
+	 * List entries that aren't on disk.  They are never cached
+	 * @param entries What the directory holds, by name
+	 * @param format The listing format
+	 */
+	public DirectoryLister(SortedMap<String, FileInfo> entries, Format format) {
+		this.directory = null;
+		this.entries = entries;
+		this.format = format;
+	}
+
+	/**
+	 * Write the listing to a channel
+	 * @param out The channel to write to
+	 * @return The number of bytes written
+	 * @throws IOException If the directory couldn't be read or the channel couldn't be written
+	 */
+	public long writeTo(WritableByteChannel out) throws IOException {
+		if (directory == null)
+			return writeEntries(out);
+
+		ListingCache cache = ListingCache.getInstance();
+		byte[] cached = cache.get(directory, format);
+		if (cached != null) {
+			ByteBuffer buffer = ByteBuffer.wrap(cached);
+			while (buffer.hasRemaining()) {
+				out.write(buffer);
+			}
+			return cached.length;
+		}
+
+		long modified = cache.lastModified(directory);
+		Capture capture = new Capture(cache.getMaxEntrySize());
+		boolean unix = FileInfo.isUnix(directory);
+		LineEncoder encoder = new LineEncoder(out, capture);
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+			for (Path entry : entries) {
+				// Uploads in progress aren't there yet
+				if (StagedUpload.isTempFile(entry.getFileName().toString()))
+					continue;
+
+				// Names are all NLST needs, so it never reads any attributes.  A symlink is listed
+				// as itself, since what it points to may be outside the root
+				FileInfo info = null;
+				if (format != Format.NLST) {
+					info = FileInfo.read(entry, unix, LinkOption.NOFOLLOW_LINKS);
+					if (info == null)
+						continue;
+				}
+				encoder.encode(entry.getFileName().toString(), info);
+			}
+			encoder.finish();
+		} finally {
+			encoder.release();
+		}
+
+		byte[] listing = capture.toByteArray();
+		if (listing != null)
+			cache.put(directory, format, modified, listing);
+		return encoder.written;
+	}
+
+	/**
+	 * Describe a single file as an MLST fact line
+	 * @param info The file
+	 * @param name The name to give it in the line
+	 * @return The fact line
+	 */
+	public static String describe(FileInfo info, String name) {
+		StringBuilder line = new StringBuilder(128);
+		appendFacts(line, info, name);
+		return line.toString();
+	}
+
+	/**
+	 * Write the entries we were given
+	 */
+	private long writeEntries(WritableByteChannel out) throws IOException {
+		// Nothing to cache, so the capture gives up straight away
+		LineEncoder encoder = new LineEncoder(out, new Capture(0));
+		try {
+			for (Map.Entry<String, FileInfo> entry : entries.entrySet()) {
+				encoder.encode(entry.getKey(), entry.getValue());
+			}
+			encoder.finish();
+		} finally {
+			encoder.release();
+		}
+		return encoder.written;
+	}
+
+	/**
+	 * Formats entries into lines and encodes them into a pooled buffer, writing it out
+	 * whenever it fills
+	 */
+	private class LineEncoder {
+		private final WritableByteChannel out;
+		private final Capture capture;
+		private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private final StringBuilder line = new StringBuilder(256);
+		private final long now = System.currentTimeMillis();
+		private final ZoneId zone = ZoneId.systemDefault();
+		private final ByteBuffer buffer = BufferPool.getInstance().acquire();
+		long written = 0;
+
+		LineEncoder(WritableByteChannel out, Capture capture) {
+			this.out = out;
+			this.capture = capture;
+		}
+
+		void encode(String name, FileInfo info) throws IOException {
+			line.setLength(0);
+			switch (format) {
+			case NLST:
+				line.append(name);
+				break;
+			case MLSD:
+				appendFacts(line, info, name);
+				break;
+			case LIST:
+				appendLongListing(line, info, name, now, zone);
+				break;
+			}
+			line.append(EOL);
+
+			encoder.reset();
+			CharBuffer chars = CharBuffer.wrap(line);
+			while (encoder.encode(chars, buffer, true).isOverflow()) {
+				written += drain(buffer, out, capture);
+			}
+			while (encoder.flush(buffer).isOverflow()) {
+				written += drain(buffer, out, capture);
+			}
+		}
+
+		/**
+		 * Write out what is left in the buffer
+		 */
+		void finish() throws IOException {
+			written += drain(buffer, out, capture);
+		}
+
+		/**
+		 * Give the buffer back, whether or not the listing made it
+		 */
+		void release() {
+			BufferPool.getInstance().release(buffer);
+		}
+	}
+
+	/**
+	 * Append an ls -l style line, with numeric owners so we never have to look up names
+	 */
+	private static void appendLongListing(StringBuilder line, FileInfo info, String name, long now, ZoneId zone) {
+		int mode = info.getMode();
+		int type = mode & FileInfo.S_IFMT;
+		line.append(type == FileInfo.S_IFDIR ? 'd' : type == FileInfo.S_IFLNK ? 'l' : '-');
+		for (int bit = 0; bit < PERMISSION_CHARS.length; bit++) {
+			line.append((mode & (0400 >> bit)) != 0 ? PERMISSION_CHARS[bit] : '-');
+		}
+		line.append(' ');
+		appendPadded(line, info.getLinks(), 3);
+		line.append(' ');
+		appendPadded(line, info.getUid(), -8);
+		line.append(' ');
+		appendPadded(line, info.getGid(), -8);
+		line.append(' ');
+		appendPadded(line, info.getSize(), 12);
+		line.append(' ');
+
+		long modifiedMillis = info.getModified();
+		ZonedDateTime date = Instant.ofEpochMilli(modifiedMillis).atZone(zone);
+		boolean recent = modifiedMillis > now - RECENT_MILLIS && modifiedMillis < now + RECENT_MILLIS;
+		(recent ? RECENT_DATE : OLD_DATE).formatTo(date, line);
+		line.append(' ').append(name);
+	}
+
+	/**
+	 * Append an RFC 3659 fact line
+	 */
+	private static void appendFacts(StringBuilder line, FileInfo info, String name) {
+		line.append("type=").append(info.isDirectory() ? "dir" : "file");
+		line.append(";size=").append(info.getSize());
+		line.append(";modify=");
+		FACT_DATE.formatTo(Instant.ofEpochMilli(info.getModified()).atZone(ZoneOffset.UTC), line);
+		if (info.isRealMode()) {
+			line.append(";unix.mode=0");
+			line.append(Integer.toOctalString(info.getMode() & 0777));
+		}
+		line.append("; ").append(name);
+	}
+
+	/**
+	 * Append a number padded with spaces, on the left for a positive width or on the right
+	 * for a negative one
+	 */
+	private static void appendPadded(StringBuilder line, long value, int width) {
+		int start = line.length();
+		line.append(value);
+		int padding = Math.abs(width) - (line.length() - start);
+		for (int i = 0; i < padding; i++) {
+			if (width > 0)
+				line.insert(start, ' ');
+			else
+				line.append(' ');
+		}
+	}
+
+	/**
+	 * Write out everything encoded so far, keeping a copy for the cache
+	 * @return The number of bytes written
+	 */
+	private static int drain(ByteBuffer buffer, WritableByteChannel out, Capture capture) throws IOException {
+		buffer.flip();
+		int count = buffer.remaining();
+		capture.add(buffer);
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+		buffer.clear();
+		return count;
+	}
+
+	/**
+	 * A copy of the listing for the cache, which is given up on if it gets too big
+	 */
+	private static class Capture {
+		private final long limit;
+		private byte[] bytes = new byte[0];
+		private int size = 0;
+
+		Capture(long limit) {
+			this.limit = limit;
+		}
+
+		void add(ByteBuffer buffer) {
+			if (bytes == null)
+				return;
+			int count = buffer.remaining();
+			if (size + (long)count > limit) {
+				bytes = null;
+				return;
+			}
+			if (size + count > bytes.length)
+				bytes = Arrays.copyOf(bytes, Math.max(size + count, bytes.length * 2));
+			buffer.duplicate().get(bytes, size, count);
+			size += count;
+		}
+
+		/**
+		 * @return The captured listing, or null if it was too big
+		 */
+		byte[] toByteArray() {
+			return (bytes == null) ? null : Arrays.copyOf(bytes, size);
+		}
+	}
+
+}
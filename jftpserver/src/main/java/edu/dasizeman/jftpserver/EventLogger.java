@@ -1,57 +1,114 @@
 package edu.dasizeman.jftpserver;
 
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
 /**
- * Wrapper for logging various events
+ * Wrapper for logging various events.  Every method checks the level first, so a
+ * disabled level costs one branch and allocates nothing.  Sessions should work out
+ * their connection ID once with getConnectionID and log with it, rather than passing
+ * the socket and having its address formatted on every line
  * @author Dave Sizer <dave@sizetron.net>
  * @since 10/28/16
  *
  */
 public class EventLogger {
-	private static final String LOG_FORMAT = "[%s] %s: %s";
+	// Lines are built as "[id] context: message" in a per thread buffer
+	private static final int LINE_BUFFER_SIZE = 256;
+
+	// A buffer that grew past this for one huge line is dropped rather than kept around
+	private static final int MAX_RETAINED_LINE_BUFFER = 16 * 1024;
+
+	private static final ThreadLocal<StringBuilder> lineBuffers = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(LINE_BUFFER_SIZE);
+		}
+	};
 
 	public static void logConnectionException(Logger logger, Socket socket, Exception e) {
-		logger.log(Level.SEVERE, String.format(LOG_FORMAT, getConnectionIDString(socket),"Connection error", e.getMessage()));
+		if (logger.isLoggable(Level.SEVERE))
+			log(logger, Level.SEVERE, getConnectionID(socket), "Connection error", e.getMessage());
 	}
-	
+
+	public static void logConnectionException(Logger logger, String connectionID, Exception e) {
+		if (logger.isLoggable(Level.SEVERE))
+			log(logger, Level.SEVERE, connectionID, "Connection error", e.getMessage());
+	}
+
 	public static void logGeneralException(Logger logger, String context,Exception e) {
-		logger.log(Level.SEVERE, String.format(LOG_FORMAT, context, e.getClass().getName(), e.getMessage()));
+		if (logger.isLoggable(Level.SEVERE))
+			log(logger, Level.SEVERE, context, e.getClass().getName(), e.getMessage());
 	}
-	
+
 	public static void logEvent(Logger logger, String context, String message) {
-		logger.log(Level.INFO, String.format(LOG_FORMAT, "-", context,message));
+		if (logger.isLoggable(Level.INFO))
+			log(logger, Level.INFO, "-", context, message);
 	}
-	
+
 	public static void logListenException(Logger logger, ServerSocket socket, Exception e) {
-		logger.log(Level.SEVERE, String.format(LOG_FORMAT, getListenIDString(socket),"Listen error", e.getMessage()));
+		if (logger.isLoggable(Level.SEVERE))
+			log(logger, Level.SEVERE, getListenIDString(socket), "Listen error", e.getMessage());
+	}
+
+	public static void logNetworkDataSent(Logger logger, String connectionID, String data) {
+		if (logger.isLoggable(Level.FINE))
+			log(logger, Level.FINE, connectionID, "Sending", data);
+	}
+
+	/**
+	 * Log sent bytes, only decoding them if they are going to be logged
+	 */
+	public static void logNetworkDataSent(Logger logger, String connectionID, byte[] data, int offset, int length) {
+		if (logger.isLoggable(Level.FINE))
+			log(logger, Level.FINE, connectionID, "Sending", new String(data, offset, length, StandardCharsets.UTF_8));
 	}
-	
-	public static void logNetworkDataSent(Logger logger, Socket socket, String data) {
-		logger.log(Level.FINE, String.format(LOG_FORMAT, getConnectionIDString(socket), "Sending", data));
+
+	public static void logNetworkDataReceived(Logger logger, String connectionID, String data) {
+		if (logger.isLoggable(Level.FINE))
+			log(logger, Level.FINE, connectionID, "Receiving", data);
 	}
-	
-	public static void logNetworkDataReceived(Logger logger, Socket socket, String data) {
-		logger.log(Level.FINE, String.format(LOG_FORMAT, getConnectionIDString(socket), "Receiving", data));
+
+	/**
+	 * Log received bytes, only decoding them if they are going to be logged
+	 */
+	public static void logNetworkDataReceived(Logger logger, String connectionID, byte[] data, int offset, int length) {
+		if (logger.isLoggable(Level.FINE))
+			log(logger, Level.FINE, connectionID, "Receiving", new String(data, offset, length, StandardCharsets.UTF_8));
 	}
-	
-	private static String getConnectionIDString(Socket socket) {
-		String address = socket.getInetAddress().getHostAddress();
-		String port = Integer.toString(socket.getPort());
-		
-		return String.format("%s:%s", address, port);
+
+	/**
+	 * Get the ID a connection is logged under
+	 * @param socket The connection
+	 * @return The remote address and port, like 10.0.0.1:52011
+	 */
+	public static String getConnectionID(Socket socket) {
+		return formatID(socket.getInetAddress(), socket.getPort());
 	}
-	
+
 	private static String getListenIDString(ServerSocket socket) {
 		if (socket == null)
 			return "-";
-		String address = socket.getInetAddress().getHostAddress();
-		String port = Integer.toString(socket.getLocalPort());
-		
-		return String.format("%s:%s", address, port);
+		return formatID(socket.getInetAddress(), socket.getLocalPort());
+	}
+
+	private static String formatID(InetAddress address, int port) {
+		String host = (address == null) ? "-" : address.getHostAddress();
+		return new StringBuilder(host.length() + 6).append(host).append(':').append(port).toString();
+	}
+
+	private static void log(Logger logger, Level level, String id, String context, String message) {
+		StringBuilder line = lineBuffers.get();
+		line.setLength(0);
+		line.append('[').append(id).append("] ").append(context).append(": ").append(message);
+		logger.log(level, line.toString());
+
+		if (line.capacity() > MAX_RETAINED_LINE_BUFFER)
+			lineBuffers.remove();
 	}
 }
@@ -0,0 +1,221 @@
+package edu.dasizeman.jftpserver;
+
+import java.lang.reflect.Method;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Runs the server's long lived tasks (control connections and data transfers) so
+ * that handlers don't create their own threads.  How the tasks
+ * get a thread is configurable: a new platform thread each (the old behavior),
+ * a bounded platform pool per task type, or virtual threads when the JVM has them
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class ExecutionManager {
+	private static final Logger logger = Logger.getGlobal();
+
+	private static final String THREAD_MODE_CONF_KEY = "thread_mode";
+	private static final String POOL_SIZE_CONF_KEY = "thread_pool_size";
+
+	private static volatile ExecutionManager instance = new ExecutionManager(Mode.THREAD, 0);
+
+	// One daemon thread for timeouts, shared by every session whatever the mode
+	private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "jftpd-timer");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * How tasks are given threads
+	 */
+	public enum Mode {
+		// A new, named platform thread per task
+		THREAD,
+		// A fixed size platform pool per task type.  Extra transfers queue until a thread frees
+		// up, but a control connection holds its thread for the whole session, so one that
+		// would have to queue is turned away instead
+		POOL,
+		// A new virtual thread per task (Java 21+)
+		VIRTUAL
+	}
+
+	/**
+	 * The kinds of task we run.  Each kind gets its own executor so that, in pool mode,
+	 * idle control connections can never starve transfers of threads
+	 */
+	public enum TaskType {
+		CONTROL("control"),
+		DATA("data");
+
+		public final String threadName;
+
+		TaskType(String threadName) {
+			this.threadName = threadName;
+		}
+	}
+
+	private final Mode mode;
+	private final Map<TaskType, ExecutorService> executors = new EnumMap<TaskType, ExecutorService>(TaskType.class);
+	private final Map<TaskType, ThreadFactory> threadFactories = new EnumMap<TaskType, ThreadFactory>(TaskType.class);
+
+	/**
+	 * Get the server wide execution manager
+	 * @return The manager set by configure, or a thread per task manager if it hasn't been called
+	 */
+	public static ExecutionManager getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Get the shared timer.  Scheduled tasks should be short, they all run on one thread
+	 * @return The timer
+	 */
+	public static ScheduledExecutorService getTimer() {
+		return timer;
+	}
+
+	/**
+	 * Set up the server wide execution manager from the configuration file
+	 * @param configFile The loaded configuration
+	 * @throws NumberFormatException If the pool size isn't a number
+	 */
+	public static void configure(ConfigurationFile configFile) throws NumberFormatException {
+		Mode mode;
+		try {
+			mode = Mode.valueOf(configFile.getConfigValue(THREAD_MODE_CONF_KEY).toUpperCase());
+		} catch (IllegalArgumentException e) {
+			EventLogger.logGeneralException(logger, "Execution setup", e);
+			mode = Mode.THREAD;
+		}
+		int poolSize = Integer.parseInt(configFile.getConfigValue(POOL_SIZE_CONF_KEY));
+
+		instance = new ExecutionManager(mode, poolSize);
+		EventLogger.logEvent(logger, "Execution setup", String.format("Running tasks in %s mode", instance.mode));
+	}
+
+	/**
+	 * Create a manager.  If virtual threads are asked for but the JVM doesn't support
+	 * them, falls back to a thread per task
+	 * @param mode How tasks should get threads
+	 * @param poolSize The number of threads per task type in pool mode
+	 */
+	public ExecutionManager(Mode mode, int poolSize) {
+		if (mode == Mode.POOL && poolSize <= 0)
+			throw new IllegalArgumentException(String.format("%s must be at least 1.", POOL_SIZE_CONF_KEY));
+
+		for (TaskType type : TaskType.values()) {
+			ThreadFactory threadFactory = new NamedThreadFactory(type.threadName);
+			threadFactories.put(type, threadFactory);
+			
+			ExecutorService executor = null;
+			switch (mode) {
+			case POOL:
+				BlockingQueue<Runnable> queue = (type == TaskType.CONTROL) ? new SynchronousQueue<Runnable>()
+						: new LinkedBlockingQueue<Runnable>();
+				executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS, queue, threadFactory);
+				break;
+			case VIRTUAL:
+				executor = newVirtualThreadExecutor(type.threadName);
+				break;
+			case THREAD:
+				break;
+			}
+
+			if (executor == null && mode == Mode.VIRTUAL) {
+				EventLogger.logEvent(logger, "Execution setup", "Virtual threads are not available on this JVM, using a thread per task");
+				mode = Mode.THREAD;
+			}
+			executors.put(type, executor);
+		}
+		this.mode = mode;
+	}
+
+	/**
+	 * Run a task
+	 * @param type The kind of task, used for naming and picking a pool
+	 * @param task The task to run
+	 * @throws RejectedExecutionException If it is a control connection and every thread in
+	 * the control pool is taken
+	 */
+	public void execute(TaskType type, Runnable task) throws RejectedExecutionException {
+		ExecutorService executor = executors.get(type);
+		if (executor == null)
+			threadFactories.get(type).newThread(task).start();
+		else
+			executor.execute(task);
+	}
+
+	/**
+	 * @return The mode tasks are actually being run in
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Stop accepting tasks.  Tasks that are already running are left alone
+	 */
+	public void shutdown() {
+		for (ExecutorService executor : executors.values()) {
+			if (executor != null)
+				executor.shutdown();
+		}
+	}
+
+	/**
+	 * Build a virtual thread per task executor through reflection, so we still compile
+	 * and run on JVMs that predate them
+	 * @param name The thread name prefix
+	 * @return The executor, or null if virtual threads aren't supported
+	 */
+	private static ExecutorService newVirtualThreadExecutor(String name) {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, String.format("jftpd-%s-", name), 0L);
+			ThreadFactory factory = (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+			Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService)newExecutor.invoke(null, factory);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Gives platform threads names like jftpd-data-12 so they can be told apart in
+	 * thread dumps
+	 * @author Dave Sizer <dave@sizetron.net>
+	 *
+	 */
+	private static class NamedThreadFactory implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger counter = new AtomicInteger();
+
+		NamedThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable task) {
+			return new Thread(task, String.format("jftpd-%s-%d", name, counter.getAndIncrement()));
+		}
+	}
+
+}
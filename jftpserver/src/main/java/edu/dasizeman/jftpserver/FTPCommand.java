@@ -1,8 +1,5 @@
 package edu.dasizeman.jftpserver;
 
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * Commands supported by JFTPServer
  * @author Dave Sizer <dave@sizetron.net>
@@ -20,21 +17,100 @@ public enum FTPCommand {
 	PORT,
 	EPRT,
 	RETR,
+	STOR,
+	APPE,
+	ALLO,
+	REST,
+	RANG,
+	SIZE,
+	FEAT,
 	PWD,
-	LIST, 
+	LIST,
+	NLST,
+	MLSD,
+	MLST,
 	HELP,
 	TYPE,
 	NOOP;
-	
-	private static final Map<String, FTPCommand> commandMap; 
+
+	// Every verb is at most four ASCII letters, so a verb packs into an int, which
+	// is looked up in an open addressed table without building a String
+	private static final int MAX_VERB_LENGTH = 4;
+	private static final int TABLE_BITS = 6;
+	private static final int[] packedVerbs = new int[1 << TABLE_BITS];
+	private static final FTPCommand[] commandTable = new FTPCommand[1 << TABLE_BITS];
 	static {
-		commandMap = new HashMap<String, FTPCommand>();
 		for (FTPCommand command : FTPCommand.values()) {
-			commandMap.put(command.name(), command);
+			int packed = 0;
+			for (int i = 0; i < command.name().length(); i++) {
+				packed = (packed << 8) | command.name().charAt(i);
+			}
+			int slot = slot(packed);
+			while (commandTable[slot] != null) {
+				slot = (slot + 1) & (commandTable.length - 1);
+			}
+			packedVerbs[slot] = packed;
+			commandTable[slot] = command;
 		}
 	}
-	
+
 	public static FTPCommand getByName(String name) {
-		return commandMap.get(name.toUpperCase());
+		if (name.length() > MAX_VERB_LENGTH)
+			return null;
+		int packed = 0;
+		for (int i = 0; i < name.length(); i++) {
+			int letter = pack(name.charAt(i));
+			if (letter < 0)
+				return null;
+			packed = (packed << 8) | letter;
+		}
+		return lookup(packed);
+	}
+
+	/**
+	 * Look up a verb without decoding it
+	 * @param buffer The bytes holding the verb
+	 * @param offset Where the verb starts
+	 * @param length The length of the verb
+	 * @return The command, or null if it isn't one we support
+	 */
+	public static FTPCommand getByName(byte[] buffer, int offset, int length) {
+		if (length > MAX_VERB_LENGTH)
+			return null;
+		int packed = 0;
+		for (int i = offset; i < offset + length; i++) {
+			int letter = pack(buffer[i]);
+			if (letter < 0)
+				return null;
+			packed = (packed << 8) | letter;
+		}
+		return lookup(packed);
+	}
+
+	/**
+	 * @return The upper case of an ASCII letter, or -1 if it isn't one
+	 */
+	private static int pack(int letter) {
+		if (letter >= 'a' && letter <= 'z')
+			return letter - ('a' - 'A');
+		if (letter >= 'A' && letter <= 'Z')
+			return letter;
+		return -1;
+	}
+
+	private static FTPCommand lookup(int packed) {
+		if (packed == 0)
+			return null;
+		int slot = slot(packed);
+		while (commandTable[slot] != null) {
+			if (packedVerbs[slot] == packed)
+				return commandTable[slot];
+			slot = (slot + 1) & (commandTable.length - 1);
+		}
+		return null;
+	}
+
+	private static int slot(int packed) {
+		return (packed * 0x9E3779B9) >>> (32 - TABLE_BITS);
 	}
 }
@@ -0,0 +1,179 @@
+package edu.dasizeman.jftpserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A command line parsed straight from the bytes it was read into.  The verb is looked up
+ * without decoding it and the arguments are kept as slices of the line, only decoded as
+ * UTF-8 when a handler asks for them as Strings.  Each session reuses one of these for
+ * every line, so parsing a command doesn't create any garbage.  The slices point into the
+ * buffer the line was read into, so the arguments are only good until the next read.
+ *
+ * Arguments are split on single spaces like String.split(" "), so two spaces in a row make
+ * an empty argument and spaces at the end of the line are dropped
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class FTPCommandLine {
+	private static final int INITIAL_MAX_ARGS = 4;
+
+	// The command, or null if the verb isn't one we support
+	private FTPCommand command;
+
+	private byte[] line;
+	private int start;
+	private int restStart;
+	private int end;
+
+	private int argCount;
+	private int[] argStarts = new int[INITIAL_MAX_ARGS];
+	private int[] argEnds = new int[INITIAL_MAX_ARGS];
+
+	// Arguments that have been decoded already, so asking twice doesn't decode twice
+	private String[] args = new String[INITIAL_MAX_ARGS];
+	private String rest;
+
+	/**
+	 * Parse a line.  The line must not change until this is done with
+	 * @param buffer The buffer holding the line
+	 * @param offset Where the line starts
+	 * @param length The length of the line, without the end of line
+	 * @return The command, or null if the verb isn't one we support
+	 */
+	public FTPCommand parse(byte[] buffer, int offset, int length) {
+		line = buffer;
+		start = offset;
+		argCount = 0;
+		rest = null;
+		Arrays.fill(args, null);
+
+		end = offset + length;
+		while (end > offset && buffer[end - 1] == ' ') {
+			end--;
+		}
+
+		int verbEnd = offset;
+		while (verbEnd < end && buffer[verbEnd] != ' ') {
+			verbEnd++;
+		}
+		command = FTPCommand.getByName(buffer, offset, verbEnd - offset);
+		restStart = Math.min(verbEnd + 1, end);
+
+		if (verbEnd < end) {
+			int argStart = verbEnd + 1;
+			for (int i = argStart; i <= end; i++) {
+				if (i == end || buffer[i] == ' ') {
+					addArg(argStart, i);
+					argStart = i + 1;
+				}
+			}
+		}
+		return command;
+	}
+
+	/**
+	 * Parse a line that is already a String, decoding it first
+	 * @param line The line
+	 * @return The command, or null if the verb isn't one we support
+	 */
+	public FTPCommand parse(String line) {
+		byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+		return parse(bytes, 0, bytes.length);
+	}
+
+	public FTPCommand getCommand() {
+		return command;
+	}
+
+	public int argCount() {
+		return argCount;
+	}
+
+	/**
+	 * @param index Which argument
+	 * @return The argument as a String
+	 * @throws ArrayIndexOutOfBoundsException If there aren't that many arguments
+	 */
+	public String arg(int index) {
+		checkIndex(index);
+		if (args[index] == null)
+			args[index] = decode(argStarts[index], argEnds[index]);
+		return args[index];
+	}
+
+	/**
+	 * Read an argument as a decimal number without decoding it
+	 * @param index Which argument
+	 * @return The number
+	 * @throws NumberFormatException If the argument isn't a number that fits in a long
+	 * @throws ArrayIndexOutOfBoundsException If there aren't that many arguments
+	 */
+	public long argAsLong(int index) throws NumberFormatException {
+		checkIndex(index);
+		int digits = argStarts[index];
+		int argEnd = argEnds[index];
+		boolean negative = digits < argEnd && line[digits] == '-';
+		if (negative || (digits < argEnd && line[digits] == '+'))
+			digits++;
+		if (digits == argEnd)
+			throw new NumberFormatException(String.format("Not a number: \"%s\"", arg(index)));
+
+		// Accumulate negatively so Long.MIN_VALUE fits, like Long.parseLong
+		long value = 0;
+		for (int i = digits; i < argEnd; i++) {
+			int digit = line[i] - '0';
+			if (digit < 0 || digit > 9 || value < (Long.MIN_VALUE + digit) / 10)
+				throw new NumberFormatException(String.format("Not a number: \"%s\"", arg(index)));
+			value = value * 10 - digit;
+		}
+		if (!negative) {
+			if (value == Long.MIN_VALUE)
+				throw new NumberFormatException(String.format("Not a number: \"%s\"", arg(index)));
+			value = -value;
+		}
+		return value;
+	}
+
+	/**
+	 * Everything after the verb, for arguments like paths that may have spaces in them
+	 * @return The rest of the line, or an empty String if there isn't any
+	 */
+	public String rest() {
+		if (rest == null)
+			rest = (restStart == end) ? "" : decode(restStart, end);
+		return rest;
+	}
+
+	/**
+	 * @return The whole line, for logging
+	 */
+	@Override
+	public String toString() {
+		return (line == null) ? "" : decode(start, end);
+	}
+
+	private void addArg(int argStart, int argEnd) {
+		if (argCount == argStarts.length) {
+			argStarts = Arrays.copyOf(argStarts, argCount * 2);
+			argEnds = Arrays.copyOf(argEnds, argCount * 2);
+			args = Arrays.copyOf(args, argCount * 2);
+		}
+		argStarts[argCount] = argStart;
+		argEnds[argCount] = argEnd;
+		argCount++;
+	}
+
+	/**
+	 * Throw what indexing the old String[] of arguments threw, which is what handlers catch
+	 */
+	private void checkIndex(int index) {
+		if (index < 0 || index >= argCount)
+			throw new ArrayIndexOutOfBoundsException(String.format("Argument %d of %d", index, argCount));
+	}
+
+	private String decode(int from, int to) {
+		return new String(line, from, to - from, StandardCharsets.UTF_8);
+	}
+
+}
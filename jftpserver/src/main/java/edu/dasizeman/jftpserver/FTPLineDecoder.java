@@ -0,0 +1,149 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits what a client sends on the control connection into lines, in a fixed buffer that
+ * holds exactly one line of the longest length we allow.  A line longer than that is thrown
+ * away as it arrives instead of being kept, and the handler is told about it once its end comes
+ * in, so a session uses the same amount of memory no matter what the client sends.  Both engines
+ * read straight into the buffer and lines are handed to the handler right where they were read
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class FTPLineDecoder {
+	private static final String MAX_LINE_LENGTH_CONF_KEY = "max_line_length";
+
+	// Anything shorter wouldn't leave room for a path
+	private static final int MIN_LINE_LENGTH = 64;
+
+	private static volatile int maxLineLength = 2048;
+
+	private final int maxLength;
+
+	// Room for the longest line and its telnet EOL
+	private final byte[] buffer;
+	private final ByteBuffer channelView;
+
+	// The buffered bytes are [start, end), and everything before scanned has no LF in it
+	private int start = 0;
+	private int end = 0;
+	private int scanned = 0;
+
+	// Whether we are throwing away the rest of a line that was too long
+	private boolean skipping = false;
+
+	/**
+	 * Set the longest line from the configuration file
+	 * @param configFile The loaded configuration
+	 * @throws NumberFormatException If the length isn't valid
+	 */
+	public static void configure(ConfigurationFile configFile) throws NumberFormatException {
+		long length = configFile.getSizeValue(MAX_LINE_LENGTH_CONF_KEY);
+		if (length < MIN_LINE_LENGTH || length > Integer.MAX_VALUE - 2)
+			throw new IllegalArgumentException(String.format("%s must be at least %d.", MAX_LINE_LENGTH_CONF_KEY, MIN_LINE_LENGTH));
+		maxLineLength = (int)length;
+	}
+
+	/**
+	 * A decoder for the configured longest line
+	 */
+	public FTPLineDecoder() {
+		this(maxLineLength);
+	}
+
+	/**
+	 * @param maxLength The longest line to accept, not counting the telnet EOL
+	 */
+	public FTPLineDecoder(int maxLength) {
+		this.maxLength = maxLength;
+		this.buffer = new byte[maxLength + 2];
+		this.channelView = ByteBuffer.wrap(buffer);
+	}
+
+	public int getMaxLength() {
+		return maxLength;
+	}
+
+	/**
+	 * Read whatever the stream has, blocking until there is something
+	 * @param in The stream to read from
+	 * @return The number of bytes read, or -1 at the end of the stream
+	 * @throws IOException If the read fails
+	 */
+	public int readFrom(InputStream in) throws IOException {
+		makeRoom();
+		int count = in.read(buffer, end, buffer.length - end);
+		if (count > 0)
+			end += count;
+		return count;
+	}
+
+	/**
+	 * Read whatever the channel has
+	 * @param channel The channel to read from
+	 * @return The number of bytes read, or -1 at the end of the stream
+	 * @throws IOException If the read fails
+	 */
+	public int readFrom(ReadableByteChannel channel) throws IOException {
+		makeRoom();
+		channelView.clear();
+		channelView.position(end);
+		int count = channel.read(channelView);
+		if (count > 0)
+			end += count;
+		return count;
+	}
+
+	/**
+	 * Hand the next complete line to the handler, without the telnet EOL.  A line that was too
+	 * long is reported to the handler instead
+	 * @param handler The handler to give the line to
+	 * @return False if there isn't a complete line buffered
+	 */
+	public boolean nextLine(ControlConnectionHandler handler) {
+		for (int i = scanned; i < end; i++) {
+			if (buffer[i] == '\n') {
+				int lineStart = start;
+				int lineEnd = (i > lineStart && buffer[i - 1] == '\r') ? i - 1 : i;
+				start = scanned = i + 1;
+
+				if (skipping) {
+					skipping = false;
+					handler.handleOversizeFTPPDU(maxLength);
+				} else if (lineEnd - lineStart > maxLength)
+					handler.handleOversizeFTPPDU(maxLength);
+				else
+					handler.handleFTPPDU(buffer, lineStart, lineEnd - lineStart);
+				return true;
+			}
+		}
+
+		// Drop a partial line once it can't fit anymore, and anything more of it that arrives
+		if (skipping || end - start > maxLength + 1) {
+			skipping = true;
+			start = end;
+		}
+		scanned = end;
+		return false;
+	}
+
+	/**
+	 * Move a partial line to the front of the buffer.  A partial line is never longer than
+	 * maxLength + 1, so there is always room left after this
+	 */
+	private void makeRoom() {
+		if (start == end) {
+			start = end = scanned = 0;
+		} else if (end == buffer.length) {
+			System.arraycopy(buffer, start, buffer, 0, end - start);
+			end -= start;
+			scanned -= start;
+			start = 0;
+		}
+	}
+
+}
@@ -1,5 +1,6 @@
 package edu.dasizeman.jftpserver;
 
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -48,14 +49,21 @@ public enum FTPResponse {
 	FILE_UNAVAIL(550, "Requested action not taken. File unavailable"),
 	ABRT_OUT_OF_SPACE(552, "Requested file action aborted. Exceeded storage allocation"),
 	ENTERING_EPSV(229, "Entering extended passive mode."),
-	BAD_FILE_NAME(553, "Requested action not taken. File name not allowed.");
+	BAD_FILE_NAME(553, "Requested action not taken. File name not allowed."),
+	INVALID_REST(554, "Requested action not taken: invalid REST parameter.");
 	
 	public final int code;
 	public final String message;
 	
+	// Encoded once up front: the code followed by a space, and the whole reply with the default message
+	final byte[] codePrefix;
+	final byte[] defaultReply;
+	
 	FTPResponse(int code, String message) {
 		this.code = code;
 		this.message = message;
+		this.codePrefix = String.format("%d ", code).getBytes(StandardCharsets.US_ASCII);
+		this.defaultReply = String.format("%d %s\r\n", code, message).getBytes(StandardCharsets.UTF_8);
 	}
 	
 	private static final Map<Integer, FTPResponse> responseMap;
@@ -0,0 +1,305 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * A shared, size bounded cache of popular files for RETR.  Small files are held in
+ * off-heap direct buffers and large files are memory mapped, each tier with its own
+ * budget.  Admission uses TinyLFU: a file only displaces cached files if it has been
+ * requested more often recently than they have, so a one-off download can't flush
+ * the hot set.  Entries are checked against the file's size and mtime on every lookup
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class FileCache {
+	private static final Logger logger = Logger.getGlobal();
+
+	private static final String MEMORY_SIZE_CONF_KEY = "file_cache_memory";
+	private static final String MAPPED_SIZE_CONF_KEY = "file_cache_mapped";
+	private static final String SMALL_FILE_MAX_CONF_KEY = "file_cache_small_file_max";
+
+	// Counters per row in the frequency sketch
+	private static final int SKETCH_WIDTH = 1 << 16;
+
+	private static volatile FileCache instance = new FileCache(0, 0, 0);
+
+	// Cached files live in one of these, depending on their size
+	private final Tier smallFiles;
+	private final Tier largeFiles;
+	private final long smallFileMax;
+
+	private final FrequencySketch sketch = new FrequencySketch(SKETCH_WIDTH);
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder rejections = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	/**
+	 * Get the server wide file cache
+	 * @return The cache set by configure, or a disabled cache if it hasn't been called
+	 */
+	public static FileCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Set up the server wide file cache from the configuration file.  The cache is only
+	 * replaced, starting out empty, when its sizes change, so a reload doesn't empty it
+	 * @param configFile The loaded configuration
+	 * @throws NumberFormatException If a size isn't valid
+	 */
+	public static synchronized void configure(ConfigurationFile configFile) throws NumberFormatException {
+		long memoryCapacity = configFile.getSizeValue(MEMORY_SIZE_CONF_KEY);
+		long mappedCapacity = configFile.getSizeValue(MAPPED_SIZE_CONF_KEY);
+		long smallFileMax = configFile.getSizeValue(SMALL_FILE_MAX_CONF_KEY);
+		FileCache previous = instance;
+		if (memoryCapacity == previous.smallFiles.capacity && mappedCapacity == previous.largeFiles.capacity
+				&& smallFileMax == previous.smallFileMax)
+			return;
+		instance = new FileCache(memoryCapacity, mappedCapacity, smallFileMax);
+		EventLogger.logEvent(logger, "File cache setup", String.format("%d bytes in memory, %d bytes mapped, small files up to %d bytes",
+				instance.smallFiles.capacity, instance.largeFiles.capacity, instance.smallFileMax));
+	}
+
+	/**
+	 * Create a cache.  A tier with a capacity of 0 is disabled
+	 * @param memoryCapacity The bytes of direct memory to use for small files
+	 * @param mappedCapacity The bytes of large files to keep mapped
+	 * @param smallFileMax The largest file size that goes in the direct memory tier
+	 */
+	public FileCache(long memoryCapacity, long mappedCapacity, long smallFileMax) {
+		smallFiles = new Tier(memoryCapacity);
+		largeFiles = new Tier(mappedCapacity);
+		this.smallFileMax = smallFileMax;
+	}
+
+	/**
+	 * Look up a file, loading it into the cache if it is popular enough to be admitted
+	 * @param file The file to look up
+	 * @return A buffer positioned at the start of the file's contents that the caller
+	 * is free to consume, or null if the file isn't cached
+	 */
+	public ByteBuffer get(File file) {
+		if (smallFiles.capacity <= 0 && largeFiles.capacity <= 0)
+			return null;
+
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		} catch (IOException e) {
+			return null;
+		}
+		if (!attributes.isRegularFile())
+			return null;
+
+		String key = file.getAbsolutePath();
+		long size = attributes.size();
+		long modified = attributes.lastModifiedTime().toMillis();
+		Tier tier = tierFor(size);
+
+		synchronized (this) {
+			sketch.increment(key);
+
+			Entry entry = smallFiles.entries.get(key);
+			if (entry == null)
+				entry = largeFiles.entries.get(key);
+			if (entry != null) {
+				if (entry.size == size && entry.modified == modified) {
+					hits.increment();
+					return entry.buffer.duplicate();
+				}
+				remove(entry);
+				invalidations.increment();
+			}
+
+			misses.increment();
+			if (tier == null)
+				return null;
+			if (!shouldAdmit(tier, key, size)) {
+				rejections.increment();
+				return null;
+			}
+		}
+
+		// Read or map the file without holding the lock
+		ByteBuffer buffer;
+		try {
+			buffer = load(file, size, tier == largeFiles);
+		} catch (IOException e) {
+			EventLogger.logGeneralException(logger, "File cache load", e);
+			return null;
+		}
+
+		synchronized (this) {
+			Entry existing = tier.entries.get(key);
+			if (existing != null)
+				remove(existing);
+			makeRoom(tier, size);
+			tier.entries.put(key, new Entry(key, buffer, size, modified, tier));
+			tier.used += size;
+		}
+		return buffer.duplicate();
+	}
+
+	/**
+	 * Drop a file from the cache, for when we know it has changed
+	 * @param file The file to drop
+	 */
+	public synchronized void invalidate(File file) {
+		String key = file.getAbsolutePath();
+		Entry entry = smallFiles.entries.get(key);
+		if (entry == null)
+			entry = largeFiles.entries.get(key);
+		if (entry != null) {
+			remove(entry);
+			invalidations.increment();
+		}
+	}
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	public long getRejectionCount() {
+		return rejections.sum();
+	}
+
+	public long getInvalidationCount() {
+		return invalidations.sum();
+	}
+
+	public synchronized long getMemoryBytesUsed() {
+		return smallFiles.used;
+	}
+
+	public synchronized long getMappedBytesUsed() {
+		return largeFiles.used;
+	}
+
+	public synchronized int getEntryCount() {
+		return smallFiles.entries.size() + largeFiles.entries.size();
+	}
+
+	/**
+	 * Pick the tier a file of the given size belongs in
+	 * @param size The file size
+	 * @return The tier, or null if the file can't be cached
+	 */
+	private Tier tierFor(long size) {
+		Tier tier = (size <= smallFileMax) ? smallFiles : largeFiles;
+
+		// A single buffer can't address more than 2GB
+		if (size == 0 || size > Integer.MAX_VALUE || size > tier.capacity)
+			return null;
+		return tier;
+	}
+
+	/**
+	 * TinyLFU admission.  The candidate is admitted if there is room, or if it is more
+	 * popular than every entry that would have to be evicted to make room for it
+	 */
+	private boolean shouldAdmit(Tier tier, String key, long size) {
+		long needed = tier.used + size - tier.capacity;
+		if (needed <= 0)
+			return true;
+
+		int candidateFrequency = sketch.frequency(key);
+		for (Entry victim : tier.entries.values()) {
+			if (sketch.frequency(victim.key) >= candidateFrequency)
+				return false;
+			needed -= victim.size;
+			if (needed <= 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Evict least recently used entries until the tier has room
+	 */
+	private void makeRoom(Tier tier, long size) {
+		Iterator<Entry> victims = tier.entries.values().iterator();
+		while (tier.used + size > tier.capacity && victims.hasNext()) {
+			Entry victim = victims.next();
+			victims.remove();
+			tier.used -= victim.size;
+			evictions.increment();
+		}
+	}
+
+	private void remove(Entry entry) {
+		if (entry.tier.entries.remove(entry.key) != null)
+			entry.tier.used -= entry.size;
+	}
+
+	/**
+	 * Read a small file into direct memory, or map a large one
+	 */
+	private static ByteBuffer load(File file, long size, boolean mapped) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			if (mapped)
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect((int)size);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0)
+					break;
+			}
+			buffer.flip();
+			return buffer;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * A budget and the entries using it, in least recently used order
+	 */
+	private static class Tier {
+		final long capacity;
+		long used = 0;
+		final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+		Tier(long capacity) {
+			this.capacity = capacity;
+		}
+	}
+
+	private static class Entry {
+		final String key;
+		final ByteBuffer buffer;
+		final long size;
+		final long modified;
+		final Tier tier;
+
+		Entry(String key, ByteBuffer buffer, long size, long modified, Tier tier) {
+			this.key = key;
+			this.buffer = buffer;
+			this.size = size;
+			this.modified = modified;
+			this.tier = tier;
+		}
+	}
+
+}
@@ -0,0 +1,134 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+
+/**
+ * What a listing shows about a file or directory, whichever Storage it lives in
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class FileInfo {
+	static final int S_IFMT = 0170000;
+	static final int S_IFDIR = 0040000;
+	static final int S_IFREG = 0100000;
+	static final int S_IFLNK = 0120000;
+
+	// The attributes of the unix view we use, read in one go.  Platforms without it get
+	// basic attributes and made up permissions
+	private static final String UNIX_ATTRIBUTES = "unix:mode,nlink,uid,gid,size,lastModifiedTime";
+
+	private final int mode;
+	private final boolean realMode;
+	private final long links;
+	private final long uid;
+	private final long gid;
+	private final long size;
+	private final long modified;
+
+	/**
+	 * @param mode The unix mode, with the file type bits
+	 * @param realMode Whether the mode came from the file, rather than being made up
+	 * @param links The number of hard links
+	 * @param uid The owner's user id
+	 * @param gid The owner's group id
+	 * @param size The size in bytes
+	 * @param modified The mtime in milliseconds
+	 */
+	public FileInfo(int mode, boolean realMode, long links, long uid, long gid, long size, long modified) {
+		this.mode = mode;
+		this.realMode = realMode;
+		this.links = links;
+		this.uid = uid;
+		this.gid = gid;
+		this.size = size;
+		this.modified = modified;
+	}
+
+	/**
+	 * Describe a file or directory that only has a size and an mtime, like the ones we keep in memory
+	 * @param directory Whether it is a directory
+	 * @param size The size in bytes
+	 * @param modified The mtime in milliseconds
+	 */
+	public FileInfo(boolean directory, long size, long modified) {
+		this(directory ? (S_IFDIR | 0755) : (S_IFREG | 0644), true, 1, 0, 0, size, modified);
+	}
+
+	/**
+	 * Read the attributes of a file on disk in one call
+	 * @param path The file
+	 * @param unix Whether the file's filesystem has the unix attribute view
+	 * @param options NOFOLLOW_LINKS to describe a symlink itself rather than what it points
+	 * to, which may be outside the root.  Only follow links that have been resolved inside it
+	 * @return The attributes, or null if they couldn't be read
+	 */
+	public static FileInfo read(Path path, boolean unix, LinkOption... options) {
+		try {
+			if (unix) {
+				Map<String, Object> attributes = Files.readAttributes(path, UNIX_ATTRIBUTES, options);
+				return new FileInfo((Integer)attributes.get("mode"), true, (Integer)attributes.get("nlink"),
+						(Integer)attributes.get("uid"), (Integer)attributes.get("gid"), (Long)attributes.get("size"),
+						((FileTime)attributes.get("lastModifiedTime")).toMillis());
+			}
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, options);
+			int mode = attributes.isDirectory() ? (S_IFDIR | 0755)
+					: attributes.isSymbolicLink() ? (S_IFLNK | 0777) : (S_IFREG | 0644);
+			return new FileInfo(mode, false, 1, 0, 0, attributes.size(), attributes.lastModifiedTime().toMillis());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param path Any path on the filesystem
+	 * @return Whether its filesystem has the unix attribute view
+	 */
+	public static boolean isUnix(Path path) {
+		return path.getFileSystem().supportedFileAttributeViews().contains("unix");
+	}
+
+	public int getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return Whether the mode came from the file, rather than being made up
+	 */
+	public boolean isRealMode() {
+		return realMode;
+	}
+
+	public boolean isDirectory() {
+		return (mode & S_IFMT) == S_IFDIR;
+	}
+
+	public long getLinks() {
+		return links;
+	}
+
+	public long getUid() {
+		return uid;
+	}
+
+	public long getGid() {
+		return gid;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return The mtime in milliseconds
+	 */
+	public long getModified() {
+		return modified;
+	}
+
+}
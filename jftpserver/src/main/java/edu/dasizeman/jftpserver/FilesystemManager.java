@@ -1,54 +1,36 @@
 package edu.dasizeman.jftpserver;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.logging.Logger;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.FilenameUtils;
-
 /**
  * Handles navigating the file system, reading/writing files,
- * and jailing the user to a virtual root directory
+ * and jailing the user to a virtual root directory.  Paths are worked out as virtual paths
+ * under the root first, without touching anything, and then handed to the session's Storage,
+ * which decides what is really there
  * @author Dave Sizer <dave@sizetron.net>
  *
  */
 public class FilesystemManager {
 	private static final Logger logger = Logger.getGlobal();
 	
-	// These are always absolute paths
-	private String rootPath;
-	private String currentPath;
+	private final Storage storage;
+	
+	// The current directory, as the virtual path the user sees
+	private String currentVirtualPath = "/";
+	
+	// The PWD reply for the current directory, worked out when it changes
+	private String pwd = "/";
 	
 	/**
 	 * Create a new filesystem manager
-	 * @param root The virtual root oath that the user must stay in
+	 * @param storage Where the files live, which is the virtual root the user must stay in
 	 */
-	public FilesystemManager(String rootStr) {
-		if (rootStr.equals(""))
-			rootStr = ".";
-		
-		try {
-			//rootPath = Paths.get(rootStr).toAbsolutePath().normalize().toRealPath();
-			
-                        String normalized = FilenameUtils.normalize(rootStr);
-			File rootDir = FileUtils.getFile(normalized);
-			if (!rootDir.exists() || !rootDir.isDirectory())
-				throw new FileNotFoundException(String.format("Could not open root directory: %s", rootStr));
-			rootPath = rootDir.getAbsolutePath();
-			
-		} catch (IOException e) {
-			// Assuming . is always a valid path
-			//rootPath = Paths.get(".").toAbsolutePath().normalize();
-			EventLogger.logGeneralException(logger, "Filesystem setup", e);
-			System.exit(1);
-		}
-		
-		currentPath = rootPath;
+	public FilesystemManager(Storage storage) {
+		this.storage = storage;
 	}
 	
 	/**
@@ -56,69 +38,61 @@ public class FilesystemManager {
 	 * @return A string representing the cwd
 	 */
 	public String pwd() {
-		return String.format("%s/",
-				Paths.get(rootPath).relativize(Paths.get(currentPath)).toString()
-				.replaceAll("\\\\", "/"));
+		return pwd;
 	}
 	
 	/**
-	 * List the files in the current directory.
-	 * TODO make this a fancier unix-style listing 
-	 * @return A string containing the directory listing
+	 * Get a lister for the current directory.  Listings are produced by the data
+	 * connection as it sends them, so this doesn't touch the filesystem
+	 * @param format The listing format
+	 * @return The lister
 	 */
-	public String ls() {
-		StringBuffer result = new StringBuffer();
-		File currentDirectory = FileUtils.getFile(currentPath);
-		for (File file : currentDirectory.listFiles()) {
-			result.append(String.format("%s\r\n",printFile(file)));
-		}
-		
-		return result.toString();
+	public DirectoryLister list(DirectoryLister.Format format) {
+		return storage.list(currentVirtualPath, format);
 	}
 	
 	/**
-	 * Change the current working directory, checking the candidate path's validity
+	 * Describe a file in the current directory for MLST
+	 * @param filename The file, or an empty string for the current directory
+	 * @return The fact line, or null if the file can't be read
+	 */
+	public String describe(String filename) {
+		String virtualPath = filename.isEmpty() ? currentVirtualPath : toVirtualPath(filename);
+		FileInfo info = (virtualPath == null) ? null : storage.stat(virtualPath);
+		if (info == null)
+			return null;
+		return DirectoryLister.describe(info, filename.isEmpty() ? "." : filename);
+	}
+	
+	/**
+	 * Change the current working directory, checking the candidate path's validity.  Paths
+	 * starting with / are from the virtual root, anything else is from the current directory
 	 * @param pathStr The path to change to
 	 * @throws FileNotFoundException If the directory does not exist
 	 */
 	public void cd(String pathStr) throws FileNotFoundException {
-		Path path = Paths.get(pathStr);
-		if (!path.isAbsolute()) {
-			String prefix;
-			if (pathStr.startsWith("/")) {
-				pathStr = pathStr.substring(1);
-				prefix = rootPath;
-			}
-			else
-				prefix = currentPath;
-			String normalized = FilenameUtils.normalize(FilenameUtils.concat(prefix, pathStr));
-			path = Paths.get(normalized);
-                        EventLogger.logEvent(logger,"cd", String.format("Trying to cd to %s", path.toString()));
-		}
-		
-		if (pathExists(path.toString()) && isPathInRoot(path)) {
-			currentPath = path.toString();
-		} else {
+		String virtualPath = toVirtualPath(pathStr);
+		EventLogger.logEvent(logger, "cd", String.format("Trying to cd to %s", virtualPath));
+	
+		if (virtualPath == null || storage.find(virtualPath) != Storage.Kind.DIRECTORY)
 			throw new FileNotFoundException("Invalid path.");
-		}
-	}
 	
-	public boolean pathExists(String path) {
-		File directory = FileUtils.getFile(path);
-		return (directory.exists() && directory.isDirectory());
+		currentVirtualPath = virtualPath;
+		pwd = virtualPath.equals("/") ? "/" : virtualPath.substring(1) + "/";
 	}
 	
 	/**
-	 * Check if the current directory has the given file, and return a stream to read it
+	 * Check if the current directory has the given file, and return a channel to read it.
+	 * A FileChannel rather than a stream lets transfers hand the file straight to the kernel
 	 * @param filename The file to open
-	 * @return The stream to the file, or null if it is not valid
+	 * @return The channel to the file, or null if it is not valid
 	 */
-	public FileInputStream getFileStream(String filename) {
-		File currentDirectory = FileUtils.getFile(currentPath);
-		File targetFile = FileUtils.getFile(currentDirectory, filename);
+	public FileChannel getFileChannel(String filename) {
+		String virtualPath = getFilePath(filename);
+		if (virtualPath == null)
+			return null;
 		try {
-			FileInputStream result = FileUtils.openInputStream(targetFile);
-			return result;
+			return storage.openRead(virtualPath);
 		} catch (IOException e) {
 			EventLogger.logGeneralException(logger, "Opening file", e);
 			return null;
@@ -126,38 +100,89 @@ public class FilesystemManager {
 	}
 	
 	/**
-	 * Append the directory / to directories
-	 * @param file The File object to print
-	 * @return The string to be printed
+	 * Start an upload to the given file in the current directory
+	 * @param filename The file to upload to
+	 * @param keep How many bytes of the file's current contents to keep, see Storage.openWrite
+	 * @param allocate The number of bytes the client expects to send, or 0 if unknown
+	 * @return The upload, or null if the file can't be written
+	 */
+	public Upload openUpload(String filename, long keep, long allocate) {
+		String virtualPath = toVirtualPath(filename);
+		if (virtualPath == null || virtualPath.equals("/")) {
+			EventLogger.logEvent(logger, "Opening upload", String.format("Refusing upload to %s", filename));
+			return null;
+		}
+	
+		try {
+			return storage.openWrite(virtualPath, keep, allocate);
+		} catch (IOException e) {
+			EventLogger.logGeneralException(logger, "Opening upload", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Get the size of the given file in the current directory
+	 * @param filename The file
+	 * @return The size in bytes, or -1 if it isn't a readable file
 	 */
-	private String printFile(File file) {
-		String res = file.getName();
-		if (file.isDirectory())
-			res += "/";
-		return res;
+	public long getFileSize(String filename) {
+		String virtualPath = toVirtualPath(filename);
+		FileInfo info = (virtualPath == null) ? null : storage.stat(virtualPath);
+		return (info == null || info.isDirectory()) ? -1 : info.getSize();
 	}
 	
 	/**
-	 * Verify that the given path exists and is within the virtual
-	 * root filesystem, and return a Path object for it
-	 * @param path The path to validate
-	 * @return The Path object representing the valid path, or null if it isn't valid
+	 * Look for the given file's contents in memory, in the shared file cache or the storage itself
+	 * @param filename The file to look up, relative to the current directory
+	 * @return A buffer with the file's contents, or null if they aren't in memory
 	 */
-	private boolean isPathInRoot(Path path) {
-		Path parentCheck = path;
-		Path root = Paths.get(rootPath);
-		if (parentCheck.equals(root))
-			return true;
-		
-		while (parentCheck.getParent() != null) {
-			if (parentCheck.getParent().equals(root))
-				return true;
-			parentCheck = parentCheck.getParent();
-		}
-		
-		return false;
+	public ByteBuffer getCachedFile(String filename) {
+		String virtualPath = toVirtualPath(filename);
+		if (virtualPath == null)
+			return null;
+		return storage.getContents(virtualPath);
 	}
 	
+	/**
+	 * Get a file that isn't a directory
+	 * @param filename The path, from the current directory or the virtual root
+	 * @return Its virtual path, or null if it isn't a file inside the root
+	 */
+	private String getFilePath(String filename) {
+		String virtualPath = toVirtualPath(filename);
+		if (virtualPath == null || storage.find(virtualPath) != Storage.Kind.FILE)
+			return null;
+		return virtualPath;
+	}
+	
+	/**
+	 * Work out the virtual path the user means, without touching the filesystem
+	 * @param pathStr The path, from the current directory or the virtual root
+	 * @return The normalized virtual path, starting with /, or null if it climbs out of the root
+	 */
+	private String toVirtualPath(String pathStr) {
+		StringBuilder virtualPath = new StringBuilder(pathStr.startsWith("/") ? "" : currentVirtualPath);
+		if (virtualPath.length() == 1)
+			virtualPath.setLength(0);
+	
+		int start = 0;
+		while (start <= pathStr.length()) {
+			int end = pathStr.indexOf('/', start);
+			if (end < 0)
+				end = pathStr.length();
+			int length = end - start;
 	
+			if (length == 2 && pathStr.startsWith("..", start)) {
+				if (virtualPath.length() == 0)
+					return null;
+				virtualPath.setLength(virtualPath.lastIndexOf("/"));
+			} else if (length > 0 && !(length == 1 && pathStr.charAt(start) == '.')) {
+				virtualPath.append('/').append(pathStr, start, end);
+			}
+			start = end + 1;
+		}
+		return (virtualPath.length() == 0) ? "/" : virtualPath.toString();
+	}
 
 }
@@ -0,0 +1,78 @@
+package edu.dasizeman.jftpserver;
+
+/**
+ * A count-min sketch of how often keys have been seen recently, for TinyLFU style
+ * cache admission.  Counters saturate at 15 and are all halved once enough increments
+ * have been recorded, so old popularity fades out.  Not thread safe, callers lock
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+class FrequencySketch {
+	private static final int DEPTH = 4;
+	private static final int MAX_COUNT = 15;
+	private static final int[] SEEDS = new int[]{0x97cb3127, 0x9e3779b9, 0x85ebca6b, 0xc2b2ae35};
+
+	private final byte[][] table;
+	private final int mask;
+	private final int sampleSize;
+	private int additions = 0;
+
+	/**
+	 * @param width The number of counters per row, rounded up to a power of two
+	 */
+	FrequencySketch(int width) {
+		int size = Integer.highestOneBit(Math.max(width, 16) - 1) << 1;
+		table = new byte[DEPTH][size];
+		mask = size - 1;
+		sampleSize = size * 10;
+	}
+
+	/**
+	 * Record an occurrence of the key
+	 * @param key The key that was seen
+	 */
+	void increment(Object key) {
+		int hash = key.hashCode();
+		for (int i = 0; i < DEPTH; i++) {
+			int index = indexOf(hash, i);
+			if (table[i][index] < MAX_COUNT)
+				table[i][index]++;
+		}
+
+		if (++additions >= sampleSize)
+			reset();
+	}
+
+	/**
+	 * Estimate how often the key has been seen recently
+	 * @param key The key to look up
+	 * @return The estimated frequency, at most 15
+	 */
+	int frequency(Object key) {
+		int hash = key.hashCode();
+		int min = MAX_COUNT;
+		for (int i = 0; i < DEPTH; i++) {
+			min = Math.min(min, table[i][indexOf(hash, i)]);
+		}
+		return min;
+	}
+
+	/**
+	 * Halve every counter so that the sketch favors recent history
+	 */
+	private void reset() {
+		for (byte[] row : table) {
+			for (int i = 0; i < row.length; i++) {
+				row[i] = (byte)(row[i] >>> 1);
+			}
+		}
+		additions /= 2;
+	}
+
+	private int indexOf(int hash, int row) {
+		int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+		h ^= h >>> 16;
+		return h & mask;
+	}
+
+}
@@ -0,0 +1,113 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * An append or resumed upload to LocalStorage, written straight into the target rather than
+ * staged, so nothing already in the file is copied.  Appends open the file in append mode,
+ * so every write lands at the end of the file as it is then, and concurrent appends to the same
+ * file interleave rather than losing each other's data.  A resumed upload cuts the file at its
+ * offset and carries on from there.  Either way other sessions see the file grow as the data
+ * arrives, and an upload that fails part way leaves what it wrote, which the client can resume from
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class InPlaceUpload implements Upload {
+	private static final Logger logger = Logger.getGlobal();
+
+	private final File target;
+	private final FileChannel channel;
+	private boolean finished = false;
+
+	// Whether the file was created for this upload, so its directory has to be forced too
+	private final boolean created;
+
+	/**
+	 * Start an upload into the given file
+	 * @param target The file to write to, which is created if it isn't there
+	 * @param offset Where to start writing, or Long.MAX_VALUE to append.  Anything after the
+	 * offset is dropped, and an offset past the end of the file appends
+	 * @throws IOException If the file couldn't be opened
+	 */
+	public InPlaceUpload(File target, long offset) throws IOException {
+		this.target = target;
+		this.created = !target.exists();
+		if (offset == Long.MAX_VALUE) {
+			this.channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND);
+			return;
+		}
+
+		this.channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		try {
+			channel.truncate(offset);
+			channel.position(channel.size());
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Write everything in the buffer to the file
+	 * @param buffer The data to write
+	 * @throws IOException If the write failed
+	 */
+	@Override
+	public void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Finish the upload, making it durable according to the upload_fsync policy
+	 * @throws IOException If the file couldn't be synced.  The upload is aborted in that case
+	 */
+	@Override
+	public void commit() throws IOException {
+		try {
+			StagedUpload.force(channel);
+			channel.close();
+			finished = true;
+			if (created)
+				StagedUpload.forceDirectory(target.getParentFile().toPath());
+		} catch (IOException e) {
+			abort();
+			throw e;
+		}
+		FileCache.getInstance().invalidate(target);
+		PathResolver.getInstance().invalidate(target.toPath());
+	}
+
+	/**
+	 * Stop writing, leaving what has been written in the file
+	 */
+	@Override
+	public void abort() {
+		if (finished)
+			return;
+		finished = true;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			EventLogger.logGeneralException(logger, "Upload abort", e);
+		}
+		FileCache.getInstance().invalidate(target);
+		PathResolver.getInstance().invalidate(target.toPath());
+	}
+
+	/**
+	 * Abort the upload if it hasn't been committed
+	 */
+	@Override
+	public void close() {
+		abort();
+	}
+
+}
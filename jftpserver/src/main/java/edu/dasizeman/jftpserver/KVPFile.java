@@ -18,6 +18,8 @@ import org.apache.commons.io.FileUtils;
  *
  */
 public class KVPFile {
+	private static final Pattern DEFAULT_LINE_PATTERN = Pattern.compile("^(.+)=(.+)$");
+	
 	private BufferedReader reader;
 	private File file;
 
@@ -29,22 +31,26 @@ public class KVPFile {
 		String line = null;
 		ConcurrentHashMap<String,String> kvMap = new ConcurrentHashMap<String,String>();
 		int lineIdx = 1;
-		while ((line = reader.readLine()) != null) {
-			line = line.replace(" ", "");
-			if (isCommentLine(line) || line.equals("")) 
-				continue;
+		Pattern lineFormatPattern = getCompiledLinePattern();
+		try {
+			while ((line = reader.readLine()) != null) {
+				line = line.replace(" ", "");
+				if (isCommentLine(line) || line.equals("")) 
+					continue;
 			
-			Pattern lineFormatPattern = Pattern.compile(getLinePattern());
-			Matcher lineFormatMatcher = lineFormatPattern.matcher(line);
+				Matcher lineFormatMatcher = lineFormatPattern.matcher(line);
 			
-			if (!lineFormatMatcher.find())
-				throw new LineFormatException(String.format("%s: Failed to parse line %d", file.getName(), lineIdx));
+				if (!lineFormatMatcher.find())
+					throw new LineFormatException(String.format("%s: Failed to parse line %d", file.getName(), lineIdx));
 			
-			String[] tokens = line.split("=");
+				String[] tokens = line.split("=");
 			
-			kvMap.put(tokens[0], tokens[1]);
+				kvMap.put(tokens[0], tokens[1]);
 				
-			lineIdx++;
+				lineIdx++;
+			}
+		} finally {
+			reader.close();
 		}
 		
 		return kvMap;
@@ -64,6 +70,17 @@ public class KVPFile {
 	}
 	
 	protected String getLinePattern() {
-		return "^(.+)=(.+)$";
+		return DEFAULT_LINE_PATTERN.pattern();
+	}
+	
+	/**
+	 * @return The line pattern, compiled once for the whole file.  Subclasses that keep the
+	 * default pattern share one that is compiled when the class loads
+	 */
+	private Pattern getCompiledLinePattern() {
+		String pattern = getLinePattern();
+		if (pattern.equals(DEFAULT_LINE_PATTERN.pattern()))
+			return DEFAULT_LINE_PATTERN;
+		return Pattern.compile(pattern);
 	}
 }
@@ -0,0 +1,89 @@
+package edu.dasizeman.jftpserver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * A histogram of latencies with a bucket per power of two microseconds.  Recording is a
+ * couple of striped adds, so any number of threads can record into one histogram without
+ * contending on it.  Percentiles are read as the upper bound of the bucket they fall in,
+ * so they are accurate to within a factor of two
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class LatencyHistogram {
+	// Bucket i holds latencies below 2^i microseconds, the last one holds everything longer
+	private static final int BUCKETS = 40;
+
+	private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+		@Override
+		public long applyAsLong(long a, long b) {
+			return Math.max(a, b);
+		}
+	};
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder totalMicros = new LongAdder();
+	private final LongAccumulator maxMicros = new LongAccumulator(MAX, 0);
+
+	public LatencyHistogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Record one latency
+	 * @param nanos The latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+		int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		buckets[bucket].increment();
+		count.increment();
+		totalMicros.add(micros);
+		maxMicros.accumulate(micros);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public double getMeanMicros() {
+		long samples = count.sum();
+		return (samples == 0) ? 0 : (double)totalMicros.sum() / samples;
+	}
+
+	public long getMaxMicros() {
+		return maxMicros.get();
+	}
+
+	/**
+	 * @param fraction The percentile as a fraction, like 0.99
+	 * @return The upper bound in microseconds of the bucket the percentile falls in, or 0 if
+	 * nothing has been recorded
+	 */
+	public long getPercentileMicros(double fraction) {
+		long[] counts = new long[BUCKETS];
+		long samples = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets[i].sum();
+			samples += counts[i];
+		}
+		if (samples == 0)
+			return 0;
+
+		long rank = (long)Math.ceil(fraction * samples);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS - 1; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min((1L << i) - 1, getMaxMicros());
+		}
+		return getMaxMicros();
+	}
+
+}
@@ -0,0 +1,323 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * A shared, size bounded cache of encoded directory listings, keyed by absolute
+ * directory path and listing format.  Cached directories are watched with a
+ * WatchService and dropped as soon as anything in them changes, so serving a listing
+ * from the cache costs no filesystem calls at all.  Where a directory can't be watched, its entry is checked
+ * against the directory's mtime instead, which only notices entries being added,
+ * removed or renamed
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class ListingCache implements Runnable {
+	private static final Logger logger = Logger.getGlobal();
+
+	private static final String MEMORY_SIZE_CONF_KEY = "listing_cache_memory";
+
+	// No one listing may take more than this fraction of the cache, so a few huge
+	// directories can't flush everything else
+	private static final int MAX_ENTRY_FRACTION = 16;
+
+	private static volatile ListingCache instance = new ListingCache(0);
+
+	private final long capacity;
+	private long used = 0;
+	private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<Path, Entry>(16, 0.75f, true);
+
+	// Null if the platform can't watch directories, in which case every entry uses the mtime check
+	private final WatchService watcher;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder invalidations = new LongAdder();
+
+	/**
+	 * Get the server wide listing cache
+	 * @return The cache set by configure, or a disabled cache if it hasn't been called
+	 */
+	public static ListingCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Set up the server wide listing cache from the configuration file.  The cache is only
+	 * replaced when its size changes, so a reload doesn't empty it, and the old one's watch
+	 * thread is stopped when it is
+	 * @param configFile The loaded configuration
+	 * @throws NumberFormatException If the size isn't valid
+	 */
+	public static synchronized void configure(ConfigurationFile configFile) throws NumberFormatException {
+		long capacity = configFile.getSizeValue(MEMORY_SIZE_CONF_KEY);
+		ListingCache previous = instance;
+		if (capacity == previous.capacity)
+			return;
+		instance = new ListingCache(capacity);
+		previous.close();
+		EventLogger.logEvent(logger, "Listing cache setup", String.format("%d bytes, %s", instance.capacity,
+				instance.watcher == null ? "checking mtimes" : "watching directories"));
+	}
+
+	/**
+	 * Create a cache, and start its watch thread if it is enabled
+	 * @param capacity The bytes of listings to keep, or 0 to disable the cache
+	 */
+	public ListingCache(long capacity) {
+		this.capacity = capacity;
+
+		WatchService service = null;
+		if (capacity > 0) {
+			try {
+				service = FileSystems.getDefault().newWatchService();
+			} catch (IOException | UnsupportedOperationException e) {
+				EventLogger.logGeneralException(logger, "Listing cache setup", e);
+			}
+		}
+		watcher = service;
+
+		if (watcher != null) {
+			Thread thread = new Thread(this, "jftpd-listing-watch");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Look up the listing of a directory
+	 * @param directory The absolute path of the directory
+	 * @param format The listing format
+	 * @return The encoded listing, which must not be modified, or null if it isn't cached
+	 */
+	public byte[] get(Path directory, DirectoryLister.Format format) {
+		if (capacity <= 0)
+			return null;
+
+		Entry entry;
+		byte[] listing;
+		synchronized (this) {
+			entry = entries.get(directory);
+			listing = (entry == null) ? null : entry.listings[format.ordinal()];
+			if (listing == null) {
+				misses.increment();
+				return null;
+			}
+			if (entry.key != null) {
+				hits.increment();
+				return listing;
+			}
+		}
+
+		// Unwatched, so see if the directory has changed since we listed it
+		long modified = lastModified(directory);
+		synchronized (this) {
+			if (modified >= 0 && modified == entry.modified) {
+				hits.increment();
+				return listing;
+			}
+			if (entries.get(directory) == entry) {
+				remove(entry);
+				invalidations.increment();
+			}
+			misses.increment();
+		}
+		return null;
+	}
+
+	/**
+	 * Cache the listing of a directory
+	 * @param directory The absolute path of the directory
+	 * @param format The listing format
+	 * @param modified The directory's mtime from lastModified, read before it was listed
+	 * @param listing The encoded listing
+	 */
+	public void put(Path directory, DirectoryLister.Format format, long modified, byte[] listing) {
+		if (capacity <= 0 || modified < 0 || listing.length > getMaxEntrySize())
+			return;
+
+		synchronized (this) {
+			// Listings in other formats share the entry as long as they are from the same
+			// version of the directory
+			Entry existing = entries.get(directory);
+			if (existing != null && existing.modified == modified && (existing.key == null || existing.key.isValid())) {
+				byte[] replaced = existing.listings[format.ordinal()];
+				existing.listings[format.ordinal()] = listing;
+				existing.size += listing.length - (replaced == null ? 0 : replaced.length);
+				used += listing.length - (replaced == null ? 0 : replaced.length);
+				makeRoom(0);
+				return;
+			}
+			if (existing != null)
+				remove(existing);
+
+			WatchKey key = null;
+			if (watcher != null) {
+				try {
+					key = directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+				} catch (IOException | UnsupportedOperationException | ClosedWatchServiceException e) {
+					// Out of watches, most likely.  This entry falls back to the mtime check
+					key = null;
+				}
+			}
+
+			// Anything that changed while it was being listed, before the watch was in place,
+			// shows up in the mtime
+			if (lastModified(directory) != modified) {
+				if (key != null)
+					key.cancel();
+				return;
+			}
+
+			makeRoom(listing.length);
+			Entry entry = new Entry(directory, modified, key);
+			entry.listings[format.ordinal()] = listing;
+			entry.size = listing.length;
+			entries.put(directory, entry);
+			used += listing.length;
+		}
+	}
+
+	/**
+	 * Get a directory's mtime, for checking listings against
+	 * @param directory The directory
+	 * @return The mtime in milliseconds, or -1 if it couldn't be read
+	 */
+	public long lastModified(Path directory) {
+		try {
+			return Files.getLastModifiedTime(directory).toMillis();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = watcher.take();
+			} catch (InterruptedException e) {
+				EventLogger.logGeneralException(logger, "Listing cache watch", e);
+				continue;
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+
+			// Any event, including an overflow, means the listing is stale.  The watch is dropped
+			// with the entry and registered again when the directory is next cached
+			key.pollEvents();
+			invalidate((Path)key.watchable(), key);
+		}
+	}
+
+	/**
+	 * Stop watching directories, which ends the watch thread.  Sessions still using this
+	 * cache fall back to checking mtimes
+	 */
+	private void close() {
+		if (watcher == null)
+			return;
+		try {
+			watcher.close();
+		} catch (IOException e) {
+			EventLogger.logGeneralException(logger, "Listing cache close", e);
+		}
+	}
+
+	/**
+	 * @return The largest listing that will be cached
+	 */
+	public long getMaxEntrySize() {
+		return capacity / MAX_ENTRY_FRACTION;
+	}
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	public long getInvalidationCount() {
+		return invalidations.sum();
+	}
+
+	public synchronized long getBytesUsed() {
+		return used;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	/**
+	 * Drop a directory whose watch has fired
+	 */
+	private synchronized void invalidate(Path directory, WatchKey key) {
+		Entry entry = entries.get(directory);
+		if (entry != null && entry.key == key) {
+			remove(entry);
+			invalidations.increment();
+		} else {
+			key.cancel();
+		}
+	}
+
+	/**
+	 * Evict least recently used entries until there is room
+	 */
+	private void makeRoom(long size) {
+		Iterator<Entry> victims = entries.values().iterator();
+		while (used + size > capacity && victims.hasNext()) {
+			Entry victim = victims.next();
+			victims.remove();
+			used -= victim.size;
+			if (victim.key != null)
+				victim.key.cancel();
+			evictions.increment();
+		}
+	}
+
+	private void remove(Entry entry) {
+		if (entries.remove(entry.directory) != null)
+			used -= entry.size;
+		if (entry.key != null)
+			entry.key.cancel();
+	}
+
+	private static class Entry {
+		final Path directory;
+		// Indexed by format, null for formats that haven't been listed
+		final byte[][] listings = new byte[DirectoryLister.Format.values().length][];
+		long size = 0;
+		final long modified;
+		// The directory's watch, or null if it is checked by mtime
+		final WatchKey key;
+
+		Entry(Path directory, long modified, WatchKey key) {
+			this.directory = directory;
+			this.modified = modified;
+			this.key = key;
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * Serves a directory on disk.  Paths are checked with the shared PathResolver, which keeps
+ * what is on disk cached, and a path is inside the root if its canonical path starts with
+ * the root's, so symlinks that lead out of the root count as not being there, as do the temp
+ * files of uploads in progress.  Reads go
+ * through the shared FileCache.  Uploads that replace a file are staged next to it, while
+ * appends and resumed uploads are written in place
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class LocalStorage implements Storage {
+	private static final Logger logger = Logger.getGlobal();
+
+	// Always a canonical path
+	private final Path rootPath;
+	private final boolean unix;
+
+	/**
+	 * @param root The directory to serve, from resolveRoot
+	 */
+	public LocalStorage(Path root) {
+		this.rootPath = root;
+		this.unix = FileInfo.isUnix(root);
+	}
+
+	/**
+	 * Find the directory a root setting names
+	 * @param rootStr The root directory, or an empty string for the directory the JVM was started from
+	 * @return The canonical path of the root
+	 * @throws IOException If it isn't a directory we can use
+	 */
+	public static Path resolveRoot(String rootStr) throws IOException {
+		if (rootStr.equals(""))
+			rootStr = ".";
+
+		try {
+			Path root = Paths.get(rootStr).toRealPath();
+			if (Files.isDirectory(root))
+				return root;
+		} catch (IOException | InvalidPathException e) {
+			// Reported below
+		}
+		throw new FileNotFoundException(String.format("Could not open root directory: %s", rootStr));
+	}
+
+	@Override
+	public Kind find(String path) {
+		PathResolver.Entry entry = resolve(toPath(path));
+		if (entry == null)
+			return null;
+		return entry.isDirectory() ? Kind.DIRECTORY : Kind.FILE;
+	}
+
+	@Override
+	public FileInfo stat(String path) {
+		Path target = toPath(path);
+		// Resolving checked that wherever a symlink leads is inside the root, so it is followed
+		if (resolve(target) == null)
+			return null;
+		return FileInfo.read(target, unix);
+	}
+
+	@Override
+	public DirectoryLister list(String path, DirectoryLister.Format format) {
+		return new DirectoryLister(toPath(path), format);
+	}
+
+	@Override
+	public ByteBuffer getContents(String path) {
+		Path target = getFilePath(path);
+		if (target == null)
+			return null;
+		return FileCache.getInstance().get(target.toFile());
+	}
+
+	@Override
+	public FileChannel openRead(String path) throws IOException {
+		Path target = getFilePath(path);
+		if (target == null)
+			throw new FileNotFoundException(String.format("No such file: %s", path));
+		return FileChannel.open(target, StandardOpenOption.READ);
+	}
+
+	@Override
+	public Upload openWrite(String path, long keep, long allocate) throws IOException {
+		Path target = toPath(path);
+
+		// Uploads must go in a directory inside the root, and can't replace directories or
+		// anything that leads out of the root
+		PathResolver.Entry parent = (target == null || target.equals(rootPath)) ? null : resolve(target.getParent());
+		PathResolver.Entry existing = (parent == null) ? null : PathResolver.getInstance().resolve(target);
+		if (parent == null || !parent.isDirectory() || (existing != null && (existing.isDirectory() || !existing.isIn(rootPath)))
+				|| (existing == null && Files.isSymbolicLink(target)) || StagedUpload.isTempFile(target.getFileName().toString())) {
+			EventLogger.logEvent(logger, "Opening upload", String.format("Refusing upload to %s", (target == null) ? path : target));
+			return null;
+		}
+
+		// Replacements are staged so nobody sees them half done, but appends and resumed uploads
+		// go straight into the file rather than copying everything ahead of them.  Java can't
+		// fallocate, so the allocation hint isn't used
+		if (keep > 0)
+			return new InPlaceUpload(target.toFile(), keep);
+		return new StagedUpload(target.toFile());
+	}
+
+	/**
+	 * @param path A virtual path
+	 * @return Where it is under the root, or null if it can't be a path here
+	 */
+	private Path toPath(String path) {
+		try {
+			return rootPath.resolve(path.substring(1));
+		} catch (InvalidPathException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param path A virtual path
+	 * @return Where it is under the root, or null if it isn't a file inside the root
+	 */
+	private Path getFilePath(String path) {
+		Path target = toPath(path);
+		PathResolver.Entry entry = resolve(target);
+		return (entry == null || entry.isDirectory()) ? null : target;
+	}
+
+	/**
+	 * Find out what a path under the root really is
+	 * @param path The path under the root, or null
+	 * @return What it is, or null if it doesn't exist, is outside the root or is an upload's temp file
+	 */
+	private PathResolver.Entry resolve(Path path) {
+		if (path == null)
+			return null;
+		Path name = path.getFileName();
+		if (name != null && StagedUpload.isTempFile(name.toString()))
+			return null;
+		PathResolver.Entry entry = PathResolver.getInstance().resolve(path);
+		return (entry == null || !entry.isIn(rootPath)) ? null : entry;
+	}
+
+}
@@ -0,0 +1,161 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the numbered old logs next to the current one.  A rotated log is moved aside
+ * straight away so the writer can reopen the log, and then compressed and given the
+ * number 000 on a background thread, with older logs moving up a number and the oldest
+ * being deleted.  All of the renumbering happens on that one thread, in order
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class LogArchiver {
+	private static final Logger logger = Logger.getGlobal();
+
+	private static final String OLD_LOG_FILE_FMT = "%s.%03d%s";
+	private static final String ROTATED_LOG_FILE_FMT = "%s.rotated-%d";
+	private static final String COMPRESSED_SUFFIX = ".gz";
+
+	private final File logDir;
+	private final String logName;
+	private final int numLogs;
+	private final boolean compress;
+	private final Pattern oldLogPattern;
+
+	private final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "jftpd-log-archiver");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * @param logDir The log directory
+	 * @param logName The name of the current log file
+	 * @param numLogs How many old logs to keep
+	 * @param compress Whether to gzip old logs
+	 */
+	public LogArchiver(File logDir, String logName, int numLogs, boolean compress) {
+		this.logDir = logDir;
+		this.logName = logName;
+		this.numLogs = numLogs;
+		this.compress = compress;
+		this.oldLogPattern = Pattern.compile(String.format("^%s\\.(\\d+)(%s)?$", Pattern.quote(logName),
+				Pattern.quote(COMPRESSED_SUFFIX)));
+	}
+
+	/**
+	 * Move the log aside and archive it in the background.  The log file is free to be
+	 * recreated as soon as this returns
+	 * @param logFile The log to archive
+	 * @throws IOException If the log couldn't be moved
+	 */
+	public void archive(File logFile) throws IOException {
+		final File rotated = new File(logDir, String.format(ROTATED_LOG_FILE_FMT, logName, System.nanoTime()));
+		Files.move(logFile.toPath(), rotated.toPath());
+		worker.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					store(rotated);
+				} catch (IOException e) {
+					EventLogger.logGeneralException(logger, "Log archive", e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Wait for archiving that has been started to finish
+	 * @param timeoutMillis How long to wait
+	 */
+	public void shutdown(long timeoutMillis) {
+		worker.shutdown();
+		try {
+			worker.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Compress a rotated log if we are compressing, shift the old logs up and make it the newest
+	 */
+	private void store(File rotated) throws IOException {
+		File source = rotated;
+		String suffix = "";
+		if (compress) {
+			source = new File(rotated.getPath() + COMPRESSED_SUFFIX);
+			OutputStream out = new GZIPOutputStream(new FileOutputStream(source), 64 * 1024);
+			try {
+				Files.copy(rotated.toPath(), out);
+			} finally {
+				out.close();
+			}
+			Files.delete(rotated.toPath());
+			suffix = COMPRESSED_SUFFIX;
+		}
+
+		shiftOldLogs();
+		Files.move(source.toPath(), oldLogFile(0, suffix).toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Give every old log the next number, oldest first, deleting the ones past the limit
+	 */
+	private void shiftOldLogs() throws IOException {
+		File[] files = logDir.listFiles();
+		if (files == null)
+			return;
+
+		List<Matcher> oldLogs = new ArrayList<Matcher>();
+		for (File file : files) {
+			Matcher matcher = oldLogPattern.matcher(file.getName());
+			if (matcher.matches())
+				oldLogs.add(matcher);
+		}
+		Collections.sort(oldLogs, new Comparator<Matcher>() {
+			@Override
+			public int compare(Matcher a, Matcher b) {
+				return Integer.compare(Integer.parseInt(b.group(1)), Integer.parseInt(a.group(1)));
+			}
+		});
+
+		for (Matcher oldLog : oldLogs) {
+			File file = new File(logDir, oldLog.group(0));
+			int number = Integer.parseInt(oldLog.group(1)) + 1;
+			String suffix = (oldLog.group(2) == null) ? "" : oldLog.group(2);
+
+			// Don't keep more than the configured number of logs
+			if (number >= numLogs)
+				Files.delete(file.toPath());
+			else
+				Files.move(file.toPath(), oldLogFile(number, suffix).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private File oldLogFile(int number, String suffix) {
+		return new File(logDir, String.format(OLD_LOG_FILE_FMT, logName, number, suffix));
+	}
+
+}
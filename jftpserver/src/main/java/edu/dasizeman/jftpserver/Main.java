@@ -1,7 +1,12 @@
 package edu.dasizeman.jftpserver;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -11,6 +16,13 @@ import java.util.logging.Logger;
  * @since 10/28/16
  */
 public class Main {
+	private static final String CONTROL_ENGINE_CONF_KEY = "control_engine";
+	private static final String REACTOR_THREADS_CONF_KEY = "reactor_threads";
+	private static final String REACTOR_WORKER_THREADS_CONF_KEY = "reactor_worker_threads";
+	private static final String LISTEN_BACKLOG_CONF_KEY = "listen_backlog";
+	private static final String PASV_MODE_CONF_KEY = "pasv_mode";
+	private static final String STORAGE_CONF_KEY = "storage";
+	private static final String NIO_ENGINE = "nio";
 
 	public static void main(String[] args) {
 		String[] requiredArgs = new String[]{"-port"};
@@ -37,23 +49,138 @@ public class Main {
 			return;
 		}
 		
+		// Pick the engine that drives control connections
+		String engine;
+		int reactorThreads;
+		int workerThreads;
+		int backlog;
+		try {
+			ConfigurationFile configFile = ConfigurationFile.getInstance();
+			engine = configFile.getConfigValue(CONTROL_ENGINE_CONF_KEY).toLowerCase();
+			reactorThreads = configFile.getIntValue(REACTOR_THREADS_CONF_KEY);
+			workerThreads = configFile.getIntValue(REACTOR_WORKER_THREADS_CONF_KEY);
+			backlog = configFile.getIntValue(LISTEN_BACKLOG_CONF_KEY);
+			
+			// Set up how handler threads are created
+			ExecutionManager.configure(configFile);
+			
+			// Load the files into memory if they are served from there, before sessions are set up to use them
+			if (configFile.getConfigValue(STORAGE_CONF_KEY).equalsIgnoreCase("memory"))
+				MemoryStorage.configure(configFile);
+			
+			// Set up everything that can be changed by reloading the configuration: session
+			// settings and limits, command line length, credentials, bandwidth limits, the
+			// shared caches of popular files, directory listings and resolved paths, and
+			// upload durability
+			ConfigurationReloader.apply(configFile);
+			
+			// Set up transfer buffers
+			BufferPool.configure(configFile);
+			
+			// Set up the passive listener pool, if passive mode is on at all
+			if (configFile.getBooleanValue(PASV_MODE_CONF_KEY))
+				PassivePortPool.configure(configFile);
+			
+			// Publish live metrics over JMX, and reload the configuration on SIGHUP or over JMX
+			ServerMetrics.register();
+			ConfigurationReloader.install();
+		} catch (IOException | IllegalArgumentException e) {
+			logger.log(Level.SEVERE, e.toString());
+			return;
+		}
+		
+		if (engine.equals(NIO_ENGINE))
+			runNIOEngine(port, backlog, reactorThreads, workerThreads, logger);
+		else
+			runThreadEngine(port, backlog, logger);
+	}
+	
+	/**
+	 * Accept control connections forever, giving each its own handler thread
+	 * @param port The port to listen on
+	 * @param backlog The most connections to let the OS queue up for us
+	 * @param logger The logger to report errors to
+	 */
+	private static void runThreadEngine(int port, int backlog, Logger logger) {
 		ServerSocket listenSocket = null;
 		try {
-			listenSocket = new ServerSocket(port);
+			listenSocket = new ServerSocket(port, backlog);
 		} catch (IOException e) {
 			logger.log(Level.SEVERE, e.toString());
 			return;
 		}
 		
-		// Listen to and handle connections forever
+		// Listen to and handle connections forever, turning away any that don't fit before
+		// anything is set up for them
 		while (true) {
 			try {
-				TCPConnectionFactory.listenAndHandle(listenSocket, new ControlConnectionHandler());
+				Socket socket = listenSocket.accept();
+				AdmissionControl.Admission admission = AdmissionControl.getInstance().admit(socket.getInetAddress());
+				if (admission == null) {
+					AdmissionControl.reject(socket);
+					continue;
+				}
+				
+				// In pool mode a session that would have to wait for a thread is turned away too
+				try {
+					new ControlConnectionHandler(admission).start(socket);
+				} catch (RejectedExecutionException e) {
+					admission.release();
+					ServerMetrics.getInstance().sessionRejected();
+					AdmissionControl.reject(socket);
+				}
 			} catch (IOException e) {
 				logger.log(Level.SEVERE, e.toString());
 			}
 		}
-
+	}
+	
+	/**
+	 * Accept control connections forever, handing them to a pool of reactor threads
+	 * @param port The port to listen on
+	 * @param backlog The most connections to let the OS queue up for us
+	 * @param reactorThreads The number of reactors, or <= 0 for one per processor
+	 * @param workerThreads The number of threads for commands that may block, or <= 0 for four per processor
+	 * @param logger The logger to report errors to
+	 */
+	private static void runNIOEngine(int port, int backlog, int reactorThreads, int workerThreads, Logger logger) {
+		ServerSocketChannel listenChannel = null;
+		NIOControlEngine engine = null;
+		try {
+			listenChannel = ServerSocketChannel.open();
+			listenChannel.bind(new InetSocketAddress(port), backlog);
+			engine = new NIOControlEngine(reactorThreads, workerThreads);
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, e.toString());
+			return;
+		}
+		engine.start();
+		
+		// Listen to and hand off connections forever, turning away any that don't fit while
+		// the channel is still blocking
+		while (true) {
+			SocketChannel channel = null;
+			AdmissionControl.Admission admission = null;
+			try {
+				channel = listenChannel.accept();
+				admission = AdmissionControl.getInstance().admit(channel.socket().getInetAddress());
+				if (admission == null)
+					AdmissionControl.reject(channel.socket());
+				else
+					engine.register(channel, admission);
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, e.toString());
+				if (admission != null)
+					admission.release();
+				if (channel != null) {
+					try {
+						channel.close();
+					} catch (IOException closeException) {
+						logger.log(Level.SEVERE, closeException.toString());
+					}
+				}
+			}
+		}
 	}
 
 }
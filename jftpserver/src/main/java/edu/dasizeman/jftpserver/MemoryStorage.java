@@ -0,0 +1,446 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Serves files kept entirely in memory, for small, hot or generated sets of files, and for
+ * measuring the protocol without the disk in the way.  The tree is loaded from file_root
+ * at startup, or built up with mkdirs and put, and uploads go to memory too and are gone
+ * when the server stops.  A file's contents never change once it is published, an upload
+ * publishes a new file in its place, so readers are handed the contents without any copying
+ * or locking.  The total size of the files and of the uploads in progress is bounded, with
+ * uploads taking room as their data arrives, so uploads that would go over it fail part way.
+ * The one exception is an upload replacing a file, which may also use the room that file
+ * takes up, since it gives it back when it is published.  One upload at a time per file does
+ * that, so files and uploads never hold more than twice the capacity between them
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class MemoryStorage implements Storage {
+	private static final Logger logger = Logger.getGlobal();
+
+	private static final String MEMORY_SIZE_CONF_KEY = "memory_storage_size";
+	private static final String FILE_ROOT_CONF_KEY = "file_root";
+
+	// The most a single file can hold, since it is kept in one array
+	private static final int MAX_FILE_SIZE = Integer.MAX_VALUE - 8;
+	private static final int MIN_UPLOAD_BUFFER_SIZE = 4096;
+
+	// ALLO is only a hint, since it comes from the client, so an upload never sets aside
+	// more than this for it up front.  The rest is taken as the data arrives
+	private static final int MAX_ALLOCATE_HINT = 64 * 1024;
+
+	private static volatile MemoryStorage instance = null;
+
+	private final long capacity;
+
+	// The published files, plus the arrays of the uploads in progress
+	private final AtomicLong used = new AtomicLong();
+	private final Node root = new Node();
+
+	/**
+	 * A directory, or a file and its contents
+	 */
+	private static class Node {
+		final FileInfo info;
+
+		// Read only, and null for directories
+		final ByteBuffer contents;
+
+		// Sorted so listings come out in order, and null for files
+		final ConcurrentSkipListMap<String, Node> children;
+
+		// Whether an upload replacing this file is using the room it takes up
+		final AtomicBoolean lent = new AtomicBoolean();
+
+		Node() {
+			info = new FileInfo(true, 0, System.currentTimeMillis());
+			contents = null;
+			children = new ConcurrentSkipListMap<String, Node>();
+		}
+
+		Node(ByteBuffer contents) {
+			info = new FileInfo(false, contents.remaining(), System.currentTimeMillis());
+			this.contents = contents;
+			children = null;
+		}
+	}
+
+	/**
+	 * Get the server wide memory storage
+	 * @return The storage set up by configure, or null if it hasn't been called
+	 */
+	public static MemoryStorage getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Set up the server wide memory storage from the configuration file, loading file_root into it
+	 * @param configFile The loaded configuration
+	 * @throws IOException If file_root can't be read, or doesn't fit
+	 * @throws NumberFormatException If the size isn't valid
+	 */
+	public static void configure(ConfigurationFile configFile) throws IOException, NumberFormatException {
+		MemoryStorage storage = new MemoryStorage(configFile.getSizeValue(MEMORY_SIZE_CONF_KEY));
+		Path seed = LocalStorage.resolveRoot(configFile.getConfigValue(FILE_ROOT_CONF_KEY));
+		storage.load(seed);
+		instance = storage;
+		EventLogger.logEvent(logger, "Memory storage setup", String.format("Loaded %d bytes from %s, %d bytes capacity",
+				storage.getBytesUsed(), seed, storage.capacity));
+	}
+
+	/**
+	 * Create an empty storage
+	 * @param capacity The most bytes of files to hold
+	 */
+	public MemoryStorage(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Copy a directory on disk into the storage, under the root
+	 * @param directory The directory to copy
+	 * @throws IOException If it can't be read, or doesn't fit
+	 */
+	public void load(final Path directory) throws IOException {
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+				mkdirs(toVirtualPath(directory, dir));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+				if (attributes.isRegularFile()) {
+					if (attributes.size() > Math.min(MAX_FILE_SIZE, capacity - used.get()))
+						throw new IOException(String.format("%s doesn't fit in the memory storage", file));
+					put(toVirtualPath(directory, file), Files.readAllBytes(file));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Create a directory, and any of its parents that aren't there
+	 * @param path The virtual path of the directory
+	 * @throws IOException If a file is in the way
+	 */
+	public void mkdirs(String path) throws IOException {
+		Node node = root;
+		int start = 1;
+		while (start < path.length()) {
+			int end = path.indexOf('/', start);
+			if (end < 0)
+				end = path.length();
+			if (end > start) {
+				String name = path.substring(start, end);
+				Node child = node.children.get(name);
+				if (child == null) {
+					Node created = new Node();
+					child = node.children.putIfAbsent(name, created);
+					if (child == null)
+						child = created;
+				}
+				if (child.children == null)
+					throw new IOException(String.format("Not a directory: %s", path.substring(0, end)));
+				node = child;
+			}
+			start = end + 1;
+		}
+	}
+
+	/**
+	 * Publish a file, creating its directory if it isn't there and replacing whatever file was there
+	 * @param path The virtual path of the file
+	 * @param contents The file's contents, which must not be changed afterwards
+	 * @throws IOException If a directory is in the way, or it doesn't fit
+	 */
+	public void put(String path, byte[] contents) throws IOException {
+		int slash = path.lastIndexOf('/');
+		if (slash < 0 || slash == path.length() - 1)
+			throw new IOException(String.format("Not a file path: %s", path));
+		mkdirs(path.substring(0, slash));
+		Node parent = lookup(path.substring(0, slash));
+		String name = path.substring(slash + 1);
+		Node existing = parent.children.get(name);
+		boolean borrowed = existing != null && existing.children == null && existing.lent.compareAndSet(false, true);
+		try {
+			reserve(contents.length, borrowed ? existing.info.getSize() : 0);
+			try {
+				publish(parent, name, contents, contents.length);
+			} catch (IOException e) {
+				used.addAndGet(-contents.length);
+				throw e;
+			}
+		} finally {
+			if (borrowed)
+				existing.lent.set(false);
+		}
+	}
+
+	@Override
+	public Kind find(String path) {
+		Node node = lookup(path);
+		if (node == null)
+			return null;
+		return (node.children != null) ? Kind.DIRECTORY : Kind.FILE;
+	}
+
+	@Override
+	public FileInfo stat(String path) {
+		Node node = lookup(path);
+		return (node == null) ? null : node.info;
+	}
+
+	@Override
+	public DirectoryLister list(String path, DirectoryLister.Format format) {
+		TreeMap<String, FileInfo> entries = new TreeMap<String, FileInfo>();
+		Node node = lookup(path);
+		if (node != null && node.children != null) {
+			for (Map.Entry<String, Node> child : node.children.entrySet()) {
+				entries.put(child.getKey(), child.getValue().info);
+			}
+		}
+		return new DirectoryLister(entries, format);
+	}
+
+	@Override
+	public ByteBuffer getContents(String path) {
+		Node node = lookup(path);
+		return (node == null || node.contents == null) ? null : node.contents.duplicate();
+	}
+
+	@Override
+	public FileChannel openRead(String path) throws IOException {
+		// Every file is in memory, so getContents always has it
+		throw new FileNotFoundException(String.format("Not a file in memory: %s", path));
+	}
+
+	@Override
+	public Upload openWrite(String path, long keep, long allocate) throws IOException {
+		int slash = path.lastIndexOf('/');
+		Node parent = (slash < 0 || slash == path.length() - 1) ? null : lookup(path.substring(0, slash));
+		if (parent == null || parent.children == null)
+			return null;
+		String name = path.substring(slash + 1);
+		Node existing = parent.children.get(name);
+		if (existing != null && existing.children != null)
+			return null;
+		return new MemoryUpload(parent, name, existing, keep, allocate);
+	}
+
+	/**
+	 * @return The size of the files, plus the room taken by the uploads in progress
+	 */
+	public long getBytesUsed() {
+		return used.get();
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * An upload, collected in an array until it is published.  The array is counted as used
+	 * from the moment it is made, so the room it takes is set aside as it grows, and given
+	 * back if the upload is aborted
+	 */
+	private class MemoryUpload implements Upload {
+		private final Node parent;
+		private final String name;
+		private byte[] data = new byte[0];
+		private int length = 0;
+		private boolean finished = false;
+
+		// The file being replaced, if this upload may use the room it takes up
+		private Node borrowed = null;
+
+		MemoryUpload(Node parent, String name, Node existing, long keep, long allocate) throws IOException {
+			this.parent = parent;
+			this.name = name;
+			if (existing != null && existing.lent.compareAndSet(false, true))
+				borrowed = existing;
+
+			// Appends and resumed uploads start with the part of the current file we keep
+			int kept = (existing == null) ? 0 : (int)Math.min(keep, existing.contents.remaining());
+			try {
+				grow(kept, Math.max(MIN_UPLOAD_BUFFER_SIZE, kept + Math.min(allocate, MAX_ALLOCATE_HINT)));
+			} catch (IOException e) {
+				abort();
+				throw e;
+			}
+			if (kept > 0) {
+				existing.contents.duplicate().get(data, 0, kept);
+				length = kept;
+			}
+		}
+
+		@Override
+		public void write(ByteBuffer buffer) throws IOException {
+			int count = buffer.remaining();
+			if (length + count > data.length)
+				grow((long)length + count, 2L * data.length);
+			buffer.get(data, length, count);
+			length += count;
+		}
+
+		@Override
+		public void commit() throws IOException {
+			try {
+				publish(parent, name, data, length);
+			} catch (IOException e) {
+				abort();
+				throw e;
+			}
+
+			// What the array had left over at the end is given back
+			used.addAndGet(length - data.length);
+			finished = true;
+			data = null;
+			giveBack();
+		}
+
+		@Override
+		public void abort() {
+			if (finished)
+				return;
+			finished = true;
+			used.addAndGet(-data.length);
+			data = null;
+			giveBack();
+		}
+
+		@Override
+		public void close() {
+			abort();
+		}
+
+		/**
+		 * Make the array bigger, setting aside the room for it
+		 * @param needed The size it has to be
+		 * @param wanted The size it should be if there's room, to save growing it again soon
+		 * @throws IOException If there isn't room for what is needed
+		 */
+		private void grow(long needed, long wanted) throws IOException {
+			if (needed > MAX_FILE_SIZE)
+				throw new IOException("The file is too big for the memory storage");
+			long credit = (borrowed == null) ? 0 : borrowed.info.getSize();
+			long size = Math.max(needed, Math.min(Math.min(wanted, MAX_FILE_SIZE), data.length + room(credit)));
+			try {
+				reserve(size - data.length, credit);
+			} catch (IOException e) {
+				// Another upload took the room we saw, but what we need may still fit
+				if (size == needed)
+					throw e;
+				size = needed;
+				reserve(size - data.length, credit);
+			}
+			data = Arrays.copyOf(data, (int)size);
+		}
+
+		private void giveBack() {
+			if (borrowed != null) {
+				borrowed.lent.set(false);
+				borrowed = null;
+			}
+		}
+	}
+
+	/**
+	 * Publish a file in a directory, replacing whatever file was there.  The room for it must
+	 * already have been set aside, and the room the replaced file took is given back
+	 * @param parent The directory
+	 * @param name The file's name
+	 * @param contents The file's contents, of which length bytes are used
+	 * @throws IOException If a directory is in the way
+	 */
+	private void publish(Node parent, String name, byte[] contents, int length) throws IOException {
+		// Uploads usually leave some room at the end of the array, which is dropped here
+		byte[] exact = (contents.length == length) ? contents : Arrays.copyOf(contents, length);
+		Node file = new Node(ByteBuffer.wrap(exact).asReadOnlyBuffer());
+		Node replaced = parent.children.get(name);
+		if (replaced != null && replaced.children != null)
+			throw new IOException(String.format("Is a directory: %s", name));
+		replaced = parent.children.put(name, file);
+		if (replaced != null)
+			used.addAndGet(-replaced.info.getSize());
+	}
+
+	/**
+	 * Set aside room for some bytes
+	 * @param bytes How many bytes
+	 * @param credit How far over the capacity this may go, for the room of a file being replaced
+	 * @throws IOException If there isn't room
+	 */
+	private void reserve(long bytes, long credit) throws IOException {
+		while (true) {
+			long current = used.get();
+			if (current + bytes > capacity + credit)
+				throw new IOException("The memory storage is full");
+			if (used.compareAndSet(current, current + bytes))
+				return;
+		}
+	}
+
+	/**
+	 * @param credit How far over the capacity we may go
+	 * @return How many more bytes fit
+	 */
+	private long room(long credit) {
+		return Math.max(0, capacity + credit - used.get());
+	}
+
+	/**
+	 * @param path A virtual path
+	 * @return What is there, or null if there is nothing there
+	 */
+	private Node lookup(String path) {
+		Node node = root;
+		int start = 1;
+		while (start < path.length()) {
+			if (node.children == null)
+				return null;
+			int end = path.indexOf('/', start);
+			if (end < 0)
+				end = path.length();
+			if (end > start) {
+				node = node.children.get(path.substring(start, end));
+				if (node == null)
+					return null;
+			}
+			start = end + 1;
+		}
+		return node;
+	}
+
+	/**
+	 * @return The virtual path of something under a directory that is being loaded
+	 */
+	private static String toVirtualPath(Path directory, Path path) {
+		StringBuilder virtualPath = new StringBuilder();
+		for (Path name : directory.relativize(path)) {
+			if (name.toString().isEmpty())
+				continue;
+			virtualPath.append('/').append(name.toString());
+		}
+		return (virtualPath.length() == 0) ? "/" : virtualPath.toString();
+	}
+
+}
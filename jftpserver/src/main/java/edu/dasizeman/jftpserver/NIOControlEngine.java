@@ -0,0 +1,199 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Event driven engine for control connections.  Instead of a thread per connection
+ * sitting in readLine, a small pool of reactor threads each own a selector and
+ * service all of the sessions registered with it.  Commands that may block, like checking
+ * a password or touching the filesystem, are handed to a pool of worker threads so they
+ * never hold up the other sessions on a reactor
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class NIOControlEngine {
+	private static final Logger logger = Logger.getGlobal();
+
+	// Waits after a failed select, doubling up to the max while it keeps failing
+	private static final long MIN_SELECT_BACKOFF_MILLIS = 10;
+	private static final long MAX_SELECT_BACKOFF_MILLIS = 1000;
+
+	private final Reactor[] reactors;
+	private final ExecutorService workers;
+
+	// Round robin index for spreading new connections over the reactors.  Only touched
+	// by the accepting thread
+	private int nextReactor = 0;
+
+	/**
+	 * Create the engine and open a selector for each reactor
+	 * @param numReactors The number of reactor threads, or <= 0 for one per processor
+	 * @param numWorkers The number of threads for commands that may block, or <= 0 for
+	 * four per processor
+	 * @throws IOException If a selector could not be opened
+	 */
+	public NIOControlEngine(int numReactors, int numWorkers) throws IOException {
+		if (numReactors <= 0)
+			numReactors = Runtime.getRuntime().availableProcessors();
+		if (numWorkers <= 0)
+			numWorkers = 4 * Runtime.getRuntime().availableProcessors();
+
+		// A session has at most one command out with the workers, so the queue is bounded
+		// by the number of sessions
+		final AtomicInteger workerCount = new AtomicInteger();
+		workers = Executors.newFixedThreadPool(numWorkers, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable task) {
+				return new Thread(task, String.format("jftpd-worker-%d", workerCount.getAndIncrement()));
+			}
+		});
+
+		reactors = new Reactor[numReactors];
+		for (int i = 0; i < numReactors; i++) {
+			reactors[i] = new Reactor(Selector.open(), workers);
+		}
+	}
+
+	/**
+	 * Start the reactor threads
+	 */
+	public void start() {
+		for (int i = 0; i < reactors.length; i++) {
+			Thread thread = new Thread(reactors[i], String.format("jftpd-reactor-%d", i));
+			reactors[i].thread = thread;
+			thread.start();
+		}
+		EventLogger.logEvent(logger, "NIO engine", String.format("Started %d reactor threads", reactors.length));
+	}
+
+	/**
+	 * Hand a newly accepted control connection to one of the reactors
+	 * @param channel The accepted connection
+	 * @param admission The connection's place under the session limits
+	 * @throws IOException If the channel could not be made non-blocking
+	 */
+	public void register(SocketChannel channel, AdmissionControl.Admission admission) throws IOException {
+		channel.configureBlocking(false);
+		
+		// Sessions coalesce their own replies, see ControlConnectionHandler
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		final Reactor reactor = reactors[nextReactor];
+		nextReactor = (nextReactor + 1) % reactors.length;
+
+		final NIOControlSession session = new NIOControlSession(channel, reactor, admission);
+		reactor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					session.open(reactor.selector);
+				} catch (RuntimeException e) {
+					session.fail(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * A single selector thread.  Other threads talk to it by queueing tasks
+	 * that it runs between selects.  Anything a session throws closes that session, and
+	 * never the reactor
+	 * @author Dave Sizer <dave@sizetron.net>
+	 *
+	 */
+	static class Reactor implements Runnable {
+		private final Selector selector;
+		private final ExecutorService workers;
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private Thread thread;
+
+		Reactor(Selector selector, ExecutorService workers) {
+			this.selector = selector;
+			this.workers = workers;
+		}
+
+		/**
+		 * Run a task on this reactor's thread
+		 * @param task The task to run
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		/**
+		 * Run a task that may block on one of the engine's worker threads
+		 * @param task The task to run
+		 */
+		void offload(Runnable task) {
+			workers.execute(task);
+		}
+
+		/**
+		 * @return If the caller is this reactor's thread
+		 */
+		boolean inReactorThread() {
+			return Thread.currentThread() == thread;
+		}
+
+		@Override
+		public void run() {
+			long backoff = 0;
+			while (true) {
+				try {
+					selector.select();
+					backoff = 0;
+				} catch (IOException e) {
+					// Whatever broke the select is likely to break the next one too, so don't spin on it
+					EventLogger.logGeneralException(logger, "Reactor select", e);
+					backoff = Math.min(Math.max(2 * backoff, MIN_SELECT_BACKOFF_MILLIS), MAX_SELECT_BACKOFF_MILLIS);
+					try {
+						TimeUnit.MILLISECONDS.sleep(backoff);
+					} catch (InterruptedException interrupted) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						EventLogger.logGeneralException(logger, "Reactor task", e);
+					}
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					NIOControlSession session = (NIOControlSession)key.attachment();
+					try {
+						if (key.isValid() && key.isReadable())
+							session.onReadable();
+						if (key.isValid() && key.isWritable())
+							session.onWritable();
+					} catch (CancelledKeyException e) {
+						session.close();
+					} catch (RuntimeException e) {
+						session.fail(e);
+					}
+				}
+			}
+		}
+	}
+
+}
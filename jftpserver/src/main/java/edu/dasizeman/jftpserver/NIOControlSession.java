@@ -0,0 +1,273 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * A control connection driven by a reactor in the NIO engine.  Owns the non-blocking
+ * channel, assembles incoming bytes into lines for the ControlConnectionHandler and
+ * queues its replies until the channel can take them.  While replies are queued the
+ * session stops reading and handling commands, so a client that doesn't read its replies
+ * can't make them pile up.  The same goes while a command is out with the engine's workers,
+ * see offload.  Everything but write() and offload() is only ever called from the owning
+ * reactor thread
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class NIOControlSession {
+	private static final Logger logger = Logger.getGlobal();
+
+	private final SocketChannel channel;
+	private final NIOControlEngine.Reactor reactor;
+	private final ControlConnectionHandler handler;
+	private SelectionKey key;
+
+	private final FTPLineDecoder lineDecoder = new FTPLineDecoder();
+
+	// Replies waiting to be written.  Data connection threads add to this too
+	private final ConcurrentLinkedQueue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	private boolean closed = false;
+
+	// Set while a command is being handled by a worker.  We don't read or handle any more
+	// lines until it is done, which also leaves its line where it was read in the decoder.
+	// The worker is using the handler, so if we are closed meanwhile the handler is only
+	// told once it is done
+	private boolean suspended = false;
+
+	NIOControlSession(SocketChannel channel, NIOControlEngine.Reactor reactor, AdmissionControl.Admission admission) {
+		this.channel = channel;
+		this.reactor = reactor;
+		this.handler = new ControlConnectionHandler(admission);
+	}
+
+	/**
+	 * Register with the reactor's selector and send the welcome message
+	 * @param selector The selector of the owning reactor
+	 */
+	void open(Selector selector) {
+		try {
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+		} catch (ClosedChannelException e) {
+			EventLogger.logConnectionException(logger, getSocket(), e);
+			close();
+			return;
+		}
+
+		if (!handler.attach(this)) {
+			close();
+			return;
+		}
+		flush();
+	}
+
+	/**
+	 * The socket behind our channel, used for logging and address checks
+	 * @return The channel's socket
+	 */
+	Socket getSocket() {
+		return channel.socket();
+	}
+
+	/**
+	 * Queue a reply to be written.  Safe to call from any thread
+	 * @param data The encoded reply
+	 */
+	void write(byte[] data) {
+		if (closed)
+			return;
+		writeQueue.add(ByteBuffer.wrap(data));
+
+		// Replies sent while the reactor is handling our input get flushed once it is done,
+		// anything else needs the reactor to come and flush it
+		if (!reactor.inReactorThread()) {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					onWritable();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Handle a command that may block on one of the engine's workers, so the other sessions
+	 * on our reactor keep going.  Called by the handler from inside handleLines, which stops
+	 * handing it lines until the command is done and we are back on the reactor
+	 * @param command The command to handle
+	 */
+	void offload(final Runnable command) {
+		suspended = true;
+		reactor.offload(new Runnable() {
+			@Override
+			public void run() {
+				RuntimeException failure = null;
+				try {
+					command.run();
+				} catch (RuntimeException e) {
+					failure = e;
+				}
+
+				final RuntimeException failed = failure;
+				execute(new Runnable() {
+					@Override
+					public void run() {
+						suspended = false;
+						if (closed) {
+							handler.connectionClosed();
+							return;
+						}
+						if (failed != null)
+							fail(failed);
+						else
+							onWritable();
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Close the session because handling it threw, leaving the rest of the reactor's sessions alone
+	 * @param e What was thrown
+	 */
+	void fail(RuntimeException e) {
+		EventLogger.logConnectionException(logger, getSocket(), e);
+		close();
+	}
+
+	/**
+	 * Read what is available and handle it
+	 */
+	void onReadable() {
+		if (suspended)
+			return;
+		int count;
+		try {
+			count = lineDecoder.readFrom(channel);
+		} catch (IOException e) {
+			EventLogger.logConnectionException(logger, getSocket(), e);
+			close();
+			return;
+		}
+
+		if (count < 0) {
+			close();
+			return;
+		}
+		handleLines();
+	}
+
+	/**
+	 * Write what we can, and go back to any lines that were left waiting for the queue to drain
+	 */
+	void onWritable() {
+		flush();
+		if (!closed && writeQueue.isEmpty())
+			handleLines();
+	}
+
+	/**
+	 * Hand every complete line to the handler and flush the replies.  If the client isn't
+	 * taking our replies as fast as we make them, the rest of the lines wait until it does
+	 */
+	private void handleLines() {
+		while (!closed && !suspended && handler.isAlive()) {
+			boolean more = false;
+			while (!suspended && handler.isAlive() && lineDecoder.nextLine(handler)) {
+				if (suspended)
+					break;
+				if (!writeQueue.isEmpty()) {
+					more = true;
+					break;
+				}
+			}
+			flush();
+			if (!more || suspended || !writeQueue.isEmpty())
+				return;
+		}
+	}
+
+	/**
+	 * Write as much of the queued output as the channel will take, and close the
+	 * connection once the handler is done and everything has been written.  We only
+	 * read while nothing is queued and no command is out with a worker
+	 */
+	void flush() {
+		if (closed)
+			return;
+		handler.flushReplies();
+		try {
+			ByteBuffer next;
+			while ((next = writeQueue.peek()) != null) {
+				channel.write(next);
+				if (next.hasRemaining())
+					break;
+				writeQueue.poll();
+			}
+		} catch (IOException e) {
+			EventLogger.logConnectionException(logger, getSocket(), e);
+			close();
+			return;
+		}
+
+		if (writeQueue.isEmpty()) {
+			if (suspended) {
+				key.interestOps(0);
+				return;
+			}
+			if (!handler.isAlive()) {
+				close();
+				return;
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		} else {
+			key.interestOps(SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Run something for this session on the reactor, closing the session if it throws
+	 * @param task The task to run
+	 */
+	private void execute(final Runnable task) {
+		reactor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					fail(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Close the channel and forget about any pending output.  If a worker is handling a
+	 * command, the handler is told when it is done rather than while it is still running
+	 */
+	void close() {
+		if (closed)
+			return;
+		closed = true;
+		writeQueue.clear();
+		if (!suspended)
+			handler.connectionClosed();
+		if (key != null)
+			key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			EventLogger.logConnectionException(logger, getSocket(), e);
+		}
+	}
+
+}
@@ -0,0 +1,236 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * Hands out listeners for passive data connections.  With a port range configured,
+ * each port in the range gets a listener that is bound once and then leased to
+ * sessions over and over, which bounds the descriptors we use and keeps binds off
+ * the PASV path.  Without a range, each lease binds an ephemeral port that is closed
+ * when it is returned.  Listeners are non-blocking and accepted by the DataConnector.
+ * Each listener is bound to the address the session's control connection came in on, so
+ * clients can reach it the same way they reached us, including over loopback.  That is the
+ * address clients are told to connect to as well, unless pasv_address says otherwise
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class PassivePortPool {
+	private static final Logger logger = Logger.getGlobal();
+
+	private static final String PORT_RANGE_CONF_KEY = "pasv_port_range";
+	private static final String ADDRESS_CONF_KEY = "pasv_address";
+
+	private static volatile PassivePortPool instance = null;
+
+	// The address clients are told to connect to, or null to tell them the one they reached us on
+	private final Inet4Address advertiseAddress;
+
+	// Whether we are leasing from a fixed range or binding ephemeral ports
+	private final boolean ranged;
+	private final int rangeSize;
+	private final ConcurrentLinkedQueue<Lease> free = new ConcurrentLinkedQueue<Lease>();
+
+	/**
+	 * Get the server wide pool
+	 * @return The pool set by configure, or an ephemeral port pool if it hasn't been called
+	 * @throws IOException If the default pool can't be set up
+	 */
+	public static PassivePortPool getInstance() throws IOException {
+		if (instance == null) {
+			synchronized (PassivePortPool.class) {
+				if (instance == null)
+					instance = new PassivePortPool(null, 0, 0);
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Set up the server wide pool from the configuration file
+	 * @param configFile The loaded configuration
+	 * @throws IOException If the configured address can't be used
+	 * @throws NumberFormatException If the port range isn't valid
+	 */
+	public static void configure(ConfigurationFile configFile) throws IOException, NumberFormatException {
+		String range = configFile.getConfigValue(PORT_RANGE_CONF_KEY);
+		int minPort = 0, maxPort = 0;
+		if (!range.equals("0")) {
+			String[] bounds = range.split("-");
+			if (bounds.length != 2)
+				throw new NumberFormatException(String.format("%s must look like <first>-<last>", PORT_RANGE_CONF_KEY));
+			minPort = Integer.parseInt(bounds[0]);
+			maxPort = Integer.parseInt(bounds[1]);
+		}
+
+		String address = configFile.getConfigValue(ADDRESS_CONF_KEY);
+		instance = new PassivePortPool(address.equals("auto") ? null : address, minPort, maxPort);
+		EventLogger.logEvent(logger, "PASV setup", String.format("Advertising %s, %s",
+				(instance.advertiseAddress == null) ? "the control connection's address" : instance.advertiseAddress.getHostAddress(),
+				instance.ranged ? String.format("ports %d-%d", minPort, maxPort) : "ephemeral ports"));
+	}
+
+	/**
+	 * Create a pool
+	 * @param advertise The IPv4 address to tell clients to connect to, or null to use
+	 * the address of each session's control connection
+	 * @param minPort The first port in the range, or 0 for ephemeral ports
+	 * @param maxPort The last port in the range
+	 * @throws IOException If the address to advertise can't be used
+	 */
+	public PassivePortPool(String advertise, int minPort, int maxPort) throws IOException {
+		InetAddress advertised = (advertise == null) ? null : InetAddress.getByName(advertise);
+		if (advertised != null && !(advertised instanceof Inet4Address))
+			throw new UnknownHostException(String.format("%s must be an IPv4 address", ADDRESS_CONF_KEY));
+		advertiseAddress = (Inet4Address)advertised;
+
+		ranged = (minPort > 0);
+		if (ranged && (maxPort < minPort || maxPort > 65535))
+			throw new NumberFormatException(String.format("Invalid %s", PORT_RANGE_CONF_KEY));
+		rangeSize = ranged ? maxPort - minPort + 1 : 0;
+		for (int port = minPort; ranged && port <= maxPort; port++) {
+			free.add(new Lease(port));
+		}
+	}
+
+	/**
+	 * Lease a bound listener
+	 * @param local The address the session's control connection came in on, which the
+	 * listener is bound to
+	 * @return The lease, or null if every port in the range is in use
+	 * @throws IOException If an ephemeral port couldn't be bound
+	 */
+	public Lease lease(InetAddress local) throws IOException {
+		if (!ranged) {
+			Lease lease = new Lease(0);
+			lease.bind(local);
+			return lease;
+		}
+
+		// A port can fail to bind if something else grabbed it, in which case we put it
+		// back and try the others
+		for (int attempt = 0; attempt < rangeSize; attempt++) {
+			Lease lease = free.poll();
+			if (lease == null)
+				return null;
+			try {
+				lease.bind(local);
+				return lease;
+			} catch (IOException e) {
+				EventLogger.logGeneralException(logger, "PASV bind", e);
+				free.add(lease);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get the address a client should connect to for PASV
+	 * @param local The address the session's control connection came in on
+	 * @return The configured address, or the local one if it is IPv4, or null if there is
+	 * no IPv4 address to give, in which case the client has to use EPSV
+	 */
+	public Inet4Address getAdvertiseAddress(InetAddress local) {
+		if (advertiseAddress != null)
+			return advertiseAddress;
+		return (local instanceof Inet4Address) ? (Inet4Address)local : null;
+	}
+
+	/**
+	 * A listener leased to a session.  Return it with release when the session is done with it
+	 * @author Dave Sizer <dave@sizetron.net>
+	 *
+	 */
+	public class Lease {
+		private final int port;
+		private ServerSocketChannel channel;
+		private InetAddress boundAddress;
+
+		private Lease(int port) {
+			this.port = port;
+		}
+
+		/**
+		 * @return The listening socket
+		 */
+		public ServerSocket getSocket() {
+			return channel.socket();
+		}
+
+		/**
+		 * @return The port the listener is bound to
+		 */
+		public int getPort() {
+			return channel.socket().getLocalPort();
+		}
+
+		/**
+		 * Wait for a connection from the client on this listener
+		 * @param client The address the connection has to come from
+		 * @return A future completed with the data connection
+		 * @throws IOException If the shared acceptor couldn't be started
+		 */
+		public CompletableFuture<SocketChannel> expect(InetAddress client) throws IOException {
+			return DataConnector.getInstance().expect(channel, client);
+		}
+
+		/**
+		 * Give the listener back to the pool, abandoning any connection still expected on it
+		 */
+		public void release() {
+			try {
+				DataConnector.getInstance().cancel(channel);
+			} catch (IOException e) {
+				// Nothing can have been expected without the acceptor
+			}
+			if (ranged)
+				free.add(this);
+			else
+				close();
+		}
+
+		/**
+		 * Bind the listener to the given address if it isn't already.  A ranged listener that was
+		 * last bound for a session on another of our addresses is bound again
+		 */
+		private void bind(InetAddress address) throws IOException {
+			if (channel != null && channel.isOpen() && address.equals(boundAddress))
+				return;
+			close();
+			ServerSocketChannel newChannel = ServerSocketChannel.open();
+			try {
+				newChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+				newChannel.bind(new InetSocketAddress(address, port));
+				newChannel.configureBlocking(false);
+			} catch (IOException e) {
+				ServerMetrics.getInstance().pasvBindFailed();
+				newChannel.close();
+				throw e;
+			}
+			channel = newChannel;
+			boundAddress = address;
+		}
+
+		private void close() {
+			if (channel == null)
+				return;
+			try {
+				channel.close();
+			} catch (IOException e) {
+				EventLogger.logListenException(logger, channel.socket(), e);
+			}
+			channel = null;
+		}
+	}
+
+}
@@ -0,0 +1,110 @@
+package edu.dasizeman.jftpserver;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * A salted PBKDF2 hash of a password, written in the credential file as
+ * pbkdf2:<iterations>:<salt>:<hash> with the salt and hash in unpadded base64, since the
+ * file splits its lines on '='
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class PasswordHash {
+	private static final String PREFIX = "pbkdf2";
+	private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+	private static final int DEFAULT_ITERATIONS = 100000;
+	private static final int SALT_LENGTH = 16;
+	private static final int HASH_LENGTH = 32;
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private final int iterations;
+	private final byte[] salt;
+	private final byte[] hash;
+
+	private PasswordHash(int iterations, byte[] salt, byte[] hash) {
+		this.iterations = iterations;
+		this.salt = salt;
+		this.hash = hash;
+	}
+
+	/**
+	 * Hash a password with a new random salt
+	 * @param password The password
+	 * @return The hash
+	 */
+	public static PasswordHash create(String password) {
+		byte[] salt = new byte[SALT_LENGTH];
+		random.nextBytes(salt);
+		return new PasswordHash(DEFAULT_ITERATIONS, salt, derive(password, salt, DEFAULT_ITERATIONS, HASH_LENGTH));
+	}
+
+	/**
+	 * @param value A value from the credential file
+	 * @return Whether it is a hash, rather than a plaintext password
+	 */
+	public static boolean isEncoded(String value) {
+		return value.startsWith(PREFIX + ":");
+	}
+
+	/**
+	 * Read a hash written by encode
+	 * @param encoded The encoded hash
+	 * @return The hash
+	 * @throws LineFormatException If it isn't a hash we can read
+	 */
+	public static PasswordHash parse(String encoded) throws LineFormatException {
+		String[] fields = encoded.split(":");
+		if (fields.length != 4 || !fields[0].equals(PREFIX))
+			throw new LineFormatException("Password hashes look like pbkdf2:<iterations>:<salt>:<hash>");
+		int iterations;
+		byte[] salt;
+		byte[] hash;
+		try {
+			iterations = Integer.parseInt(fields[1]);
+			salt = Base64.getDecoder().decode(fields[2]);
+			hash = Base64.getDecoder().decode(fields[3]);
+		} catch (IllegalArgumentException e) {
+			throw new LineFormatException(String.format("Bad password hash: %s", e.getMessage()));
+		}
+		if (iterations < 1 || hash.length == 0)
+			throw new LineFormatException("Password hashes need at least one iteration and a hash");
+		return new PasswordHash(iterations, salt, hash);
+	}
+
+	/**
+	 * @return The hash as it is written in the credential file
+	 */
+	public String encode() {
+		Base64.Encoder encoder = Base64.getEncoder().withoutPadding();
+		return String.format("%s:%d:%s:%s", PREFIX, iterations, encoder.encodeToString(salt), encoder.encodeToString(hash));
+	}
+
+	/**
+	 * Check a password against the hash.  This is deliberately slow
+	 * @param password The password to check
+	 * @return Whether it matches
+	 */
+	public boolean verify(String password) {
+		return MessageDigest.isEqual(hash, derive(password, salt, iterations, hash.length));
+	}
+
+	private static byte[] derive(String password, byte[] salt, int iterations, int length) {
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, length * 8);
+		try {
+			return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+		} catch (GeneralSecurityException e) {
+			// Every Java 8 and later runtime has to support this
+			throw new IllegalStateException(e);
+		} finally {
+			spec.clearPassword();
+		}
+	}
+
+}
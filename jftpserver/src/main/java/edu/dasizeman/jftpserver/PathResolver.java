@@ -0,0 +1,222 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * A shared, size bounded cache of what paths really are on disk, keyed by the absolute path
+ * a session asked for.  A hit gives the canonical path with every symlink followed, and
+ * whether it is a directory, so sessions can check a path against their root without going
+ * to the filesystem.  Paths that don't exist are cached too, so a client probing for files
+ * that aren't there only costs us a lookup.  Entries expire after a few seconds to pick up
+ * changes made behind our back, and uploads invalidate their target as soon as they commit.
+ * The paths are split across lock stripes, each a small LRU of its own, so lookups of
+ * different paths don't queue up behind one lock and eviction is only roughly LRU overall
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class PathResolver {
+	private static final Logger logger = Logger.getGlobal();
+
+	private static final String CACHE_SIZE_CONF_KEY = "path_cache_size";
+	private static final String CACHE_SECONDS_CONF_KEY = "path_cache_seconds";
+
+	// The most stripes to split the paths across
+	private static final int STRIPES = 16;
+
+	private static volatile PathResolver instance = new PathResolver(0, 0);
+
+	private final int capacity;
+	private final long lifetimeNanos;
+	private final Stripe[] stripes;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder negativeHits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * What a path is on disk.  Paths that don't exist only have entries inside the cache
+	 */
+	public static class Entry {
+		private final Path realPath;
+		private final boolean directory;
+		private final long expires;
+
+		private Entry(Path realPath, boolean directory, long expires) {
+			this.realPath = realPath;
+			this.directory = directory;
+			this.expires = expires;
+		}
+
+		/**
+		 * @return The canonical path, with every symlink followed
+		 */
+		public Path getRealPath() {
+			return realPath;
+		}
+
+		public boolean isDirectory() {
+			return directory;
+		}
+
+		/**
+		 * @param root A canonical directory
+		 * @return Whether the path is the directory or anywhere under it
+		 */
+		public boolean isIn(Path root) {
+			return realPath.startsWith(root);
+		}
+	}
+
+	/**
+	 * Some of the cached paths, in access order, behind their own lock
+	 */
+	private static class Stripe {
+		private final int capacity;
+		private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<Path, Entry>(16, 0.75f, true);
+
+		Stripe(int capacity) {
+			this.capacity = capacity;
+		}
+
+		synchronized Entry get(Path path) {
+			return entries.get(path);
+		}
+
+		synchronized void put(Path path, Entry entry) {
+			entries.put(path, entry);
+			if (entries.size() > capacity)
+				entries.remove(entries.keySet().iterator().next());
+		}
+
+		synchronized void remove(Path path) {
+			entries.remove(path);
+		}
+
+		synchronized int size() {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * Get the server wide resolver
+	 * @return The resolver set by configure, or one that doesn't cache if it hasn't been called
+	 */
+	public static PathResolver getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Set up the server wide resolver from the configuration file.  The resolver is only
+	 * replaced, forgetting every path, when its settings change
+	 * @param configFile The loaded configuration
+	 * @throws NumberFormatException If a setting isn't a number
+	 */
+	public static synchronized void configure(ConfigurationFile configFile) throws NumberFormatException {
+		PathResolver next = new PathResolver(configFile.getIntValue(CACHE_SIZE_CONF_KEY), configFile.getIntValue(CACHE_SECONDS_CONF_KEY));
+		if (next.capacity == instance.capacity && next.lifetimeNanos == instance.lifetimeNanos)
+			return;
+		instance = next;
+		EventLogger.logEvent(logger, "Path cache setup", String.format("%d paths for %d seconds",
+				instance.capacity, TimeUnit.NANOSECONDS.toSeconds(instance.lifetimeNanos)));
+	}
+
+	/**
+	 * Create a resolver
+	 * @param capacity The most paths to remember, or 0 to go to the filesystem every time
+	 * @param lifetimeSeconds How long a path is remembered for
+	 */
+	public PathResolver(int capacity, int lifetimeSeconds) {
+		this.capacity = (lifetimeSeconds > 0) ? capacity : 0;
+		this.lifetimeNanos = TimeUnit.SECONDS.toNanos(lifetimeSeconds);
+
+		// Every stripe gets an equal share, so together they never hold more than the capacity
+		stripes = new Stripe[Math.min(STRIPES, this.capacity)];
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new Stripe(this.capacity / stripes.length);
+		}
+	}
+
+	/**
+	 * Find out what a path really is
+	 * @param path The absolute, normalized path
+	 * @return What it is, or null if it doesn't exist
+	 */
+	public Entry resolve(Path path) {
+		long now = System.nanoTime();
+		if (capacity > 0) {
+			Entry entry = stripeFor(path).get(path);
+			if (entry != null && entry.expires - now > 0) {
+				if (entry.realPath == null) {
+					negativeHits.increment();
+					return null;
+				}
+				hits.increment();
+				return entry;
+			}
+		}
+
+		misses.increment();
+		Entry entry = lookup(path, now + lifetimeNanos);
+		if (capacity > 0)
+			stripeFor(path).put(path, entry);
+		return (entry.realPath == null) ? null : entry;
+	}
+
+	/**
+	 * Forget a path that has just been created or replaced
+	 * @param path The absolute, normalized path
+	 */
+	public void invalidate(Path path) {
+		if (capacity <= 0)
+			return;
+		stripeFor(path).remove(path);
+	}
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getNegativeHitCount() {
+		return negativeHits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	public int getEntryCount() {
+		int count = 0;
+		for (Stripe stripe : stripes) {
+			count += stripe.size();
+		}
+		return count;
+	}
+
+	private Stripe stripeFor(Path path) {
+		int hash = path.hashCode();
+		return stripes[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % stripes.length];
+	}
+
+	/**
+	 * Go to the filesystem for a path
+	 * @param expires When the answer should be forgotten
+	 * @return The entry, which doesn't have a real path if the path doesn't exist
+	 */
+	private static Entry lookup(Path path, long expires) {
+		try {
+			Path realPath = path.toRealPath();
+			boolean directory = Files.readAttributes(realPath, BasicFileAttributes.class).isDirectory();
+			return new Entry(realPath, directory, expires);
+		} catch (IOException | SecurityException e) {
+			return new Entry(null, false, expires);
+		}
+	}
+
+}
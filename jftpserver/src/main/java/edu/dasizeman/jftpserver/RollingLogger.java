@@ -3,27 +3,27 @@ package edu.dasizeman.jftpserver;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.logging.FileHandler;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.RegexFileFilter;
 
 public class RollingLogger {
 	private static final String LOG_FILE_NAME = "jftpd.log";
-	private static final String OLD_LOG_FILE_FMT = "%s.%03d";
-	private static final String OLD_LOG_FILE_PATTERN = String.format("^%s\\.(\\d+)$", LOG_FILE_NAME);
 	private static final String NUM_LOG_CONF_KEY = "numlogfiles";
 	private static final String LOG_DIR_CONF_KEY = "logdirectory";
+	private static final String LOG_LEVEL_CONF_KEY = "loglevel";
+	private static final String ROTATE_SIZE_CONF_KEY = "log_rotate_size";
+	private static final String ROTATE_HOURS_CONF_KEY = "log_rotate_hours";
+	private static final String COMPRESS_CONF_KEY = "log_compress";
+	private static final String QUEUE_SIZE_CONF_KEY = "log_queue_size";
+	private static final String QUEUE_FULL_CONF_KEY = "log_queue_full";
 	private static final Logger logger = Logger.getGlobal();
-	
-	
+	private static volatile AsyncLogHandler handler;
+
+
 	public static void configure() {
 		LogManager.getLogManager().reset();
 
@@ -31,72 +31,70 @@ public class RollingLogger {
 		int numLogs;
 		try {
 			ConfigurationFile configFile = ConfigurationFile.getInstance();
-			
+
 			// Get the number of logfiles allowed
 			String numLogString = configFile.getConfigValue(NUM_LOG_CONF_KEY);
 			numLogs = Integer.parseInt(numLogString);
-			
+
 			if (numLogs <= 0) {
 				throw new LineFormatException(String.format("%s must be at least 1.", NUM_LOG_CONF_KEY));
 			}
-			
+
+			// Get the most detailed level to log.  Anything below it is skipped before it is formatted
+			Level level = Level.parse(configFile.getConfigValue(LOG_LEVEL_CONF_KEY).toUpperCase());
+
+			// When to rotate while we are running, and what to do when logging can't keep up
+			long rotateBytes = configFile.getSizeValue(ROTATE_SIZE_CONF_KEY);
+			long rotateMillis = TimeUnit.HOURS.toMillis(Long.parseLong(configFile.getConfigValue(ROTATE_HOURS_CONF_KEY)));
+			boolean compress = configFile.getConfigValue(COMPRESS_CONF_KEY).toLowerCase().equals("yes");
+			int queueSize = Integer.parseInt(configFile.getConfigValue(QUEUE_SIZE_CONF_KEY));
+			AsyncLogHandler.FullPolicy policy = AsyncLogHandler.FullPolicy.valueOf(
+					configFile.getConfigValue(QUEUE_FULL_CONF_KEY).toUpperCase());
+
 			// Get the log directory path
 			String logDirPath = configFile.getConfigValue(LOG_DIR_CONF_KEY);
-			
+
 			// Get the log directory and ensure it exists
 			File logDir = FileUtils.getFile(logDirPath);
-			
+
 			if (!logDir.exists() || !logDir.isDirectory()) {
 				throw new FileNotFoundException("Could not open logging directory.");
 			}
 
 			File logFile = FileUtils.getFile(logDir, LOG_FILE_NAME);
-			
-			// Roll if needed
-			if (logFile.exists()) {
-				
-				// First find all existing log files and increment their suffixes
-				// We ensure results are sorted in reverse alphabetical order, so we start from the oldest file
-				ArrayList<File> oldFiles = new ArrayList<File>(FileUtils.listFiles(logDir, new RegexFileFilter(OLD_LOG_FILE_PATTERN), null));
-				Collections.sort(oldFiles);
-				Collections.reverse(oldFiles);
-				for (File file : oldFiles) {
-					// Get the suffix
-					Matcher suffixMatcher = Pattern.compile(OLD_LOG_FILE_PATTERN).matcher(file.getName());
-					if (suffixMatcher.find() && suffixMatcher.group(1) != null) {
-						int suffix = Integer.parseInt(suffixMatcher.group(1));
-						suffix++;
-						
-						// Don't keep more than the configured number of logs
-						if (suffix < numLogs) {
-							File newFile = new File(String.format(OLD_LOG_FILE_FMT, LOG_FILE_NAME, suffix));
-							
-							// If a file with this name already exists, it's because we previously had the
-							// number of log files configured higher, so we can overwrite it
-							if (newFile.exists())
-								FileUtils.forceDelete(newFile);
-							
-							FileUtils.moveFile(file, newFile);
-						}
-					}
+
+			// Actually open the log file.  A log left from the last run is rolled over first,
+			// and from then on the handler rolls it whenever it is due
+			LogArchiver archiver = new LogArchiver(logDir, LOG_FILE_NAME, numLogs, compress);
+			final AsyncLogHandler logHandler = new AsyncLogHandler(logFile, archiver, queueSize, policy, rotateBytes, rotateMillis);
+			logHandler.setFormatter(new SimplerFormatter());
+			logHandler.setLevel(Level.ALL);
+			logger.addHandler(logHandler);
+			logger.setLevel(level);
+			handler = logHandler;
+
+			// Write out whatever is still queued when we are stopped
+			Runtime.getRuntime().addShutdownHook(new Thread("jftpd-log-shutdown") {
+				@Override
+				public void run() {
+					logHandler.close();
 				}
-				// Now add the 0 suffix to the most recent log file
-				FileUtils.moveFile(logFile, new File(String.format(OLD_LOG_FILE_FMT, LOG_FILE_NAME, 0)));
-			}
-			
-			// Actually open the log file
-			FileHandler fileHandler = new FileHandler(logFile.getAbsolutePath());
-			fileHandler.setFormatter(new SimplerFormatter());
-			fileHandler.setLevel(Level.ALL);
-			logger.addHandler(fileHandler);
-			logger.setLevel(Level.ALL);
-			
-		} catch (LineFormatException | IOException | NumberFormatException e) {
+			});
+
+		} catch (IOException | IllegalArgumentException e) {
 			System.out.println(e);
 			System.exit(1);
 		}
-		
-		
+
+
+	}
+
+	/**
+	 * @return How many records have been dropped because logging couldn't keep up
+	 */
+	public static long getDroppedCount() {
+		AsyncLogHandler current = handler;
+		return (current == null) ? 0 : current.getDroppedCount();
 	}
 
 }
@@ -0,0 +1,312 @@
+package edu.dasizeman.jftpserver;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Live counters for the whole server, published over JMX along with a CommandStats
+ * for every FTP command.  Everything is counted with striped adders, so sessions and
+ * transfers never contend with each other to count things.  Rates are worked out once a
+ * second on the shared timer from the difference in the totals
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+	private static final Logger logger = Logger.getGlobal();
+
+	private static final String DOMAIN = "edu.dasizeman.jftpserver";
+	private static final long RATE_INTERVAL_SECONDS = 1;
+
+	private static final ServerMetrics instance = new ServerMetrics();
+
+	private final LongAdder activeSessions = new LongAdder();
+	private final LongAdder totalSessions = new LongAdder();
+	private final LongAdder authFailures = new LongAdder();
+	private final LongAdder sessionsRejected = new LongAdder();
+	private final LongAdder unknownCommands = new LongAdder();
+	private final Map<FTPCommand, CommandStats> commands = new EnumMap<FTPCommand, CommandStats>(FTPCommand.class);
+
+	private final LongAdder transfersCompleted = new LongAdder();
+	private final LongAdder transfersFailed = new LongAdder();
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder bytesReceived = new LongAdder();
+	private final LatencyHistogram transferTimes = new LatencyHistogram();
+
+	private final LongAdder pasvBindFailures = new LongAdder();
+	private final LongAdder pasvPortsExhausted = new LongAdder();
+
+	// The totals at the last rate sample, and the rates worked out from them
+	private long lastTransfers, lastBytesSent, lastBytesReceived;
+	private volatile long transfersPerSecond, bytesSentPerSecond, bytesReceivedPerSecond;
+
+	private ServerMetrics() {
+		// Every command gets its stats up front, so the map is never written once we are running
+		for (FTPCommand command : FTPCommand.values()) {
+			commands.put(command, new CommandStats());
+		}
+	}
+
+	public static ServerMetrics getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Publish the metrics with the platform MBean server and start sampling rates
+	 */
+	public static void register() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.registerMBean(instance, new ObjectName(DOMAIN + ":type=Server"));
+			for (Map.Entry<FTPCommand, CommandStats> command : instance.commands.entrySet()) {
+				server.registerMBean(command.getValue(),
+						new ObjectName(DOMAIN + ":type=Command,name=" + command.getKey().name()));
+			}
+			server.registerMBean(BandwidthShaper.getInstance(), new ObjectName(DOMAIN + ":type=BandwidthShaper"));
+		} catch (JMException e) {
+			EventLogger.logGeneralException(logger, "JMX registration", e);
+		}
+
+		ExecutionManager.getTimer().scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				instance.sampleRates();
+			}
+		}, RATE_INTERVAL_SECONDS, RATE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/*
+	 * Recording, called from the handlers
+	 */
+
+	public void sessionOpened() {
+		activeSessions.increment();
+		totalSessions.increment();
+	}
+
+	public void sessionClosed() {
+		activeSessions.decrement();
+	}
+
+	public void authFailed() {
+		authFailures.increment();
+	}
+
+	public void sessionRejected() {
+		sessionsRejected.increment();
+	}
+
+	/**
+	 * @param command The command that was handled, or null if it wasn't one we know
+	 * @param nanos How long it took to handle
+	 */
+	public void commandHandled(FTPCommand command, long nanos) {
+		if (command == null)
+			unknownCommands.increment();
+		else
+			commands.get(command).record(nanos);
+	}
+
+	/**
+	 * @param sent Whether we were sending, as opposed to receiving
+	 * @param bytes How many bytes made it across
+	 * @param nanos How long the transfer took
+	 * @param success Whether the transfer completed
+	 */
+	public void transferFinished(boolean sent, long bytes, long nanos, boolean success) {
+		if (sent)
+			bytesSent.add(bytes);
+		else
+			bytesReceived.add(bytes);
+
+		if (success) {
+			transfersCompleted.increment();
+			transferTimes.record(nanos);
+		} else
+			transfersFailed.increment();
+	}
+
+	public void pasvBindFailed() {
+		pasvBindFailures.increment();
+	}
+
+	public void pasvPortsExhausted() {
+		pasvPortsExhausted.increment();
+	}
+
+	/**
+	 * Work out the rates since the last sample.  Only ever called from the timer thread
+	 */
+	private void sampleRates() {
+		long transfers = transfersCompleted.sum() + transfersFailed.sum();
+		long sent = bytesSent.sum();
+		long received = bytesReceived.sum();
+
+		transfersPerSecond = (transfers - lastTransfers) / RATE_INTERVAL_SECONDS;
+		bytesSentPerSecond = (sent - lastBytesSent) / RATE_INTERVAL_SECONDS;
+		bytesReceivedPerSecond = (received - lastBytesReceived) / RATE_INTERVAL_SECONDS;
+
+		lastTransfers = transfers;
+		lastBytesSent = sent;
+		lastBytesReceived = received;
+	}
+
+	private static double hitRate(long hits, long misses) {
+		long total = hits + misses;
+		return (total == 0) ? 0 : (double)hits / total;
+	}
+
+	/*
+	 * MBean attributes
+	 */
+
+	@Override
+	public long getActiveSessions() {
+		return activeSessions.sum();
+	}
+
+	@Override
+	public long getTotalSessions() {
+		return totalSessions.sum();
+	}
+
+	@Override
+	public long getAuthFailures() {
+		return authFailures.sum();
+	}
+
+	@Override
+	public long getSessionsRejected() {
+		return sessionsRejected.sum();
+	}
+
+	@Override
+	public long getUnknownCommands() {
+		return unknownCommands.sum();
+	}
+
+	@Override
+	public long getTransfersCompleted() {
+		return transfersCompleted.sum();
+	}
+
+	@Override
+	public long getTransfersFailed() {
+		return transfersFailed.sum();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return bytesSent.sum();
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	@Override
+	public long getTransfersPerSecond() {
+		return transfersPerSecond;
+	}
+
+	@Override
+	public long getBytesSentPerSecond() {
+		return bytesSentPerSecond;
+	}
+
+	@Override
+	public long getBytesReceivedPerSecond() {
+		return bytesReceivedPerSecond;
+	}
+
+	@Override
+	public double getTransferMeanMillis() {
+		return transferTimes.getMeanMicros() / 1000;
+	}
+
+	@Override
+	public long getTransferP99Millis() {
+		return transferTimes.getPercentileMicros(0.99) / 1000;
+	}
+
+	@Override
+	public long getPasvBindFailures() {
+		return pasvBindFailures.sum();
+	}
+
+	@Override
+	public long getPasvPortsExhausted() {
+		return pasvPortsExhausted.sum();
+	}
+
+	@Override
+	public long getFileCacheHits() {
+		return FileCache.getInstance().getHitCount();
+	}
+
+	@Override
+	public long getFileCacheMisses() {
+		return FileCache.getInstance().getMissCount();
+	}
+
+	@Override
+	public double getFileCacheHitRate() {
+		FileCache cache = FileCache.getInstance();
+		return hitRate(cache.getHitCount(), cache.getMissCount());
+	}
+
+	@Override
+	public long getFileCacheEvictions() {
+		return FileCache.getInstance().getEvictionCount();
+	}
+
+	@Override
+	public long getFileCacheAdmissionRejections() {
+		return FileCache.getInstance().getRejectionCount();
+	}
+
+	@Override
+	public long getListingCacheHits() {
+		return ListingCache.getInstance().getHitCount();
+	}
+
+	@Override
+	public long getListingCacheMisses() {
+		return ListingCache.getInstance().getMissCount();
+	}
+
+	@Override
+	public double getListingCacheHitRate() {
+		ListingCache cache = ListingCache.getInstance();
+		return hitRate(cache.getHitCount(), cache.getMissCount());
+	}
+
+	@Override
+	public long getPathCacheHits() {
+		return PathResolver.getInstance().getHitCount();
+	}
+
+	@Override
+	public long getPathCacheNegativeHits() {
+		return PathResolver.getInstance().getNegativeHitCount();
+	}
+
+	@Override
+	public long getPathCacheMisses() {
+		return PathResolver.getInstance().getMissCount();
+	}
+
+	@Override
+	public long getLogRecordsDropped() {
+		return RollingLogger.getDroppedCount();
+	}
+
+}
@@ -0,0 +1,44 @@
+package edu.dasizeman.jftpserver;
+
+/**
+ * What JMX shows about the server as a whole
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public interface ServerMetricsMBean {
+	// Control sessions
+	long getActiveSessions();
+	long getTotalSessions();
+	long getAuthFailures();
+	long getSessionsRejected();
+	long getUnknownCommands();
+
+	// Data transfers
+	long getTransfersCompleted();
+	long getTransfersFailed();
+	long getBytesSent();
+	long getBytesReceived();
+	long getTransfersPerSecond();
+	long getBytesSentPerSecond();
+	long getBytesReceivedPerSecond();
+	double getTransferMeanMillis();
+	long getTransferP99Millis();
+
+	// Passive mode
+	long getPasvBindFailures();
+	long getPasvPortsExhausted();
+
+	// Caches and logging
+	long getFileCacheHits();
+	long getFileCacheMisses();
+	double getFileCacheHitRate();
+	long getFileCacheEvictions();
+	long getFileCacheAdmissionRejections();
+	long getListingCacheHits();
+	long getListingCacheMisses();
+	double getListingCacheHitRate();
+	long getPathCacheHits();
+	long getPathCacheNegativeHits();
+	long getPathCacheMisses();
+	long getLogRecordsDropped();
+}
@@ -1,32 +1,56 @@
 package edu.dasizeman.jftpserver;
 
-import java.sql.Date;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.logging.Formatter;
 import java.util.logging.LogRecord;
 
 /**
- * Very basic formatter for logging
+ * Very basic formatter for logging.  Timestamps only have second resolution, so the
+ * formatted one is kept and reused for every record in the same second
  * @author Dave Sizer <dave@sizetron.net>
  * @since 10/28/16
  *
  */
 public class SimplerFormatter extends Formatter {
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+    private static final int MAX_RETAINED_BUFFER = 16 * 1024;
+
+    private final ZoneId zone = ZoneId.systemDefault();
+
+    // Reused between records, which handlers format one at a time
+    private StringBuilder log = new StringBuilder(256);
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedTimestamp;
+
     @Override
-    public String format(LogRecord record) {
-        StringBuffer log = new StringBuffer();
-        log.append("[" + 
-        		new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(record.getMillis()))
-        		+ "]");
+    public synchronized String format(LogRecord record) {
+        log.setLength(0);
+        log.append('[').append(timestamp(record.getMillis())).append(']');
         log.append(" ");
-        log.append("<" + record.getLevel().getName() + ">");
+        log.append('<').append(record.getLevel().getName()).append('>');
         log.append(" ");
-        //log.append("[").append(record.getSourceClassName() ?: record.getLoggerName())
-        //log.append(" ")
-        //log.append(record.getSourceMethodName() ?: " - ").append("]")
         log.append(": ");
         log.append(record.getMessage());
-        log.append(System.getProperty("line.separator"));
-        return log.toString();
+        log.append(LINE_SEPARATOR);
+        String result = log.toString();
+
+        if (log.capacity() > MAX_RETAINED_BUFFER)
+            log = new StringBuilder(256);
+        return result;
+    }
+
+    /**
+     * Format a record's time, reusing the last result if it is in the same second
+     */
+    private String timestamp(long millis) {
+        long second = Math.floorDiv(millis, 1000L);
+        if (second != cachedSecond) {
+            cachedTimestamp = TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(millis).atZone(zone));
+            cachedSecond = second;
+        }
+        return cachedTimestamp;
     }
 }
\ No newline at end of file
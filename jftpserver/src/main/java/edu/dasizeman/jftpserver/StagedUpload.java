@@ -0,0 +1,173 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+/**
+ * An upload in progress to LocalStorage that replaces its target.  Data is written to a hidden
+ * temp file next to the target, which is only renamed over the target once the upload has
+ * completed, so other sessions never see a partial file.  LocalStorage leaves the temp files
+ * out of listings and lookups.  Appends and resumed uploads go through InPlaceUpload instead.
+ * How hard we try to make the file durable before publishing it is configurable
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class StagedUpload implements Upload {
+	private static final Logger logger = Logger.getGlobal();
+
+	private static final String FSYNC_CONF_KEY = "upload_fsync";
+	private static final String TEMP_FILE_SUFFIX = ".jftpd-upload";
+	private static final String TEMP_FILE_FMT = ".%s.%d" + TEMP_FILE_SUFFIX;
+
+	/**
+	 * When uploaded files are forced to disk
+	 */
+	public enum Durability {
+		// Each upload forces its own file before it is published, and its directory after,
+		// from the thread that received it
+		FILE,
+		// Leave it to the OS
+		NONE
+	}
+
+	private static volatile Durability durability = Durability.FILE;
+
+	private final File target;
+	private final Path tempPath;
+	private final FileChannel channel;
+	private boolean finished = false;
+
+	/**
+	 * Set up the upload durability policy from the configuration file
+	 * @param configFile The loaded configuration
+	 * @throws IllegalArgumentException If the policy isn't valid
+	 */
+	public static void configure(ConfigurationFile configFile) throws IllegalArgumentException {
+		setDurability(Durability.valueOf(configFile.getConfigValue(FSYNC_CONF_KEY).toUpperCase()));
+	}
+
+	/**
+	 * Set the upload durability policy directly, for the benchmarks
+	 * @param policy When uploads are forced to disk
+	 */
+	static void setDurability(Durability policy) {
+		durability = policy;
+	}
+
+	/**
+	 * Force a finished upload's file to disk if the policy says to
+	 * @param channel The file
+	 * @throws IOException If forcing the file failed
+	 */
+	static void force(FileChannel channel) throws IOException {
+		if (durability == Durability.FILE)
+			channel.force(true);
+	}
+
+	/**
+	 * Force a directory to disk if the policy says to, so a file just created or renamed in
+	 * it is still there after a crash
+	 * @param directory The directory
+	 */
+	static void forceDirectory(Path directory) {
+		if (durability != Durability.FILE)
+			return;
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// Some platforms can't open or sync a directory, and there is nothing else to do there
+		}
+	}
+
+	/**
+	 * @param name A file name
+	 * @return Whether it is the name of an upload's temp file
+	 */
+	static boolean isTempFile(String name) {
+		return name.startsWith(".") && name.endsWith(TEMP_FILE_SUFFIX);
+	}
+
+	/**
+	 * Start an upload to the given file
+	 * @param target The file the upload will replace when it completes
+	 * @throws IOException If the temp file couldn't be created
+	 */
+	public StagedUpload(File target) throws IOException {
+		this.target = target;
+		this.tempPath = new File(target.getParentFile(),
+				String.format(TEMP_FILE_FMT, target.getName(), System.nanoTime())).toPath();
+		this.channel = FileChannel.open(tempPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Write everything in the buffer to the upload
+	 * @param buffer The data to write
+	 * @throws IOException If the write failed
+	 */
+	@Override
+	public void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Finish the upload, making it durable according to the policy and publishing
+	 * it over the target with an atomic rename
+	 * @throws IOException If the file couldn't be synced or published.  The upload is
+	 * aborted in that case
+	 */
+	@Override
+	public void commit() throws IOException {
+		try {
+			force(channel);
+			channel.close();
+
+			try {
+				Files.move(tempPath, target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempPath, target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			finished = true;
+			forceDirectory(tempPath.getParent());
+		} catch (IOException e) {
+			abort();
+			throw e;
+		}
+		FileCache.getInstance().invalidate(target);
+		PathResolver.getInstance().invalidate(target.toPath());
+	}
+
+	/**
+	 * Throw away the upload, leaving the target untouched
+	 */
+	@Override
+	public void abort() {
+		if (finished)
+			return;
+		finished = true;
+		try {
+			channel.close();
+			Files.deleteIfExists(tempPath);
+		} catch (IOException e) {
+			EventLogger.logGeneralException(logger, "Upload abort", e);
+		}
+	}
+
+	/**
+	 * Abort the upload if it hasn't been committed
+	 */
+	@Override
+	public void close() {
+		abort();
+	}
+
+}
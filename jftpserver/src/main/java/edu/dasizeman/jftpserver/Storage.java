@@ -0,0 +1,73 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Where the files we serve live.  Every path is a normalized virtual path starting with /,
+ * which FilesystemManager has already worked out from what the client sent, and it is up to
+ * the storage to keep anything it finds inside its root.  LocalStorage serves a directory on
+ * disk, and MemoryStorage serves files kept entirely in memory
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public interface Storage {
+	/**
+	 * What can be at a path
+	 */
+	enum Kind {
+		FILE,
+		DIRECTORY
+	}
+
+	/**
+	 * Find out what is at a path.  This is checked for every path a command names, so it
+	 * should be cheap
+	 * @param path The virtual path
+	 * @return What is there, or null if there is nothing there
+	 */
+	Kind find(String path);
+
+	/**
+	 * Get the attributes of a file or directory
+	 * @param path The virtual path
+	 * @return The attributes, or null if there is nothing there
+	 */
+	FileInfo stat(String path);
+
+	/**
+	 * Get a lister for a directory
+	 * @param path The virtual path of a directory that find says is there
+	 * @param format The listing format
+	 * @return The lister
+	 */
+	DirectoryLister list(String path, DirectoryLister.Format format);
+
+	/**
+	 * Get a file's contents if they are already in memory
+	 * @param path The virtual path
+	 * @return A buffer positioned at the start of the contents that the caller is free to
+	 * consume, or null if the file isn't in memory or isn't there
+	 */
+	ByteBuffer getContents(String path);
+
+	/**
+	 * Open a file for reading, for files getContents doesn't have
+	 * @param path The virtual path
+	 * @return The channel to read from
+	 * @throws IOException If the file can't be opened
+	 */
+	FileChannel openRead(String path) throws IOException;
+
+	/**
+	 * Start an upload to a file
+	 * @param path The virtual path
+	 * @param keep How many bytes of the file's current contents to keep ahead of the upload.
+	 * 0 replaces the file, Long.MAX_VALUE appends to it, anything else resumes an upload at that offset
+	 * @param allocate How many bytes the client said it is going to send, or 0 if it didn't say
+	 * @return The upload, or null if the file can't be written there
+	 * @throws IOException If the upload couldn't be started
+	 */
+	Upload openWrite(String path, long keep, long allocate) throws IOException;
+}
@@ -0,0 +1,42 @@
+package edu.dasizeman.jftpserver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket kept as the time it next has tokens free, so reserving is a single
+ * compare and set.  Callers reserve what they are about to send and are told how long to
+ * wait before sending it, which lines everyone sharing the bucket up one after another in
+ * the order they asked, instead of letting whoever asks most often take it all.  The rate
+ * is passed in on every reservation so it can be changed while transfers are running
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class TokenBucket {
+	// How far ahead of the rate a bucket may send after it has been idle
+	static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	// When everything reserved so far will have been sent at the rate
+	private final AtomicLong nextFree = new AtomicLong(System.nanoTime());
+
+	/**
+	 * Reserve bytes to send
+	 * @param bytes How many bytes are about to be sent
+	 * @param bytesPerSecond The rate, or 0 for no limit
+	 * @param now The current System.nanoTime()
+	 * @return How long to wait in nanoseconds before sending them
+	 */
+	public long reserve(long bytes, long bytesPerSecond, long now) {
+		if (bytesPerSecond <= 0)
+			return 0;
+		long cost = bytes * NANOS_PER_SECOND / bytesPerSecond;
+		while (true) {
+			long free = nextFree.get();
+			if (nextFree.compareAndSet(free, Math.max(free, now) + cost))
+				return Math.max(0, free - BURST_NANOS - now);
+		}
+	}
+
+}
@@ -0,0 +1,33 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An upload in progress to some Storage.  Nobody sees a replacement file until it is
+ * committed, and closing an upload that hasn't been committed throws it away.  A Storage may
+ * write appends and resumed uploads into the file as they arrive, in which case closing one
+ * early keeps what was written so the client can resume
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public interface Upload extends Closeable {
+	/**
+	 * Write everything in the buffer to the upload
+	 * @param buffer The data to write
+	 * @throws IOException If the write failed
+	 */
+	void write(ByteBuffer buffer) throws IOException;
+
+	/**
+	 * Finish the upload and publish it over the target
+	 * @throws IOException If it couldn't be published.  The upload is aborted in that case
+	 */
+	void commit() throws IOException;
+
+	/**
+	 * Give up on the upload.  A replacement leaves the target untouched
+	 */
+	void abort();
+}
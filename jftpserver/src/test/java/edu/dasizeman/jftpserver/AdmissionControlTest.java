@@ -0,0 +1,248 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that AdmissionControl holds each limit, gives back everything a session held when
+ * it is released, once, and never lets more in than a limit allows when sessions arrive
+ * from several threads at once
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class AdmissionControlTest extends TestCase {
+	private InetAddress first;
+	private InetAddress second;
+
+	@Override
+	protected void setUp() throws IOException {
+		first = InetAddress.getByName("192.0.2.1");
+		second = InetAddress.getByName("192.0.2.2");
+	}
+
+	public void testNoLimits() {
+		AdmissionControl control = new AdmissionControl(0, 0, 0);
+		for (int i = 0; i < 1000; i++) {
+			AdmissionControl.Admission admission = control.admit(first);
+			assertNotNull(admission);
+			assertTrue(admission.admitUser("dave"));
+		}
+	}
+
+	public void testSessionLimit() {
+		AdmissionControl control = new AdmissionControl(2, 0, 0);
+		AdmissionControl.Admission one = control.admit(first);
+		AdmissionControl.Admission two = control.admit(second);
+		assertNotNull(one);
+		assertNotNull(two);
+		assertNull(control.admit(first));
+		assertNull(control.admit(second));
+
+		one.release();
+		assertNotNull(control.admit(second));
+		assertNull(control.admit(first));
+	}
+
+	public void testAddressLimit() {
+		AdmissionControl control = new AdmissionControl(0, 2, 0);
+		AdmissionControl.Admission one = control.admit(first);
+		assertNotNull(one);
+		assertNotNull(control.admit(first));
+		assertNull(control.admit(first));
+
+		// Other addresses have their own count
+		assertNotNull(control.admit(second));
+		assertNotNull(control.admit(second));
+		assertNull(control.admit(second));
+
+		one.release();
+		assertNotNull(control.admit(first));
+		assertNull(control.admit(first));
+	}
+
+	public void testAddressRejectionDoesNotUseUpTheSessionLimit() {
+		AdmissionControl control = new AdmissionControl(2, 1, 0);
+		assertNotNull(control.admit(first));
+		for (int i = 0; i < 10; i++) {
+			assertNull(control.admit(first));
+		}
+		assertNotNull(control.admit(second));
+	}
+
+	public void testUserLimit() {
+		AdmissionControl control = new AdmissionControl(0, 0, 1);
+		AdmissionControl.Admission one = control.admit(first);
+		AdmissionControl.Admission two = control.admit(second);
+		assertTrue(one.admitUser("dave"));
+		assertFalse(two.admitUser("dave"));
+		assertTrue(two.admitUser("sue"));
+
+		// Logging in again as someone else gives up the first user
+		assertTrue(one.admitUser("bob"));
+		assertFalse(two.admitUser("bob"));
+		assertTrue(two.admitUser("dave"));
+
+		// As does releasing the session
+		one.release();
+		assertTrue(control.admit(first).admitUser("bob"));
+	}
+
+	public void testReleaseIsIdempotent() {
+		AdmissionControl control = new AdmissionControl(1, 1, 1);
+		AdmissionControl.Admission one = control.admit(first);
+		assertTrue(one.admitUser("dave"));
+		one.release();
+		one.release();
+		one.release();
+
+		// Releasing again must not have freed room for more than one
+		AdmissionControl.Admission two = control.admit(first);
+		assertNotNull(two);
+		assertNull(control.admit(first));
+		assertNull(control.admit(second));
+		assertTrue(two.admitUser("dave"));
+	}
+
+	public void testLoweringALimitKeepsExistingSessions() {
+		AdmissionControl control = new AdmissionControl(0, 0, 0);
+		List<AdmissionControl.Admission> admissions = new ArrayList<AdmissionControl.Admission>();
+		for (int i = 0; i < 3; i++) {
+			admissions.add(control.admit(first));
+		}
+
+		// Nothing is closed, but nobody new gets in until enough have gone
+		control.setLimits(2, 0, 0);
+		assertNull(control.admit(second));
+		admissions.remove(0).release();
+		assertNull(control.admit(second));
+		admissions.remove(0).release();
+		assertNotNull(control.admit(second));
+	}
+
+	public void testLimitsComeFromTheConfiguration() {
+		Map<String, String> settings = new HashMap<String, String>();
+		settings.put("max_sessions", "0");
+		settings.put("max_sessions_per_ip", "1");
+		settings.put("max_sessions_per_user", "0");
+		AdmissionControl.configure(new ConfigurationFile(settings));
+		try {
+			AdmissionControl.Admission one = AdmissionControl.getInstance().admit(first);
+			assertNotNull(one);
+			assertNull(AdmissionControl.getInstance().admit(first));
+			one.release();
+		} finally {
+			AdmissionControl.getInstance().setLimits(0, 0, 0);
+		}
+	}
+
+	public void testNegativeLimitsAreRefused() {
+		try {
+			new AdmissionControl(0, -1, 0);
+			fail("Accepted a negative limit");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		AdmissionControl control = new AdmissionControl(1, 0, 0);
+		try {
+			control.setLimits(0, 0, -1);
+			fail("Accepted a negative limit");
+		} catch (IllegalArgumentException e) {
+			// Expected, and the old limits stay
+		}
+		assertNotNull(control.admit(first));
+		assertNull(control.admit(first));
+	}
+
+	public void testConcurrentAdmissionsStayUnderTheLimits() throws InterruptedException {
+		final int limit = 10;
+		final AdmissionControl control = new AdmissionControl(0, limit, limit);
+		final AtomicInteger admitted = new AtomicInteger();
+		final AtomicInteger mostAdmitted = new AtomicInteger();
+		final AtomicInteger loggedIn = new AtomicInteger();
+		final AtomicInteger mostLoggedIn = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> running = new ArrayList<Thread>();
+		for (int t = 0; t < 8; t++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < 5000; i++) {
+						AdmissionControl.Admission admission = control.admit(first);
+						if (admission == null)
+							continue;
+						raise(mostAdmitted, admitted.incrementAndGet());
+						if (admission.admitUser("dave")) {
+							raise(mostLoggedIn, loggedIn.incrementAndGet());
+							loggedIn.decrementAndGet();
+						}
+						admitted.decrementAndGet();
+						admission.release();
+					}
+				}
+			};
+			thread.start();
+			running.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : running) {
+			thread.join();
+		}
+
+		assertTrue(mostAdmitted.get() <= limit);
+		assertTrue(mostLoggedIn.get() <= limit);
+
+		// Everything was given back, so the whole limit is free again
+		for (int i = 0; i < limit; i++) {
+			assertTrue(control.admit(first).admitUser("dave"));
+		}
+		assertNull(control.admit(first));
+	}
+
+	public void testRejectSendsA421AndCloses() throws IOException {
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		try {
+			Socket client = new Socket(server.getInetAddress(), server.getLocalPort());
+			try {
+				Socket accepted = server.accept();
+				AdmissionControl.reject(accepted);
+				assertTrue(accepted.isClosed());
+
+				InputStream in = client.getInputStream();
+				String reply = new String(IOUtils.toByteArray(in), StandardCharsets.US_ASCII);
+				assertEquals("421 Too many sessions, try again later.\r\n", reply);
+			} finally {
+				client.close();
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	private static void raise(AtomicInteger most, int value) {
+		while (true) {
+			int current = most.get();
+			if (value <= current || most.compareAndSet(current, value))
+				return;
+		}
+	}
+
+}
@@ -0,0 +1,107 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that CredentialManager loads plaintext and hashed passwords, picks up a changed
+ * credential file when it is configured again, stops trusting cached logins whose password
+ * has changed, and keeps what it has when the new file is broken
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class CredentialManagerTest extends TestCase {
+	private Path scratch;
+	private File credentials;
+	private ConfigurationFile configFile;
+	private CredentialManager manager;
+
+	@Override
+	protected void setUp() throws IOException {
+		scratch = Files.createTempDirectory("jftpd-test");
+		credentials = scratch.resolve("creds.conf").toFile();
+
+		// The timer is left off, so only configuring again reloads the file
+		Map<String, String> settings = new HashMap<String, String>();
+		settings.put("usernamefile", credentials.getPath());
+		settings.put("credential_reload_seconds", "0");
+		settings.put("credential_cache_size", "16");
+		configFile = new ConfigurationFile(settings);
+		manager = CredentialManager.getInstance();
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		FileUtils.deleteDirectory(scratch.toFile());
+	}
+
+	public void testPlaintextAndHashedPasswords() throws IOException {
+		write("dave=magic", "sue=" + PasswordHash.create("secret").encode());
+		CredentialManager.configure(configFile);
+
+		assertTrue(manager.checkCredential("dave", "magic"));
+		assertTrue(manager.checkCredential("sue", "secret"));
+		assertFalse(manager.checkCredential("sue", "magic"));
+		assertFalse(manager.checkCredential("bob", "magic"));
+		assertTrue(manager.checkCredential(CredentialManager.ANON_USERNAME, "anything"));
+	}
+
+	public void testChangedFileIsReloaded() throws IOException {
+		write("dave=magic");
+		CredentialManager.configure(configFile);
+		// Cached now, which mustn't outlive the password
+		assertTrue(manager.checkCredential("dave", "magic"));
+		assertTrue(manager.checkCredential("dave", "magic"));
+
+		write("dave=changed", "sue=secret");
+		CredentialManager.configure(configFile);
+		assertFalse(manager.checkCredential("dave", "magic"));
+		assertTrue(manager.checkCredential("dave", "changed"));
+		assertTrue(manager.checkCredential("sue", "secret"));
+
+		// Unchanged, so configuring again keeps what is loaded
+		CredentialManager.configure(configFile);
+		assertTrue(manager.checkCredential("dave", "changed"));
+	}
+
+	public void testBrokenFileKeepsTheOldCredentials() throws IOException {
+		write("dave=magic");
+		CredentialManager.configure(configFile);
+
+		write("dave=other", "sue=pbkdf2:0:AAAA:AAAA");
+		CredentialManager.configure(configFile);
+		assertTrue(manager.checkCredential("dave", "magic"));
+		assertFalse(manager.checkCredential("dave", "other"));
+		assertFalse(manager.checkCredential("sue", "secret"));
+
+		// Once it is fixed it is loaded
+		write("dave=other");
+		CredentialManager.configure(configFile);
+		assertTrue(manager.checkCredential("dave", "other"));
+	}
+
+	/**
+	 * Replace the credential file, making sure it looks changed even if it is the same size
+	 * and written within the mtime's resolution of the last one
+	 */
+	private void write(String... lines) throws IOException {
+		long modified = credentials.lastModified();
+		StringBuilder contents = new StringBuilder();
+		for (String line : lines) {
+			contents.append(line).append('\n');
+		}
+		FileUtils.writeStringToFile(credentials, contents.toString(), StandardCharsets.UTF_8);
+		if (modified != 0 && credentials.lastModified() <= modified)
+			assertTrue(credentials.setLastModified(modified + 1000));
+	}
+
+}
@@ -0,0 +1,144 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Measures what logging a command and its reply costs a session, with the old
+ * EventLogger and SimplerFormatter (String.format, socket address formatted per line,
+ * a SimpleDateFormat per record) and the current ones, at fine and at info level.
+ * Records are formatted but not written anywhere, so this is the cost on the session's
+ * thread without any I/O.  Reports nanoseconds and bytes allocated per command.
+ *
+ * Run with:
+ * $ mvn test-compile
+ * $ java -cp target/classes:target/test-classes edu.dasizeman.jftpserver.EventLoggerBenchmark [commands]
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class EventLoggerBenchmark {
+	private static final int COMMANDS_DEFAULT = 1000000;
+	private static final String COMMAND = "RETR some/file.bin";
+	private static final String REPLY = "150 some/file.bin incoming.";
+
+	// The old implementation, for comparison
+	private static final String LEGACY_LOG_FORMAT = "[%s] %s: %s";
+
+	public static void main(String[] args) throws IOException {
+		int commands = (args.length > 0) ? Integer.parseInt(args[0]) : COMMANDS_DEFAULT;
+
+		ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		Socket socket = new Socket(listener.getInetAddress(), listener.getLocalPort());
+		String connectionID = EventLogger.getConnectionID(socket);
+
+		System.out.println(String.format("%d commands, each logged with its reply", commands));
+		System.out.println(String.format("%-8s %-6s %12s %12s", "version", "level", "ns/command", "bytes/command"));
+		for (Level level : new Level[]{Level.FINE, Level.INFO}) {
+			for (boolean legacy : new boolean[]{true, false}) {
+				// Warm up, then measure
+				run(legacy, level, socket, connectionID, commands / 10, false);
+				run(legacy, level, socket, connectionID, commands, true);
+			}
+		}
+
+		socket.close();
+		listener.close();
+	}
+
+	private static void run(boolean legacy, Level level, Socket socket, String connectionID, int commands, boolean report) {
+		Logger logger = Logger.getAnonymousLogger();
+		logger.setUseParentHandlers(false);
+		logger.setLevel(level);
+		DiscardHandler handler = new DiscardHandler(legacy ? new LegacyFormatter() : new SimplerFormatter());
+		logger.addHandler(handler);
+
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < commands; i++) {
+			if (legacy) {
+				legacyLogNetworkData(logger, socket, "Receiving", COMMAND);
+				legacyLogNetworkData(logger, socket, "Sending", REPLY);
+			} else {
+				EventLogger.logNetworkDataReceived(logger, connectionID, COMMAND);
+				EventLogger.logNetworkDataSent(logger, connectionID, REPLY);
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		long allocated = allocatedBytes() - allocatedBefore;
+
+		if (report) {
+			System.out.println(String.format("%-8s %-6s %12.1f %12.1f (%d chars formatted)", legacy ? "before" : "after",
+					level, (double)elapsed / commands, allocated < 0 ? -1.0 : (double)allocated / commands, handler.chars));
+		}
+	}
+
+	private static void legacyLogNetworkData(Logger logger, Socket socket, String context, String data) {
+		String address = socket.getInetAddress().getHostAddress();
+		String port = Integer.toString(socket.getPort());
+		logger.log(Level.FINE, String.format(LEGACY_LOG_FORMAT, String.format("%s:%s", address, port), context, data));
+	}
+
+	/**
+	 * Bytes allocated by this thread so far, or -1 if the JVM can't tell us
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Formats records like a file handler would, then throws them away
+	 */
+	private static class DiscardHandler extends Handler {
+		long chars = 0;
+
+		DiscardHandler(Formatter formatter) {
+			setFormatter(formatter);
+		}
+
+		@Override
+		public synchronized void publish(LogRecord record) {
+			if (isLoggable(record))
+				chars += getFormatter().format(record).length();
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * The old SimplerFormatter
+	 */
+	private static class LegacyFormatter extends Formatter {
+		@Override
+		public String format(LogRecord record) {
+			StringBuffer log = new StringBuffer();
+			log.append("[" + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(record.getMillis())) + "]");
+			log.append(" ");
+			log.append("<" + record.getLevel().getName() + ">");
+			log.append(" ");
+			log.append(": ");
+			log.append(record.getMessage());
+			log.append(System.getProperty("line.separator"));
+			return log.toString();
+		}
+	}
+
+}
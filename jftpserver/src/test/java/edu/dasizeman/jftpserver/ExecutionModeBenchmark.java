@@ -0,0 +1,75 @@
+package edu.dasizeman.jftpserver;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares the ExecutionManager modes by running a burst of tasks that each block
+ * for a while, the way an idle control connection or a slow transfer would.  Reports
+ * wall time, peak live threads and heap growth for each mode.
+ *
+ * Run with:
+ * $ mvn test-compile
+ * $ java -cp target/classes:target/test-classes edu.dasizeman.jftpserver.ExecutionModeBenchmark [tasks] [blockMillis] [poolSize]
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class ExecutionModeBenchmark {
+	private static final int TASKS_DEFAULT = 10000;
+	private static final int BLOCK_MILLIS_DEFAULT = 200;
+	private static final int POOL_SIZE_DEFAULT = 256;
+
+	public static void main(String[] args) throws InterruptedException {
+		int tasks = (args.length > 0) ? Integer.parseInt(args[0]) : TASKS_DEFAULT;
+		int blockMillis = (args.length > 1) ? Integer.parseInt(args[1]) : BLOCK_MILLIS_DEFAULT;
+		int poolSize = (args.length > 2) ? Integer.parseInt(args[2]) : POOL_SIZE_DEFAULT;
+
+		System.out.println(String.format("%d tasks blocking %d ms each, pool size %d", tasks, blockMillis, poolSize));
+		System.out.println(String.format("%-8s %-8s %12s %12s %12s", "asked", "ran as", "wall ms", "peak threads", "heap KB"));
+
+		for (ExecutionManager.Mode mode : ExecutionManager.Mode.values()) {
+			// Warm up, then measure
+			run(mode, Math.min(tasks, 1000), blockMillis, poolSize, false);
+			run(mode, tasks, blockMillis, poolSize, true);
+		}
+	}
+
+	private static void run(ExecutionManager.Mode mode, int tasks, final int blockMillis, int poolSize, boolean report)
+			throws InterruptedException {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+
+		ExecutionManager manager = new ExecutionManager(mode, poolSize);
+		final CountDownLatch done = new CountDownLatch(tasks);
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(blockMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				done.countDown();
+			}
+		};
+
+		threads.resetPeakThreadCount();
+		long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+		long start = System.nanoTime();
+		for (int i = 0; i < tasks; i++) {
+			manager.execute(ExecutionManager.TaskType.DATA, task);
+		}
+		long heapAfter = runtime.totalMemory() - runtime.freeMemory();
+		done.await();
+		long wallMillis = (System.nanoTime() - start) / 1000000;
+		manager.shutdown();
+
+		if (report) {
+			System.out.println(String.format("%-8s %-8s %12d %12d %12d", mode, manager.getMode(), wallMillis,
+					threads.getPeakThreadCount(), (heapAfter - heapBefore) / 1024));
+		}
+	}
+
+}
@@ -0,0 +1,123 @@
+package edu.dasizeman.jftpserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that FTPCommandLine splits lines the way String.split(" ") did, reads numbers
+ * like Long.parseLong and keeps nothing from one line to the next
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class FTPCommandLineTest extends TestCase {
+	private final FTPCommandLine commandLine = new FTPCommandLine();
+
+	public void testVerbIsLookedUpInAnyCase() {
+		assertEquals(FTPCommand.RETR, commandLine.parse("RETR a.txt"));
+		assertEquals(FTPCommand.RETR, commandLine.parse("retr a.txt"));
+		assertEquals(FTPCommand.NOOP, commandLine.parse("NoOp"));
+		assertEquals(FTPCommand.NOOP, commandLine.getCommand());
+		assertNull(commandLine.parse("XYZZY"));
+		assertNull(commandLine.parse("RETR1 a.txt"));
+		assertNull(commandLine.parse(""));
+		assertNull(commandLine.parse(" RETR a.txt"));
+	}
+
+	public void testArgumentsSplitLikeStringSplit() {
+		String[] lines = {"PORT 192,168,0,1,4,1", "USER  dave", "CWD a b  c", "NOOP", "NOOP   ", "CWD x "};
+		for (String line : lines) {
+			commandLine.parse(line);
+			String[] expected = line.split(" ");
+			String[] parsed = new String[commandLine.argCount()];
+			for (int i = 0; i < parsed.length; i++) {
+				parsed[i] = commandLine.arg(i);
+			}
+			assertEquals(line, Arrays.asList(expected).subList(1, expected.length), Arrays.asList(parsed));
+		}
+	}
+
+	public void testRestKeepsSpaces() {
+		commandLine.parse("STOR my file.txt");
+		assertEquals("my file.txt", commandLine.rest());
+		assertEquals(2, commandLine.argCount());
+
+		commandLine.parse("CWD  leading");
+		assertEquals(" leading", commandLine.rest());
+
+		commandLine.parse("PWD");
+		assertEquals("", commandLine.rest());
+
+		commandLine.parse("PWD   ");
+		assertEquals("", commandLine.rest());
+	}
+
+	public void testArgumentsAreDecodedAsUTF8() {
+		commandLine.parse("RETR café 日本.txt");
+		assertEquals("café", commandLine.arg(0));
+		assertEquals("日本.txt", commandLine.arg(1));
+		assertEquals("café 日本.txt", commandLine.rest());
+	}
+
+	public void testNumbersParseLikeParseLong() {
+		String[] numbers = {"0", "42", "+42", "-42", "007", "9223372036854775807", "-9223372036854775808"};
+		for (String number : numbers) {
+			commandLine.parse("REST " + number);
+			assertEquals(number, Long.parseLong(number), commandLine.argAsLong(0));
+		}
+
+		String[] notNumbers = {"", "-", "+", "12a", "1.5", "0x10", "9223372036854775808", "-9223372036854775809",
+				"99999999999999999999"};
+		for (String notNumber : notNumbers) {
+			commandLine.parse("REST " + notNumber + " y");
+			try {
+				commandLine.argAsLong(0);
+				fail(String.format("Parsed \"%s\"", notNumber));
+			} catch (NumberFormatException e) {
+				// Expected
+			}
+		}
+	}
+
+	public void testMissingArgumentsThrowLikeAnArray() {
+		commandLine.parse("ALLO");
+		assertEquals(0, commandLine.argCount());
+		try {
+			commandLine.argAsLong(0);
+			fail("Read an argument that isn't there");
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// Expected, handlers catch this
+		}
+		try {
+			commandLine.arg(1);
+			fail("Read an argument that isn't there");
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// Expected
+		}
+	}
+
+	public void testSlicesOfABiggerBuffer() {
+		byte[] buffer = "xxSIZE a.txt\r\nRETR b.txt\r\n".getBytes(StandardCharsets.US_ASCII);
+		assertEquals(FTPCommand.SIZE, commandLine.parse(buffer, 2, 10));
+		assertEquals("a.txt", commandLine.arg(0));
+		assertEquals("SIZE a.txt", commandLine.toString());
+
+		assertEquals(FTPCommand.RETR, commandLine.parse(buffer, 14, 10));
+		assertEquals("b.txt", commandLine.arg(0));
+		assertEquals("RETR b.txt", commandLine.toString());
+	}
+
+	public void testNothingIsKeptBetweenLines() {
+		commandLine.parse("CWD a b c d e f g h i j");
+		assertEquals(10, commandLine.argCount());
+		assertEquals("j", commandLine.arg(9));
+		assertEquals("a b c d e f g h i j", commandLine.rest());
+
+		commandLine.parse("CWD z");
+		assertEquals(1, commandLine.argCount());
+		assertEquals("z", commandLine.arg(0));
+		assertEquals("z", commandLine.rest());
+	}
+
+}
@@ -0,0 +1,143 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that FTPLineDecoder hands over lines however they are split across reads, and
+ * that a line that is too long is skipped as it arrives and reported once, without
+ * losing the lines around it
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class FTPLineDecoderTest extends TestCase {
+	private static final int MAX_LENGTH = 64;
+
+	private static final String OVERSIZE = "<oversize>";
+
+	private final FTPLineDecoder decoder = new FTPLineDecoder(MAX_LENGTH);
+
+	// What the decoder handed over, with oversize lines as OVERSIZE
+	private final List<String> lines = new ArrayList<String>();
+
+	private final ControlConnectionHandler handler = new ControlConnectionHandler((OutputStream)null) {
+		@Override
+		void handleFTPPDU(byte[] buffer, int offset, int length) {
+			lines.add(new String(buffer, offset, length, StandardCharsets.UTF_8));
+		}
+
+		@Override
+		void handleOversizeFTPPDU(int maxLength) {
+			assertEquals(MAX_LENGTH, maxLength);
+			lines.add(OVERSIZE);
+		}
+	};
+
+	public void testLinesEndWithCRLFOrLF() throws IOException {
+		feed("USER dave\r\nPASS magic\nNOOP\r\n", 1000);
+		assertLines("USER dave", "PASS magic", "NOOP");
+	}
+
+	public void testLinesSplitAcrossReads() throws IOException {
+		feed("USER dave\r\nPASS magic\r\nCWD sub\r\n", 1);
+		assertLines("USER dave", "PASS magic", "CWD sub");
+		feed("RETR a", 3);
+		assertLines();
+		feed(".txt\r", 3);
+		assertLines();
+		feed("\n", 3);
+		assertLines("RETR a.txt");
+	}
+
+	public void testEmptyLines() throws IOException {
+		feed("\r\n\nNOOP\r\n", 1000);
+		assertLines("", "", "NOOP");
+	}
+
+	public void testLongestLineIsAccepted() throws IOException {
+		String longest = line(MAX_LENGTH);
+		feed(longest + "\r\n" + longest + "\n", 1000);
+		assertLines(longest, longest);
+	}
+
+	public void testOneByteTooLongIsReported() throws IOException {
+		feed(line(MAX_LENGTH + 1) + "\r\nNOOP\r\n", 1000);
+		assertLines(OVERSIZE, "NOOP");
+		feed(line(MAX_LENGTH + 1) + "\nNOOP\n", 1);
+		assertLines(OVERSIZE, "NOOP");
+	}
+
+	public void testOverlongLineIsSkippedAndReportedOnce() throws IOException {
+		// Many times the buffer, in reads of every size, with the lines either side intact
+		for (int readSize : new int[]{1, 7, MAX_LENGTH, MAX_LENGTH + 2, 1000}) {
+			feed("USER dave\r\n" + line(MAX_LENGTH * 20) + "\r\nPASS magic\r\n", readSize);
+			assertLines("USER dave", OVERSIZE, "PASS magic");
+		}
+	}
+
+	public void testOverlongLineEndingInALaterRead() throws IOException {
+		feed(line(MAX_LENGTH * 3), 1000);
+		assertLines();
+		feed(line(MAX_LENGTH * 3), 1000);
+		assertLines();
+		feed("\r", 1000);
+		assertLines();
+		feed("\nNOOP\r\n", 1000);
+		assertLines(OVERSIZE, "NOOP");
+	}
+
+	public void testReadingFromAChannel() throws IOException {
+		byte[] input = ("USER dave\r\n" + line(MAX_LENGTH * 5) + "\r\nNOOP\r\n").getBytes(StandardCharsets.US_ASCII);
+		InputStream in = new ByteArrayInputStream(input);
+		while (decoder.readFrom(Channels.newChannel(in)) > 0) {
+			while (decoder.nextLine(handler)) {
+				// Collected by the handler
+			}
+		}
+		assertLines("USER dave", OVERSIZE, "NOOP");
+	}
+
+	/**
+	 * Send data to the decoder a few bytes at a time, handing over every line it completes
+	 * after each read, like the handle loop does
+	 */
+	private void feed(String data, final int readSize) throws IOException {
+		InputStream in = new ByteArrayInputStream(data.getBytes(StandardCharsets.US_ASCII)) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, readSize));
+			}
+		};
+		while (decoder.readFrom(in) > 0) {
+			while (decoder.nextLine(handler)) {
+				// Collected by the handler
+			}
+		}
+	}
+
+	/**
+	 * Check the lines handed over since the last check
+	 */
+	private void assertLines(String... expected) {
+		assertEquals(Arrays.asList(expected), lines);
+		lines.clear();
+	}
+
+	private static String line(int length) {
+		char[] line = new char[length];
+		for (int i = 0; i < length; i++) {
+			line[i] = (char)('a' + i % 26);
+		}
+		return new String(line);
+	}
+
+}
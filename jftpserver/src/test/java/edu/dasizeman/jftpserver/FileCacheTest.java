@@ -0,0 +1,97 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.io.FileUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the TinyLFU admission in FileCache: a file that is only asked for once can't push
+ * a popular file out, while one that becomes more popular than it can, and both show up in
+ * the counters JMX reports
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class FileCacheTest extends TestCase {
+	// Room for the hot file or the big one, not both
+	private static final int CAPACITY = 8192;
+
+	private Path scratch;
+	private File hot;
+	private File big;
+	private FileCache cache;
+
+	@Override
+	protected void setUp() throws IOException {
+		scratch = Files.createTempDirectory("jftpd-test");
+		hot = write("hot.txt", 4096, 'h');
+		big = write("big.bin", 6000, 'b');
+		cache = new FileCache(CAPACITY, 0, CAPACITY);
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		FileUtils.deleteDirectory(scratch.toFile());
+	}
+
+	public void testOneOffFileDoesNotPushOutAHotOne() {
+		// Fits while the cache is empty, then is served from it
+		for (int i = 0; i < 5; i++) {
+			assertContents(cache.get(hot), 4096, 'h');
+		}
+		assertEquals(4, cache.getHitCount());
+		assertEquals(4096, cache.getMemoryBytesUsed());
+
+		// Only fits by evicting the hot file, which has been asked for far more often, so it
+		// is turned away and has to be read from the disk
+		assertNull(cache.get(big));
+		assertEquals(1, cache.getRejectionCount());
+		assertEquals(0, cache.getEvictionCount());
+
+		// So the hot file is still there
+		assertContents(cache.get(hot), 4096, 'h');
+		assertEquals(5, cache.getHitCount());
+		assertEquals(1, cache.getEntryCount());
+	}
+
+	public void testFileMorePopularThanTheCachedOnesIsAdmitted() {
+		assertContents(cache.get(hot), 4096, 'h');
+		assertContents(cache.get(hot), 4096, 'h');
+
+		// Turned away until it has been asked for more often than the hot file
+		assertNull(cache.get(big));
+		assertNull(cache.get(big));
+		assertEquals(2, cache.getRejectionCount());
+		assertContents(cache.get(big), 6000, 'b');
+		assertEquals(2, cache.getRejectionCount());
+		assertEquals(1, cache.getEvictionCount());
+
+		long hits = cache.getHitCount();
+		assertContents(cache.get(big), 6000, 'b');
+		assertEquals(hits + 1, cache.getHitCount());
+		assertEquals(6000, cache.getMemoryBytesUsed());
+		assertEquals(1, cache.getEntryCount());
+	}
+
+	private static void assertContents(ByteBuffer buffer, int size, char fill) {
+		assertNotNull(buffer);
+		assertEquals(size, buffer.remaining());
+		while (buffer.hasRemaining()) {
+			assertEquals((byte)fill, buffer.get());
+		}
+	}
+
+	private File write(String name, int size, char fill) throws IOException {
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++) {
+			data[i] = (byte)fill;
+		}
+		return Files.write(scratch.resolve(name), data).toFile();
+	}
+
+}
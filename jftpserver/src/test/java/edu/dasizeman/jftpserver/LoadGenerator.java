@@ -0,0 +1,681 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Loads a server with simulated clients and reports throughput, latency percentiles per
+ * command and errors.  By default it generates a file root, configuration and credentials
+ * in a scratch directory, starts a server there and drives it over the local interface,
+ * so it needs nothing but this project.  Each client is a thread with its own control
+ * connection that picks commands from a weighted mix, waits an exponentially distributed
+ * think time between them, and reconnects if the server closes on it.
+ *
+ * Options are key=value pairs, all optional:
+ * clients=50            Concurrent clients
+ * duration=30           Seconds to measure for
+ * warmup=5              Seconds to run before measuring
+ * mode=pasv             Data connections: pasv, port or mixed
+ * mix=login:1,cwd:2,list:3,retr:4   Weights of USER/PASS, CWD, LIST and RETR
+ * think=50              Mean think time between commands in ms, or 0 for none
+ * sizes=1k:60,64k:30,1m:9,16m:1     File sizes and how often each is retrieved
+ * files=4               Files of each size in each directory
+ * dirs=4                Directories under the file root to CWD between
+ * port=2121             Port the server listens on
+ * server=spawn          spawn a server in the scratch directory, or external to use one already running
+ * host=                 Address of an external server, defaults to 127.0.0.1
+ * user=load pass=load   Credentials to log in with.  A spawned server is given these
+ * server.KEY=VALUE      Written to the spawned server's jftpd.conf, like server.control_engine=nio
+ * keep=no               Keep the scratch directory afterwards
+ *
+ * Run with:
+ * $ mvn package
+ * $ java -cp target/jftpserver-0.0.1.jar:target/test-classes edu.dasizeman.jftpserver.LoadGenerator [key=value ...]
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class LoadGenerator {
+	private static final String TELNET_EOL = "\r\n";
+	private static final Pattern PASV_REPLY_PATTERN = Pattern.compile("(\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)");
+	private static final String SERVER_CONF_PREFIX = "server.";
+	private static final String CONF_FILE_NAME = "jftpd.conf";
+	private static final long SERVER_START_TIMEOUT_MILLIS = 10000;
+	private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+	private static final int READ_TIMEOUT_MILLIS = 60000;
+
+	private enum Operation {
+		LOGIN,
+		CWD,
+		LIST,
+		RETR
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		options.put("clients", "50");
+		options.put("duration", "30");
+		options.put("warmup", "5");
+		options.put("mode", "pasv");
+		options.put("mix", "login:1,cwd:2,list:3,retr:4");
+		options.put("think", "50");
+		options.put("sizes", "1k:60,64k:30,1m:9,16m:1");
+		options.put("files", "4");
+		options.put("dirs", "4");
+		options.put("port", "2121");
+		options.put("server", "spawn");
+		options.put("host", "127.0.0.1");
+		options.put("user", "load");
+		options.put("pass", "load");
+		options.put("keep", "no");
+		Map<String, String> serverConf = new LinkedHashMap<String, String>();
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			if (split < 0) {
+				System.out.println(String.format("Options are key=value, got %s", arg));
+				return;
+			}
+			String key = arg.substring(0, split);
+			String value = arg.substring(split + 1);
+			if (key.startsWith(SERVER_CONF_PREFIX))
+				serverConf.put(key.substring(SERVER_CONF_PREFIX.length()), value);
+			else if (options.containsKey(key))
+				options.put(key, value);
+			else {
+				System.out.println(String.format("Unknown option %s", key));
+				return;
+			}
+		}
+
+		final Settings settings = new Settings(options);
+		File workDir = null;
+		Process server = null;
+		try {
+			if (options.get("server").equals("spawn")) {
+				workDir = Files.createTempDirectory("jftpd-load").toFile();
+				generateTree(new File(workDir, "root"), settings);
+				server = spawnServer(workDir, settings, serverConf);
+			}
+			waitForServer(settings);
+			run(settings);
+		} finally {
+			if (server != null) {
+				server.destroy();
+				server.waitFor();
+			}
+			if (workDir != null) {
+				if (options.get("keep").equals("yes"))
+					System.out.println(String.format("Scratch directory kept at %s", workDir));
+				else
+					FileUtils.deleteDirectory(workDir);
+			}
+		}
+	}
+
+	/**
+	 * Run the clients through the warmup and the measurement, then report
+	 */
+	private static void run(Settings settings) throws InterruptedException {
+		long now = System.nanoTime();
+		long measureFrom = now + TimeUnit.SECONDS.toNanos(settings.warmupSeconds);
+		long measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(settings.durationSeconds);
+
+		System.out.println(String.format("%d clients against %s:%d, %s mode, mix %s, think %d ms, warmup %d s, measuring %d s",
+				settings.clients, settings.host.getHostAddress(), settings.port, settings.mode, settings.mixDescription,
+				settings.thinkMillis, settings.warmupSeconds, settings.durationSeconds));
+
+		List<Client> clients = new ArrayList<Client>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < settings.clients; i++) {
+			Client client = new Client(settings, measureFrom, measureUntil);
+			Thread thread = new Thread(client, "load-client-" + i);
+			clients.add(client);
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		report(settings, clients);
+	}
+
+	private static void report(Settings settings, List<Client> clients) {
+		Map<String, Samples> latencies = new TreeMap<String, Samples>();
+		Map<String, Long> errors = new TreeMap<String, Long>();
+		long bytes = 0;
+		for (Client client : clients) {
+			for (Map.Entry<String, Samples> command : client.latencies.entrySet()) {
+				Samples merged = latencies.get(command.getKey());
+				if (merged == null) {
+					merged = new Samples();
+					latencies.put(command.getKey(), merged);
+				}
+				merged.addAll(command.getValue());
+			}
+			for (Map.Entry<String, Long> error : client.errors.entrySet()) {
+				Long count = errors.get(error.getKey());
+				errors.put(error.getKey(), (count == null ? 0 : count) + error.getValue());
+			}
+			bytes += client.bytesReceived;
+		}
+
+		double seconds = settings.durationSeconds;
+		long total = 0;
+		System.out.println(String.format("%-8s %10s %10s %10s %10s %10s %10s", "command", "count", "per sec",
+				"p50 ms", "p99 ms", "p999 ms", "max ms"));
+		for (Map.Entry<String, Samples> command : latencies.entrySet()) {
+			Samples samples = command.getValue();
+			samples.sort();
+			total += samples.size;
+			System.out.println(String.format("%-8s %10d %10.1f %10.3f %10.3f %10.3f %10.3f", command.getKey(), samples.size,
+					samples.size / seconds, millis(samples.percentile(0.50)), millis(samples.percentile(0.99)),
+					millis(samples.percentile(0.999)), millis(samples.percentile(1.0))));
+		}
+		System.out.println(String.format("%d commands, %.1f per second, %.1f MB/s received",
+				total, total / seconds, bytes / seconds / (1024 * 1024)));
+
+		if (errors.isEmpty())
+			System.out.println("No errors");
+		for (Map.Entry<String, Long> error : errors.entrySet()) {
+			System.out.println(String.format("error %-24s %d", error.getKey(), error.getValue()));
+		}
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+	/**
+	 * Create the directories and files clients work with.  Every directory, the root
+	 * included, gets the same files, so RETR works wherever a client has CWD'd to.  The
+	 * files are sparse, so even large ones are quick to create and take no disk space
+	 */
+	private static void generateTree(File root, Settings settings) throws IOException {
+		List<File> directories = new ArrayList<File>();
+		directories.add(root);
+		for (int i = 0; i < settings.dirs; i++) {
+			directories.add(new File(root, directoryName(i)));
+		}
+		for (File directory : directories) {
+			if (!directory.mkdirs())
+				throw new IOException(String.format("Couldn't create %s", directory));
+			for (int size = 0; size < settings.sizes.length; size++) {
+				for (int i = 0; i < settings.files; i++) {
+					RandomAccessFile file = new RandomAccessFile(new File(directory, fileName(settings.sizes[size], i)), "rw");
+					try {
+						file.setLength(settings.sizes[size]);
+					} finally {
+						file.close();
+					}
+				}
+			}
+		}
+	}
+
+	private static String directoryName(int index) {
+		return "dir" + index;
+	}
+
+	private static String fileName(long size, int index) {
+		return String.format("file-%d-%d.bin", size, index);
+	}
+
+	/**
+	 * Start a server from our own classpath in the scratch directory, with a configuration
+	 * that serves the generated tree and only logs at info so logging doesn't dominate
+	 */
+	private static Process spawnServer(File workDir, Settings settings, Map<String, String> serverConf) throws IOException {
+		Map<String, String> conf = new LinkedHashMap<String, String>();
+		conf.put("logdirectory", "./");
+		conf.put("loglevel", "info");
+		conf.put("file_root", "./root");
+		conf.put("usernamefile", "./creds.conf");
+		conf.putAll(serverConf);
+		writeKVPFile(new File(workDir, CONF_FILE_NAME), conf);
+
+		Map<String, String> creds = new LinkedHashMap<String, String>();
+		creds.put(settings.user, settings.pass);
+		writeKVPFile(new File(workDir, "creds.conf"), creds);
+
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				Main.class.getName(), "-port", Integer.toString(settings.port));
+		builder.directory(workDir);
+		builder.redirectErrorStream(true);
+		builder.redirectOutput(new File(workDir, "server.out"));
+		return builder.start();
+	}
+
+	private static void writeKVPFile(File file, Map<String, String> entries) throws IOException {
+		PrintWriter out = new PrintWriter(file, "UTF-8");
+		try {
+			for (Map.Entry<String, String> entry : entries.entrySet()) {
+				out.println(String.format("%s=%s", entry.getKey(), entry.getValue()));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Wait until the server accepts connections
+	 */
+	private static void waitForServer(Settings settings) throws IOException, InterruptedException {
+		long deadline = System.currentTimeMillis() + SERVER_START_TIMEOUT_MILLIS;
+		while (true) {
+			Socket socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(settings.host, settings.port), CONNECT_TIMEOUT_MILLIS);
+				return;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline)
+					throw e;
+				Thread.sleep(100);
+			} finally {
+				socket.close();
+			}
+		}
+	}
+
+	/**
+	 * Everything the clients need to know, parsed once from the options
+	 */
+	private static class Settings {
+		final int clients;
+		final int durationSeconds;
+		final int warmupSeconds;
+		final String mode;
+		final Operation[] operations;
+		final int[] operationWeights;
+		final String mixDescription;
+		final long thinkMillis;
+		final long[] sizes;
+		final int[] sizeWeights;
+		final int files;
+		final int dirs;
+		final InetAddress host;
+		final int port;
+		final String user;
+		final String pass;
+
+		Settings(Map<String, String> options) throws IOException {
+			clients = Integer.parseInt(options.get("clients"));
+			durationSeconds = Integer.parseInt(options.get("duration"));
+			warmupSeconds = Integer.parseInt(options.get("warmup"));
+			mode = options.get("mode").toLowerCase();
+			if (!mode.equals("pasv") && !mode.equals("port") && !mode.equals("mixed"))
+				throw new IllegalArgumentException(String.format("Unknown mode %s", mode));
+			thinkMillis = Long.parseLong(options.get("think"));
+			files = Integer.parseInt(options.get("files"));
+			dirs = Integer.parseInt(options.get("dirs"));
+			port = Integer.parseInt(options.get("port"));
+			user = options.get("user");
+			pass = options.get("pass");
+
+			mixDescription = options.get("mix");
+			String[] mix = mixDescription.split(",");
+			operations = new Operation[mix.length];
+			operationWeights = new int[mix.length];
+			for (int i = 0; i < mix.length; i++) {
+				String[] entry = mix[i].split(":");
+				operations[i] = Operation.valueOf(entry[0].toUpperCase());
+				operationWeights[i] = Integer.parseInt(entry[1]);
+			}
+
+			String[] sizeMix = options.get("sizes").split(",");
+			sizes = new long[sizeMix.length];
+			sizeWeights = new int[sizeMix.length];
+			for (int i = 0; i < sizeMix.length; i++) {
+				String[] entry = sizeMix[i].split(":");
+				sizes[i] = parseSize(entry[0]);
+				sizeWeights[i] = Integer.parseInt(entry[1]);
+			}
+
+			host = InetAddress.getByName(options.get("host"));
+		}
+
+		private static long parseSize(String value) {
+			value = value.toLowerCase();
+			long multiplier = 1;
+			if (value.endsWith("k"))
+				multiplier = 1024L;
+			else if (value.endsWith("m"))
+				multiplier = 1024L * 1024;
+			else if (value.endsWith("g"))
+				multiplier = 1024L * 1024 * 1024;
+
+			if (multiplier != 1)
+				value = value.substring(0, value.length() - 1);
+			return Long.parseLong(value) * multiplier;
+		}
+
+		/**
+		 * Pick an index with probability proportional to its weight
+		 */
+		static int pick(int[] weights) {
+			int total = 0;
+			for (int weight : weights) {
+				total += weight;
+			}
+			int choice = ThreadLocalRandom.current().nextInt(total);
+			for (int i = 0; i < weights.length; i++) {
+				choice -= weights[i];
+				if (choice < 0)
+					return i;
+			}
+			return weights.length - 1;
+		}
+	}
+
+	/**
+	 * A growable list of latencies in nanoseconds
+	 */
+	private static class Samples {
+		long[] values = new long[1024];
+		int size = 0;
+
+		void add(long value) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+
+		void addAll(Samples other) {
+			for (int i = 0; i < other.size; i++) {
+				add(other.values[i]);
+			}
+		}
+
+		void sort() {
+			Arrays.sort(values, 0, size);
+		}
+
+		/**
+		 * @return The exact percentile of the sorted samples
+		 */
+		long percentile(double fraction) {
+			if (size == 0)
+				return 0;
+			int index = (int)Math.ceil(fraction * size) - 1;
+			return values[Math.max(0, Math.min(size - 1, index))];
+		}
+	}
+
+	/**
+	 * Thrown when the server replies with something other than what we expected
+	 */
+	@SuppressWarnings("serial")
+	private static class ReplyException extends Exception {
+		final int code;
+
+		ReplyException(int code, String reply) {
+			super(reply);
+			this.code = code;
+		}
+	}
+
+	/**
+	 * One simulated client.  Everything it records is its own until it is done, so clients
+	 * don't contend with each other to record
+	 */
+	private static class Client implements Runnable {
+		private final Settings settings;
+		private final long measureFrom;
+		private final long measureUntil;
+
+		final Map<String, Samples> latencies = new TreeMap<String, Samples>();
+		final Map<String, Long> errors = new TreeMap<String, Long>();
+		long bytesReceived = 0;
+
+		private Socket control;
+		private BufferedReader in;
+		private OutputStream out;
+		private boolean inDirectory = false;
+		private final byte[] buffer = new byte[64 * 1024];
+
+		Client(Settings settings, long measureFrom, long measureUntil) {
+			this.settings = settings;
+			this.measureFrom = measureFrom;
+			this.measureUntil = measureUntil;
+		}
+
+		@Override
+		public void run() {
+			while (System.nanoTime() < measureUntil) {
+				try {
+					if (control == null) {
+						connect();
+						login();
+					}
+					perform(settings.operations[Settings.pick(settings.operationWeights)]);
+				} catch (ReplyException e) {
+					error(Integer.toString(e.code));
+
+					// The server is closing on us, so start over
+					if (e.code == FTPResponse.NOT_AVAIL_CLOSING.code)
+						disconnect();
+				} catch (IOException e) {
+					error(e.getClass().getSimpleName());
+					disconnect();
+				}
+				think();
+			}
+			if (control != null) {
+				try {
+					send("QUIT");
+				} catch (IOException e) {
+					// We are done either way
+				}
+				disconnect();
+			}
+		}
+
+		private void perform(Operation operation) throws IOException, ReplyException {
+			switch (operation) {
+			case LOGIN:
+				login();
+				break;
+			case CWD:
+				if (settings.dirs == 0)
+					break;
+				String target = inDirectory ? ".." : directoryName(ThreadLocalRandom.current().nextInt(settings.dirs));
+				command("CWD", "CWD " + target, FTPResponse.FILE_ACTION_COMPLETED.code);
+				inDirectory = !inDirectory;
+				break;
+			case LIST:
+				transfer("LIST", "LIST");
+				break;
+			case RETR:
+				int size = Settings.pick(settings.sizeWeights);
+				int index = ThreadLocalRandom.current().nextInt(settings.files);
+				transfer("RETR", "RETR " + fileName(settings.sizes[size], index));
+				break;
+			}
+		}
+
+		private void connect() throws IOException, ReplyException {
+			long start = System.nanoTime();
+			control = new Socket();
+			control.setTcpNoDelay(true);
+			control.connect(new InetSocketAddress(settings.host, settings.port), CONNECT_TIMEOUT_MILLIS);
+			control.setSoTimeout(READ_TIMEOUT_MILLIS);
+			in = new BufferedReader(new InputStreamReader(control.getInputStream(), StandardCharsets.UTF_8));
+			out = control.getOutputStream();
+			inDirectory = false;
+			expect(FTPResponse.NEW_USER_SERVICE_RDY.code);
+			record("CONNECT", start);
+		}
+
+		private void login() throws IOException, ReplyException {
+			command("USER", "USER " + settings.user, FTPResponse.NEED_PASS.code);
+			command("PASS", "PASS " + settings.pass, FTPResponse.LOGIN_OK.code);
+		}
+
+		/**
+		 * Open a data connection, run a command over it and read everything it sends
+		 */
+		private void transfer(String name, String line) throws IOException, ReplyException {
+			boolean passive = settings.mode.equals("pasv")
+					|| (settings.mode.equals("mixed") && ThreadLocalRandom.current().nextBoolean());
+			Socket data = null;
+			ServerSocket listener = null;
+			try {
+				if (passive) {
+					long start = System.nanoTime();
+					send("PASV");
+					String reply = expect(FTPResponse.ENTERING_PASV.code);
+					record("PASV", start);
+					Matcher matcher = PASV_REPLY_PATTERN.matcher(reply);
+					if (!matcher.find())
+						throw new ReplyException(FTPResponse.ENTERING_PASV.code, reply);
+					String address = String.format("%s.%s.%s.%s", matcher.group(1), matcher.group(2), matcher.group(3), matcher.group(4));
+					int port = Integer.parseInt(matcher.group(5)) * 256 + Integer.parseInt(matcher.group(6));
+					data = new Socket();
+					data.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT_MILLIS);
+				} else {
+					listener = new ServerSocket(0, 1, control.getLocalAddress());
+					listener.setSoTimeout(READ_TIMEOUT_MILLIS);
+					byte[] address = control.getLocalAddress().getAddress();
+					int port = listener.getLocalPort();
+					command("PORT", String.format("PORT %d,%d,%d,%d,%d,%d", address[0] & 0xff, address[1] & 0xff,
+							address[2] & 0xff, address[3] & 0xff, port / 256, port % 256), FTPResponse.COMMAND_OK.code);
+				}
+
+				long start = System.nanoTime();
+				send(line);
+				expect(FTPResponse.ABOUT_TO_OPEN_DATA.code);
+				if (data == null)
+					data = listener.accept();
+				data.setSoTimeout(READ_TIMEOUT_MILLIS);
+				InputStream stream = data.getInputStream();
+				int count;
+				long received = 0;
+				while ((count = stream.read(buffer)) > 0) {
+					received += count;
+				}
+				expect(FTPResponse.CLOSING_DATA_CONN_SUCC.code);
+				record(name, start);
+				if (measuring(start))
+					bytesReceived += received;
+			} finally {
+				if (data != null)
+					data.close();
+				if (listener != null)
+					listener.close();
+			}
+		}
+
+		/**
+		 * Send a command, check the reply and record how long it took
+		 */
+		private void command(String name, String line, int expected) throws IOException, ReplyException {
+			long start = System.nanoTime();
+			send(line);
+			expect(expected);
+			record(name, start);
+		}
+
+		private void send(String line) throws IOException {
+			out.write((line + TELNET_EOL).getBytes(StandardCharsets.UTF_8));
+			out.flush();
+		}
+
+		/**
+		 * Read a reply, which may span several lines
+		 * @return The last line of the reply
+		 * @throws ReplyException If the reply code isn't the expected one
+		 */
+		private String expect(int expected) throws IOException, ReplyException {
+			String line = in.readLine();
+			if (line == null || line.length() < 3)
+				throw new IOException("Control connection closed");
+			String code = line.substring(0, 3);
+			while (line.length() > 3 && line.charAt(3) == '-') {
+				do {
+					line = in.readLine();
+					if (line == null)
+						throw new IOException("Control connection closed");
+				} while (!line.startsWith(code + " "));
+			}
+
+			int actual;
+			try {
+				actual = Integer.parseInt(code);
+			} catch (NumberFormatException e) {
+				throw new IOException(String.format("Bad reply: %s", line));
+			}
+			if (actual != expected)
+				throw new ReplyException(actual, line);
+			return line;
+		}
+
+		private boolean measuring(long start) {
+			return start >= measureFrom && start < measureUntil;
+		}
+
+		private void record(String name, long start) {
+			if (!measuring(start))
+				return;
+			Samples samples = latencies.get(name);
+			if (samples == null) {
+				samples = new Samples();
+				latencies.put(name, samples);
+			}
+			samples.add(System.nanoTime() - start);
+		}
+
+		private void error(String kind) {
+			if (!measuring(System.nanoTime()))
+				return;
+			Long count = errors.get(kind);
+			errors.put(kind, (count == null ? 0 : count) + 1);
+		}
+
+		private void think() {
+			if (settings.thinkMillis <= 0)
+				return;
+			double wait = -Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) * settings.thinkMillis;
+			try {
+				Thread.sleep((long)wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void disconnect() {
+			if (control == null)
+				return;
+			try {
+				control.close();
+			} catch (IOException e) {
+				// Nothing more to do with it
+			}
+			control = null;
+		}
+	}
+
+}
@@ -0,0 +1,255 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that LocalStorage keeps sessions inside the root, however a path tries to get out,
+ * and that the shared caches see what uploads and deletes do.  Runs against a scratch
+ * directory holding the root and a sibling directory whose name starts with the root's
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class LocalStorageTest extends TestCase {
+	private Path scratch;
+	private Path root;
+	private Path sibling;
+	private LocalStorage storage;
+	private FilesystemManager filesystem;
+
+	@Override
+	protected void setUp() throws IOException {
+		// Turn the path and file caches on, so the invalidation tests have something to invalidate
+		Map<String, String> settings = new HashMap<String, String>();
+		settings.put("path_cache_size", "1024");
+		settings.put("path_cache_seconds", "60");
+		settings.put("file_cache_memory", "1m");
+		settings.put("file_cache_mapped", "0");
+		ConfigurationFile configFile = new ConfigurationFile(settings);
+		PathResolver.configure(configFile);
+		FileCache.configure(configFile);
+		StagedUpload.configure(configFile);
+
+		scratch = Files.createTempDirectory("jftpd-test").toRealPath();
+		root = Files.createDirectory(scratch.resolve("root"));
+		sibling = Files.createDirectory(scratch.resolve("root2"));
+		write(root.resolve("sub").resolve("a.txt"), "inside");
+		write(sibling.resolve("secret.txt"), "outside");
+
+		storage = new LocalStorage(LocalStorage.resolveRoot(root.toString()));
+		filesystem = new FilesystemManager(storage);
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		FileUtils.deleteDirectory(scratch.toFile());
+	}
+
+	public void testParentReferencesStopAtTheRoot() throws IOException {
+		assertNull(filesystem.getFileChannel("../root2/secret.txt"));
+		assertNull(filesystem.getFileChannel("sub/../../root2/secret.txt"));
+		assertNull(filesystem.getFileChannel("/../root2/secret.txt"));
+		assertEquals(-1, filesystem.getFileSize("../root2/secret.txt"));
+		assertNull(filesystem.openUpload("../root2/planted.txt", 0, 0));
+		assertFalse(Files.exists(sibling.resolve("planted.txt")));
+
+		try {
+			filesystem.cd("..");
+			fail("cd climbed out of the root");
+		} catch (FileNotFoundException e) {
+			assertEquals("/", filesystem.pwd());
+		}
+
+		// Climbing back up to the root is fine
+		filesystem.cd("sub");
+		filesystem.cd("..");
+		assertEquals("/", filesystem.pwd());
+		assertEquals(6, filesystem.getFileSize("sub/./a.txt"));
+	}
+
+	public void testSymlinksOutOfTheRootAreNotThere() throws IOException {
+		Files.createSymbolicLink(root.resolve("escape"), sibling);
+		Files.createSymbolicLink(root.resolve("escfile"), sibling.resolve("secret.txt"));
+		Files.createSymbolicLink(root.resolve("inside"), root.resolve("sub").resolve("a.txt"));
+
+		assertNull(storage.find("/escape"));
+		assertNull(storage.find("/escape/secret.txt"));
+		assertNull(storage.find("/escfile"));
+		assertNull(storage.stat("/escfile"));
+		assertNull(storage.getContents("/escfile"));
+		try {
+			storage.openRead("/escfile");
+			fail("Read a file through a symlink out of the root");
+		} catch (FileNotFoundException e) {
+			// Expected
+		}
+
+		// Uploads can't write through them either
+		assertNull(storage.openWrite("/escfile", 0, 0));
+		assertNull(storage.openWrite("/escfile", Long.MAX_VALUE, 0));
+		assertNull(storage.openWrite("/escape/planted.txt", 0, 0));
+		assertEquals("outside", read(sibling.resolve("secret.txt")));
+		assertFalse(Files.exists(sibling.resolve("planted.txt")));
+
+		// A symlink that stays inside the root is followed
+		assertEquals(Storage.Kind.FILE, storage.find("/inside"));
+	}
+
+	public void testListingsShowSymlinksAsThemselves() throws IOException {
+		// Big enough that the link itself could never be mistaken for it
+		write(sibling.resolve("big.txt"), new String(new char[100000]).replace('\0', 'x'));
+		Files.createSymbolicLink(root.resolve("escfile"), sibling.resolve("big.txt"));
+
+		String line = listed(DirectoryLister.Format.LIST, " escfile");
+		assertTrue(line, line.startsWith("l"));
+		assertFalse(line, line.contains("100000"));
+
+		line = listed(DirectoryLister.Format.MLSD, "; escfile");
+		assertFalse(line, line.contains("size=100000"));
+	}
+
+	public void testSiblingSharingTheRootsPrefixIsOutside() throws IOException {
+		// root2 starts with the same characters as root, but isn't under it
+		Files.createSymbolicLink(root.resolve("sib"), sibling);
+		Files.createSymbolicLink(root.resolve("sibfile"), sibling.resolve("secret.txt"));
+
+		assertNull(storage.find("/sib"));
+		assertNull(storage.find("/sib/secret.txt"));
+		assertNull(storage.find("/sibfile"));
+		assertNull(storage.openWrite("/sib/planted.txt", 0, 0));
+		assertFalse(Files.exists(sibling.resolve("planted.txt")));
+	}
+
+	public void testUploadIsSeenThroughTheCaches() throws IOException {
+		// Looking the file up first leaves it cached as not being there
+		assertNull(storage.find("/sub/new.txt"));
+		upload("/sub/new.txt", 0, "first");
+		assertEquals(Storage.Kind.FILE, storage.find("/sub/new.txt"));
+		assertEquals("first", contents("/sub/new.txt"));
+
+		// Replacing, appending and resuming all show up straight away.  The replacement is the
+		// same size and is given the same mtime, so only the upload dropping it from the file
+		// cache keeps the old contents from being served
+		Path file = root.resolve("sub").resolve("new.txt");
+		FileTime modified = Files.getLastModifiedTime(file);
+		upload("/sub/new.txt", 0, "again");
+		Files.setLastModifiedTime(file, modified);
+		assertEquals("again", contents("/sub/new.txt"));
+		upload("/sub/new.txt", Long.MAX_VALUE, "+more");
+		assertEquals("again+more", contents("/sub/new.txt"));
+		upload("/sub/new.txt", 5, "!");
+		assertEquals("again!", contents("/sub/new.txt"));
+		assertEquals(6, storage.stat("/sub/new.txt").getSize());
+	}
+
+	public void testUploadTempFilesAreHidden() throws IOException {
+		Upload upload = storage.openWrite("/new.txt", 0, 0);
+		assertNotNull(upload);
+		try {
+			upload.write(ByteBuffer.wrap("partial".getBytes(StandardCharsets.UTF_8)));
+
+			// The temp file is on disk next to the target, but nothing can see it
+			String temp = null;
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(root)) {
+				for (Path entry : entries) {
+					if (entry.getFileName().toString().endsWith(".jftpd-upload"))
+						temp = "/" + entry.getFileName();
+				}
+			}
+			assertNotNull(temp);
+			for (DirectoryLister.Format format : DirectoryLister.Format.values()) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				storage.list("/", format).writeTo(Channels.newChannel(out));
+				String listing = new String(out.toByteArray(), StandardCharsets.UTF_8);
+				assertFalse(listing, listing.contains("jftpd-upload"));
+			}
+			assertNull(storage.find(temp));
+			assertNull(storage.stat(temp));
+			assertNull(storage.getContents(temp));
+			try {
+				storage.openRead(temp);
+				fail("Read an upload's temp file");
+			} catch (FileNotFoundException e) {
+				// Expected
+			}
+			assertNull(storage.openWrite(temp, 0, 0));
+			assertNull(storage.openWrite(temp, Long.MAX_VALUE, 0));
+			upload.commit();
+		} finally {
+			upload.close();
+		}
+		assertEquals("partial", contents("/new.txt"));
+	}
+
+	public void testDeleteIsSeenThroughTheCaches() throws IOException {
+		assertEquals(Storage.Kind.FILE, storage.find("/sub/a.txt"));
+		assertEquals("inside", contents("/sub/a.txt"));
+
+		// Whatever deletes a file forgets it in the resolver, and the file cache checks the file is still there
+		Path file = root.resolve("sub").resolve("a.txt");
+		Files.delete(file);
+		PathResolver.getInstance().invalidate(file);
+		assertNull(storage.find("/sub/a.txt"));
+		assertNull(storage.getContents("/sub/a.txt"));
+		assertEquals(-1, filesystem.getFileSize("sub/a.txt"));
+	}
+
+	private void upload(String path, long keep, String data) throws IOException {
+		Upload upload = storage.openWrite(path, keep, 0);
+		assertNotNull(upload);
+		try {
+			upload.write(ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8)));
+			upload.commit();
+		} finally {
+			upload.close();
+		}
+	}
+
+	/**
+	 * Read a file through the storage, which serves small files from the file cache
+	 */
+	private String contents(String path) throws IOException {
+		ByteBuffer buffer = storage.getContents(path);
+		assertNotNull(buffer);
+		return StandardCharsets.UTF_8.decode(buffer).toString();
+	}
+
+	/**
+	 * List the root and find the line for one entry
+	 * @param ending How the entry's line ends
+	 */
+	private String listed(DirectoryLister.Format format, String ending) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		storage.list("/", format).writeTo(Channels.newChannel(out));
+		for (String line : new String(out.toByteArray(), StandardCharsets.UTF_8).split("\r\n")) {
+			if (line.endsWith(ending))
+				return line;
+		}
+		fail(String.format("Nothing listed ending in \"%s\"", ending));
+		return null;
+	}
+
+	private static void write(Path file, String data) throws IOException {
+		Files.createDirectories(file.getParent());
+		Files.write(file, data.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String read(Path file) throws IOException {
+		return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,178 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that MemoryStorage counts what uploads hold as they go, gives it back when they
+ * are aborted, keeps files and uploads under the capacity, and appends and resumes like
+ * LocalStorage does
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class MemoryStorageTest extends TestCase {
+	private static final int CAPACITY = 256 * 1024;
+
+	private MemoryStorage storage;
+
+	@Override
+	protected void setUp() throws IOException {
+		storage = new MemoryStorage(CAPACITY);
+		storage.mkdirs("/sub");
+	}
+
+	public void testFilesMustFit() throws IOException {
+		storage.put("/sub/a", new byte[CAPACITY / 2]);
+		storage.put("/sub/b", new byte[CAPACITY / 2]);
+		assertEquals(CAPACITY, storage.getBytesUsed());
+		try {
+			storage.put("/sub/c", new byte[1]);
+			fail("Went over the capacity");
+		} catch (IOException e) {
+			// Expected
+		}
+		assertNull(storage.find("/sub/c"));
+		assertEquals(CAPACITY, storage.getBytesUsed());
+	}
+
+	public void testAllocateIsOnlyAHint() throws IOException {
+		// Far more than the capacity, so nothing is set aside for it beyond the cap
+		Upload upload = storage.openWrite("/sub/big", 0, 2000000000L);
+		assertNotNull(upload);
+		try {
+			assertTrue(storage.getBytesUsed() <= 64 * 1024);
+		} finally {
+			upload.close();
+		}
+		assertEquals(0, storage.getBytesUsed());
+	}
+
+	public void testUploadsAreCountedAsTheyGrow() throws IOException {
+		Upload first = storage.openWrite("/sub/first", 0, 0);
+		Upload second = storage.openWrite("/sub/second", 0, 0);
+		try {
+			first.write(ByteBuffer.wrap(new byte[CAPACITY / 2]));
+			assertTrue(storage.getBytesUsed() >= CAPACITY / 2);
+
+			// Neither is published, but the second can't have more than the first left
+			try {
+				second.write(ByteBuffer.wrap(new byte[CAPACITY / 2 + 1]));
+				fail("Two uploads held more than the capacity");
+			} catch (IOException e) {
+				// Expected
+			}
+			assertTrue(storage.getBytesUsed() <= CAPACITY);
+		} finally {
+			first.close();
+			second.close();
+		}
+
+		// Neither was committed, so everything is given back
+		assertEquals(0, storage.getBytesUsed());
+		assertNull(storage.find("/sub/first"));
+		assertNull(storage.find("/sub/second"));
+	}
+
+	public void testCommitCountsOnlyTheFile() throws IOException {
+		upload("/sub/a", 0, "hello");
+		assertEquals(5, storage.getBytesUsed());
+		assertEquals("hello", contents("/sub/a"));
+		assertEquals(5, storage.stat("/sub/a").getSize());
+	}
+
+	public void testAbortLeavesTheFileAlone() throws IOException {
+		upload("/sub/a", 0, "hello");
+		Upload upload = storage.openWrite("/sub/a", 0, 0);
+		upload.write(ByteBuffer.wrap("goodbye".getBytes(StandardCharsets.UTF_8)));
+		upload.abort();
+		upload.close();
+		assertEquals("hello", contents("/sub/a"));
+		assertEquals(5, storage.getBytesUsed());
+	}
+
+	public void testReplacingAFileNearCapacity() throws IOException {
+		byte[] nearlyFull = new byte[CAPACITY - 10];
+		storage.put("/sub/a", nearlyFull);
+		storage.put("/sub/a", nearlyFull);
+		assertEquals(CAPACITY - 10, storage.getBytesUsed());
+
+		// An upload replacing the file may use its room, since it gives it back when published
+		Upload upload = storage.openWrite("/sub/a", 0, 0);
+		try {
+			upload.write(ByteBuffer.wrap(new byte[CAPACITY - 20]));
+			upload.commit();
+		} finally {
+			upload.close();
+		}
+		assertEquals(CAPACITY - 20, storage.getBytesUsed());
+		assertEquals(CAPACITY - 20, storage.stat("/sub/a").getSize());
+	}
+
+	public void testOnlyOneUploadAtATimeBorrowsAFilesRoom() throws IOException {
+		storage.put("/sub/a", new byte[CAPACITY / 2]);
+		Upload first = storage.openWrite("/sub/a", 0, 0);
+		Upload second = storage.openWrite("/sub/a", 0, 0);
+		try {
+			first.write(ByteBuffer.wrap(new byte[CAPACITY / 2]));
+			try {
+				second.write(ByteBuffer.wrap(new byte[CAPACITY / 2]));
+				fail("Two uploads used the same file's room");
+			} catch (IOException e) {
+				// Expected
+			}
+		} finally {
+			first.close();
+			second.close();
+		}
+		assertEquals(CAPACITY / 2, storage.getBytesUsed());
+
+		// Once the first is done the room can be borrowed again
+		Upload third = storage.openWrite("/sub/a", 0, 0);
+		try {
+			third.write(ByteBuffer.wrap(new byte[CAPACITY / 2]));
+			third.commit();
+		} finally {
+			third.close();
+		}
+		assertEquals(CAPACITY / 2, storage.getBytesUsed());
+	}
+
+	public void testAppendAndResume() throws IOException {
+		upload("/sub/a", Long.MAX_VALUE, "abc");
+		upload("/sub/a", Long.MAX_VALUE, "def");
+		assertEquals("abcdef", contents("/sub/a"));
+		upload("/sub/a", 2, "X");
+		assertEquals("abX", contents("/sub/a"));
+		// Resuming past the end keeps the whole file
+		upload("/sub/a", 100, "Y");
+		assertEquals("abXY", contents("/sub/a"));
+		assertEquals(4, storage.getBytesUsed());
+	}
+
+	public void testUploadsCantReplaceDirectories() throws IOException {
+		assertNull(storage.openWrite("/sub", 0, 0));
+		assertNull(storage.openWrite("/missing/a", 0, 0));
+		assertEquals(0, storage.getBytesUsed());
+	}
+
+	private void upload(String path, long keep, String data) throws IOException {
+		Upload upload = storage.openWrite(path, keep, 0);
+		assertNotNull(upload);
+		try {
+			upload.write(ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8)));
+			upload.commit();
+		} finally {
+			upload.close();
+		}
+	}
+
+	private String contents(String path) {
+		ByteBuffer buffer = storage.getContents(path);
+		assertNotNull(buffer);
+		return StandardCharsets.UTF_8.decode(buffer).toString();
+	}
+
+}
@@ -0,0 +1,57 @@
+package edu.dasizeman.jftpserver;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that a PasswordHash reads back what it writes, and that a hash that can't be read
+ * is reported with the reason it can't
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class PasswordHashTest extends TestCase {
+
+	public void testRoundTrip() {
+		PasswordHash created = PasswordHash.create("magic");
+		String encoded = created.encode();
+		assertTrue(encoded, PasswordHash.isEncoded(encoded));
+		assertFalse(encoded, encoded.contains("="));
+
+		PasswordHash parsed = PasswordHash.parse(encoded);
+		assertEquals(encoded, parsed.encode());
+		assertTrue(parsed.verify("magic"));
+		assertFalse(parsed.verify("Magic"));
+		assertFalse(parsed.verify(""));
+	}
+
+	public void testSaltsDiffer() {
+		assertFalse(PasswordHash.create("magic").encode().equals(PasswordHash.create("magic").encode()));
+	}
+
+	public void testPlaintextIsNotEncoded() {
+		assertFalse(PasswordHash.isEncoded("magic"));
+		assertFalse(PasswordHash.isEncoded("pbkdf2"));
+	}
+
+	public void testMalformedHashes() {
+		String[] salt = PasswordHash.create("magic").encode().split(":");
+		assertMalformed("pbkdf2:1000:" + salt[2], "look like");
+		assertMalformed("sha1:1000:" + salt[2] + ":" + salt[3], "look like");
+		assertMalformed("pbkdf2:many:" + salt[2] + ":" + salt[3], "Bad password hash");
+		assertMalformed("pbkdf2:1000:" + salt[2] + ":not*base64", "Bad password hash");
+
+		// Reported as themselves, not wrapped in a second message
+		assertMalformed("pbkdf2:0:" + salt[2] + ":" + salt[3], "at least one iteration");
+		assertMalformed("pbkdf2:1000:" + salt[2] + ":", "look like");
+	}
+
+	private static void assertMalformed(String encoded, String reason) {
+		try {
+			PasswordHash.parse(encoded);
+			fail(String.format("Parsed %s", encoded));
+		} catch (LineFormatException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(reason));
+			assertFalse(e.getMessage(), e.getMessage().startsWith("Bad password hash: Password hashes"));
+		}
+	}
+
+}
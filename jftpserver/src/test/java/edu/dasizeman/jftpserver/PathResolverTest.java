@@ -0,0 +1,81 @@
+package edu.dasizeman.jftpserver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.io.FileUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that PathResolver counts hits, negative hits and misses the way JMX reports them,
+ * forgets invalidated paths, and keeps its stripes under the capacity between them
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class PathResolverTest extends TestCase {
+	private Path scratch;
+
+	@Override
+	protected void setUp() throws IOException {
+		scratch = Files.createTempDirectory("jftpd-test").toRealPath();
+		Files.createDirectory(scratch.resolve("sub"));
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		FileUtils.deleteDirectory(scratch.toFile());
+	}
+
+	public void testHitsAndMisses() {
+		PathResolver resolver = new PathResolver(100, 60);
+		Path sub = scratch.resolve("sub");
+		Path missing = scratch.resolve("missing");
+
+		assertTrue(resolver.resolve(sub).isDirectory());
+		assertNull(resolver.resolve(missing));
+		assertEquals(2, resolver.getMissCount());
+
+		assertEquals(sub, resolver.resolve(sub).getRealPath());
+		assertNull(resolver.resolve(missing));
+		assertNull(resolver.resolve(missing));
+		assertEquals(1, resolver.getHitCount());
+		assertEquals(2, resolver.getNegativeHitCount());
+		assertEquals(2, resolver.getMissCount());
+	}
+
+	public void testInvalidatedPathsAreLookedUpAgain() throws IOException {
+		PathResolver resolver = new PathResolver(100, 60);
+		Path file = scratch.resolve("new.txt");
+		assertNull(resolver.resolve(file));
+
+		// Still cached as not being there until the upload invalidates it
+		Files.createFile(file);
+		assertNull(resolver.resolve(file));
+		resolver.invalidate(file);
+		assertNotNull(resolver.resolve(file));
+		assertEquals(2, resolver.getMissCount());
+	}
+
+	public void testCapacityIsKept() {
+		for (int capacity : new int[]{1, 5, 16, 100}) {
+			PathResolver resolver = new PathResolver(capacity, 60);
+			for (int i = 0; i < 1000; i++) {
+				resolver.resolve(scratch.resolve("missing" + i));
+				assertTrue(resolver.getEntryCount() <= capacity);
+			}
+			assertTrue(resolver.getEntryCount() > 0);
+		}
+	}
+
+	public void testNoCaching() {
+		PathResolver resolver = new PathResolver(0, 60);
+		assertNotNull(resolver.resolve(scratch.resolve("sub")));
+		assertNotNull(resolver.resolve(scratch.resolve("sub")));
+		assertEquals(0, resolver.getHitCount());
+		assertEquals(2, resolver.getMissCount());
+		assertEquals(0, resolver.getEntryCount());
+	}
+
+}
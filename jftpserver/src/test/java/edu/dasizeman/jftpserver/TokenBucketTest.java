@@ -0,0 +1,121 @@
+package edu.dasizeman.jftpserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that TokenBucket lets an idle bucket send its burst straight away, then lines
+ * reservations up back to back at the rate, including when they come from several threads
+ * at once.  Times are passed in, so nothing here sleeps
+ * @author Dave Sizer <dave@sizetron.net>
+ *
+ */
+public class TokenBucketTest extends TestCase {
+	// 1000 bytes a second, so 100 bytes take 100ms, the same as the burst
+	private static final long RATE = 1000;
+	private static final long CHUNK = 100;
+	private static final long CHUNK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private TokenBucket bucket;
+	private long now;
+
+	@Override
+	protected void setUp() {
+		bucket = new TokenBucket();
+		// Start well after the bucket was made, so it has been idle
+		now = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+	}
+
+	public void testBurstIsOneTenthOfASecond() {
+		assertEquals(CHUNK_NANOS, TokenBucket.BURST_NANOS);
+	}
+
+	public void testNoLimitNeverWaits() {
+		for (int i = 0; i < 100; i++) {
+			assertEquals(0, bucket.reserve(1 << 20, 0, now));
+		}
+		// And doesn't use up anything a limit would see afterwards
+		assertEquals(0, bucket.reserve(CHUNK, RATE, now));
+		assertEquals(0, bucket.reserve(CHUNK, RATE, now));
+		assertEquals(CHUNK_NANOS, bucket.reserve(CHUNK, RATE, now));
+	}
+
+	public void testIdleBucketSendsItsBurstThenQueuesBackToBack() {
+		// The first chunk is free, and the burst lets the next go straight after it
+		assertEquals(0, bucket.reserve(CHUNK, RATE, now));
+		assertEquals(0, bucket.reserve(CHUNK, RATE, now));
+		for (int i = 1; i <= 10; i++) {
+			assertEquals(i * CHUNK_NANOS, bucket.reserve(CHUNK, RATE, now));
+		}
+	}
+
+	public void testWaitsShrinkAsTimePasses() {
+		bucket.reserve(CHUNK * 5, RATE, now);
+		// 500ms reserved, of which 100ms may be sent ahead
+		assertEquals(4 * CHUNK_NANOS, bucket.reserve(CHUNK, RATE, now));
+		// 300ms later, the 600ms now reserved ends 300ms away, less the burst
+		assertEquals(2 * CHUNK_NANOS, bucket.reserve(CHUNK, RATE, now + 3 * CHUNK_NANOS));
+	}
+
+	public void testIdleTimeIsNotBankedBeyondTheBurst() {
+		bucket.reserve(CHUNK, RATE, now);
+		// After ten idle seconds the bucket only has its burst again
+		now += TimeUnit.SECONDS.toNanos(10);
+		assertEquals(0, bucket.reserve(CHUNK, RATE, now));
+		assertEquals(0, bucket.reserve(CHUNK, RATE, now));
+		assertEquals(CHUNK_NANOS, bucket.reserve(CHUNK, RATE, now));
+	}
+
+	public void testCostFollowsTheRateOfEachReservation() {
+		// 1000 bytes at 10000 a second take 100ms, the same as 100 at 1000
+		assertEquals(0, bucket.reserve(CHUNK * 10, RATE * 10, now));
+		assertEquals(0, bucket.reserve(CHUNK, RATE, now));
+		// Halving the rate doubles the next chunk's cost to 200ms, not the ones already reserved
+		assertEquals(CHUNK_NANOS, bucket.reserve(CHUNK, RATE / 2, now));
+		assertEquals(3 * CHUNK_NANOS, bucket.reserve(CHUNK, RATE, now));
+	}
+
+	public void testConcurrentReservationsEachGetTheirOwnSlot() throws InterruptedException {
+		final int threads = 8;
+		final int perThread = 250;
+		final List<Long> waits = Collections.synchronizedList(new ArrayList<Long>());
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> running = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < perThread; i++) {
+						waits.add(bucket.reserve(CHUNK, RATE, now));
+					}
+				}
+			};
+			thread.start();
+			running.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : running) {
+			thread.join();
+		}
+
+		// Every reservation was given a different slot, with none lost or shared
+		List<Long> sorted = new ArrayList<Long>(waits);
+		Collections.sort(sorted);
+		assertEquals(threads * perThread, sorted.size());
+		assertEquals(Long.valueOf(0), sorted.get(0));
+		for (int i = 1; i < sorted.size(); i++) {
+			assertEquals((i - 1) * CHUNK_NANOS, sorted.get(i).longValue());
+		}
+	}
+
+}